@@ -100,6 +100,11 @@ public:
   void setAbsolutePosition(int32_t panAngle, int32_t tiltAngle) {
     mPanAngle = panAngle;
     mTiltAngle = tiltAngle;
+    // Hold the new position rather than resuming the last tracking correction
+    mPanError = 0;
+    mTiltError = 0;
+    mPrevPanError = 0;
+    mPrevTiltError = 0;
   }
     
   void update() {      
@@ -139,7 +144,8 @@ void setup() {
 }
 
 void loop() {
-  if (BTSerial.available() >= 2) {
+  // Drain every queued command, the phone may stream several per loop
+  while (BTSerial.available() >= 2) {
     
     int8_t cmd = BTSerial.read();
     int8_t numVals = BTSerial.read();
@@ -153,9 +159,10 @@ void loop() {
     
     switch(cmd) {
       case SERVO_MOVE_CMD: {
-        panTiltServos.setAbsolutePosition(vals[0], vals[1]);
+        // Angles are 0-180 degrees, sent as unsigned bytes
+        panTiltServos.setAbsolutePosition((uint8_t) vals[0], (uint8_t) vals[1]);
         panTiltServos.update();
-        
+        break;
       }
       case SERVO_TRACK_CMD: {
         cyclesBeforeUpdate = MAX_CYCLES_BEFORE_UPDATE;
@@ -164,6 +171,7 @@ void loop() {
     
         objectSize += (uint8_t) vals[3];
         objectSize -= objectSize >> 3;  // sliding average, last 8
+        break;
       }
     }
   }
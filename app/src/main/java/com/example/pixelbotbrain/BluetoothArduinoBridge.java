@@ -19,12 +19,17 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Set;
+import java.util.Locale;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Provides a simple Bluetooth bridge to an HC-06 bluetooth module connected to an Arduino.
@@ -32,131 +37,516 @@ import java.util.UUID;
  * Java byte (which recall are signed) maps to Arduino's int8_t
  *
  * Specify the MAC address of your HC-06 with DEViCE_ADDRESS.
+ *
+ * The link is a state machine owned by its own thread, which alone connects, retries and
+ * reconnects: IDLE until connectAsync(), CONNECTING during an attempt, CONNECTED, BACKOFF
+ * between attempts, and CLOSING from disconnect() until the socket is shut. Failed attempts are
+ * retried after a jittered exponential backoff, and a link lost on a write is reconnected at
+ * once. Callers never block on the link. Commands written while it is down are held if they
+ * are safe to send late, absolute head moves and stops (see BodyProtocol.isReplayable()), the
+ * newest of each command replacing older ones, and replayed on reconnect. Tracking commands
+ * steer toward where the target was, so they are dropped rather than held, and tracking does
+ * not survive an outage. MainActivity stops tracking once it hears the link is
+ * down anyway, so in practice little besides a stop or head move is ever replayed. Listener
+ * callbacks run on the main thread.
  */
 public class BluetoothArduinoBridge {
     private static final String TAG = "BluetoothArduinoBridge";
     private static final String DEVICE_ADDRESS = "20:16:12:12:70:84";  // my HC-06 address
     private final UUID PORT_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
 
-    private Listener mListener;
-    private Thread mConnectingThread;
-    private Handler mHandler;
-    private BluetoothDevice mDevice;
-    private BluetoothSocket mSocket;
-    private boolean mConnecting;
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_BACKOFF = 3;
+    public static final int STATE_CLOSING = 4;
+    private static final String[] STATE_NAMES =
+            {"idle", "connecting", "connected", "backoff", "closing"};
+
+    private static final long BACKOFF_INITIAL_MS = 250;
+    private static final long BACKOFF_MAX_MS = 8000;
+    // Held commands older than this are dropped on reconnect rather than replayed
+    private static final long REPLAY_MAX_AGE_NS = 2000000000L;
+    // Command bytes that can be held, one frame each
+    private static final int MAX_HELD_COMMANDS = 8;
+
+    private static final long[] WRITE_BUCKETS_NS = {1000000L, 2000000L, 5000000L, 10000000L,
+            20000000L, 50000000L, 100000000L};
+    private static final long[] CONNECT_BUCKETS_NS = {250000000L, 500000000L, 1000000000L,
+            2000000000L, 5000000000L, 10000000000L, 30000000000L};
+
+    private final HandlerThread mLinkThread;
+    private final Handler mLinkHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+    private volatile Listener mListener;
+    private volatile SessionJournalWriter mJournal;
+
+    // State, changed under mStateLock; disconnect() takes only this lock so it never waits for
+    // a blocked write
+    private final Object mStateLock = new Object();
+    private volatile int mState = STATE_IDLE;
+    private volatile BluetoothSocket mSocket;
+    private boolean mWanted;  // between connectAsync() and disconnect()
+
+    // Owned by the link thread
+    private BluetoothDevice mDevice;  // looked up once
+    private int mAttempts;  // since the link was requested or lost
+    private long mDownSinceNs;
+    private boolean mReportedDown;
+
+    // Writes and the commands held while the link is down, guarded by mWriteLock
+    private final Object mWriteLock = new Object();
+    private final byte[][] mHeldFrames = new byte[MAX_HELD_COMMANDS][BodyProtocol.MAX_FRAME_SIZE];
+    private final int[] mHeldLengths = new int[MAX_HELD_COMMANDS];
+    private final long[] mHeldTimes = new long[MAX_HELD_COMMANDS];
+
+    // Link health, read from any thread
+    private final AtomicInteger mWritesInFlight = new AtomicInteger();
+    private volatile long mWriteCount;
+    private volatile long mLastWriteNs;
+    private volatile long mWriteFailures;
+    private volatile long mConnectAttempts;
+    private volatile long mConnectFailures;
+    private volatile long mReconnects;
+    private volatile long mReplayed;
+    private volatile long mDroppedStale;
+    private volatile long mDroppedUnreplayable;
+    private volatile long mLastConnectNs;
+    private final Metrics.Histogram mWriteHistogram = new Metrics.Histogram(WRITE_BUCKETS_NS);
+    private final Metrics.Histogram mConnectHistogram =
+            new Metrics.Histogram(CONNECT_BUCKETS_NS);
 
     public interface Listener {
         public void onBluetoothConnected();
         public void onBluetoothConnectionFailed(final String errorMsg);
     }
 
-    public void connectAsync(Listener listener) {
-        if (mConnecting) return;
-        mConnecting = true;
+    public BluetoothArduinoBridge() {
+        mLinkThread = new HandlerThread("BluetoothLink");
+        mLinkThread.start();
+        mLinkHandler = new Handler(mLinkThread.getLooper());
+    }
 
+    /**
+     * Starts connecting, and keeps the link up until disconnect(). Returns immediately.
+     *
+     * @param listener Told on the main thread each time the link comes up, and once each time
+     *                 it goes down or can't be brought up.
+     */
+    public void connectAsync(Listener listener) {
         mListener = listener;
-        mHandler = new Handler();
+        synchronized (mStateLock) {
+            mWanted = true;
+        }
+        mLinkHandler.post(mStart);
+    }
 
-        mConnectingThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                Log.d(TAG, "Connecting ...");
+    /**
+     * Drops the link and stops reconnecting. Returns immediately: a connect in progress is
+     * aborted and the socket closed on the link thread, so connectAsync() may follow at once.
+     */
+    public void disconnect() {
+        final BluetoothSocket socket;
+        synchronized (mStateLock) {
+            mWanted = false;
+            if (mState == STATE_IDLE || mState == STATE_CLOSING) return;
+            setState(STATE_CLOSING);
+            socket = mSocket;
+        }
+        // Unblocks a connect() or write() in progress
+        closeQuietly(socket);
+        mLinkHandler.removeCallbacks(mAttempt);
+        mLinkHandler.post(mFinishClosing);
+    }
 
-                BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-                if (bluetoothAdapter == null) {
-                    postOnBluetoothConnectionFailed("Can't get Bluetooth adaptor");
-                    return;
-                }
+    /**
+     * Disconnects and stops the link thread. The bridge can't be used afterwards.
+     */
+    public void close() {
+        disconnect();
+        mLinkThread.quitSafely();
+    }
 
-                if (!bluetoothAdapter.isEnabled()) {
-                    postOnBluetoothConnectionFailed("Bluetooth not enabled");
-                    return;
-                }
+    /**
+     * Journals every command and link state change, or stops if null.
+     */
+    public void setJournal(SessionJournalWriter journal) {
+        mJournal = journal;
+    }
 
-                Set<BluetoothDevice> bondedDevices = bluetoothAdapter.getBondedDevices();
-                if (bondedDevices.isEmpty()) {
-                    postOnBluetoothConnectionFailed("No devices paired");
-                    return;
-                }
+    /** STATE_IDLE, STATE_CONNECTING, STATE_CONNECTED, STATE_BACKOFF or STATE_CLOSING. */
+    public int getState() {
+        return mState;
+    }
+
+    public static String getStateName(int state) {
+        return STATE_NAMES[state];
+    }
 
-                mDevice = null;
-                for (BluetoothDevice iterator : bondedDevices) {
-                    if (iterator.getAddress().equals(DEVICE_ADDRESS)) {
-                        Log.d(TAG, "Found HC-05 " + iterator.getAddress());
-                        mDevice = iterator;
+    /**
+     * Exports the link state and the write and connection counters.
+     */
+    public void registerMetrics(Metrics metrics) {
+        metrics.addGauge("pixelbot_bluetooth_link_state",
+                "0 idle, 1 connecting, 2 connected, 3 backoff, 4 closing", new Metrics.Value() {
+                    @Override
+                    public long get() {
+                        return mState;
+                    }
+                });
+        metrics.addCounter("pixelbot_bluetooth_writes_total", "Commands written to the body",
+                new Metrics.Value() {
+                    @Override
+                    public long get() {
+                        return mWriteCount;
+                    }
+                });
+        metrics.addCounter("pixelbot_bluetooth_write_failures_total",
+                "Writes that failed and dropped the link", new Metrics.Value() {
+                    @Override
+                    public long get() {
+                        return mWriteFailures;
+                    }
+                });
+        metrics.addHistogram("pixelbot_bluetooth_write_duration_seconds",
+                "Time a write blocked", mWriteHistogram);
+        metrics.addCounter("pixelbot_bluetooth_connects_total", "Connection attempts",
+                new Metrics.Value() {
+                    @Override
+                    public long get() {
+                        return mConnectAttempts;
+                    }
+                });
+        metrics.addCounter("pixelbot_bluetooth_connect_failures_total",
+                "Connection attempts that failed", new Metrics.Value() {
+                    @Override
+                    public long get() {
+                        return mConnectFailures;
+                    }
+                });
+        metrics.addCounter("pixelbot_bluetooth_reconnects_total",
+                "Links lost on a write and reconnected automatically", new Metrics.Value() {
+                    @Override
+                    public long get() {
+                        return mReconnects;
+                    }
+                });
+        metrics.addHistogram("pixelbot_bluetooth_connect_duration_seconds",
+                "Time from the link being requested or lost until it was up",
+                mConnectHistogram);
+        metrics.addCounter("pixelbot_bluetooth_commands_replayed_total",
+                "Commands held while the link was down and sent on reconnect",
+                new Metrics.Value() {
+                    @Override
+                    public long get() {
+                        return mReplayed;
                     }
+                });
+    }
+
+    /**
+     * Commands being written or waiting to be. Writes block while the module's buffer is full,
+     * so more than one means commands are queueing behind a stalled link.
+     */
+    public int getWritesInFlight() {
+        return mWritesInFlight.get();
+    }
+
+    public long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /** How long the most recent write blocked. */
+    public long getLastWriteNs() {
+        return mLastWriteNs;
+    }
+
+    public String getStatString() {
+        return String.format(Locale.US, "%s, %d writes (%d failed), %d connect attempts "
+                        + "(%d failed), %d reconnects, last up in %.0f ms, %d commands "
+                        + "replayed, %d stale and %d tracking dropped", getStateName(mState),
+                mWriteCount, mWriteFailures, mConnectAttempts, mConnectFailures, mReconnects,
+                mLastConnectNs / 1e6, mReplayed, mDroppedStale, mDroppedUnreplayable);
+    }
+
+    protected void writeData(byte cmd, byte vals[]) {
+        byte[] data = new byte[2 + vals.length];
+        writeFrame(data, BodyProtocol.encode(cmd, vals, data));
+    }
+
+    /**
+     * Writes a command already framed with BodyProtocol, or holds it for replay if the link is
+     * down.
+     */
+    protected void writeFrame(byte[] data, int length) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final SessionJournalWriter journal = mJournal;
+        mWritesInFlight.incrementAndGet();
+        try {
+            synchronized (mWriteLock) {
+                final BluetoothSocket socket = mSocket;
+                final boolean held = mState != STATE_CONNECTED || socket == null;
+                if (journal != null) {
+                    journal.writeCommand(start, data, length, held);
                 }
-                if (mDevice == null) {
-                    postOnBluetoothConnectionFailed("Unable to get BT device");
+                if (held) {
+                    hold(data, length, start);
                     return;
                 }
+                try {
+                    final OutputStream outputStream = socket.getOutputStream();
+                    outputStream.write(data, 0, length);
+                    mWriteCount++;
+                } catch (IOException e) {
+                    mWriteFailures++;
+                    hold(data, length, start);
+                    onWriteFailed(socket, e.getMessage());
+                }
+            }
+        } finally {
+            mWritesInFlight.decrementAndGet();
+            final long writeNs = SystemClock.elapsedRealtimeNanos() - start;
+            mWriteHistogram.observe(writeNs);
+            mLastWriteNs = writeNs;
+        }
+    }
 
-                while (mConnecting) {
-                    try {
-                        Log.d(TAG, "Attempting to create RFComm socket");
-                        mSocket = mDevice.createRfcommSocketToServiceRecord(PORT_UUID);
-                        mSocket.connect();
-                        postOnBluetoothConnected();
-                    } catch (IOException e) {
-                        try {
-                            Log.w(TAG, e.getMessage());
-                            Thread.sleep(2000);
-                        } catch (InterruptedException ie) { }
-                    }
+    // Keeps the newest replayable frame of each command, guarded by mWriteLock
+    private void hold(byte[] data, int length, long timeNs) {
+        final int cmd = data[0];
+        if (cmd < 0 || cmd >= MAX_HELD_COMMANDS) return;
+        if (!BodyProtocol.isReplayable(data, length)) {
+            mDroppedUnreplayable++;
+            return;
+        }
+        System.arraycopy(data, 0, mHeldFrames[cmd], 0, length);
+        mHeldLengths[cmd] = length;
+        mHeldTimes[cmd] = timeNs;
+    }
+
+    // Sends the held commands oldest first, guarded by mWriteLock
+    private void replay(BluetoothSocket socket) throws IOException {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        while (true) {
+            int oldest = -1;
+            for (int cmd = 0; cmd < MAX_HELD_COMMANDS; cmd++) {
+                if (mHeldLengths[cmd] > 0 && (oldest < 0 || mHeldTimes[cmd] < mHeldTimes[oldest])) {
+                    oldest = cmd;
                 }
             }
-        });
-        mConnectingThread.start();
+            if (oldest < 0) return;
+
+            final int length = mHeldLengths[oldest];
+            mHeldLengths[oldest] = 0;
+            if (now - mHeldTimes[oldest] > REPLAY_MAX_AGE_NS) {
+                mDroppedStale++;
+                continue;
+            }
+            socket.getOutputStream().write(mHeldFrames[oldest], 0, length);
+            mWriteCount++;
+            mReplayed++;
+        }
     }
 
-    public void disconnect() {
-        if (mConnecting) {
-            mConnecting = false;
-            try {
-                mConnectingThread.join();
-            } catch (InterruptedException e) { }
-            try {
-                mSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, e.getMessage());
+    // Called by a writer; hands the socket back to the link thread to reconnect
+    private void onWriteFailed(final BluetoothSocket socket, final String errorMsg) {
+        synchronized (mStateLock) {
+            if (mState != STATE_CONNECTED || mSocket != socket) return;
+            setState(STATE_BACKOFF);  // later writes are held from now on
+        }
+        final long lostNs = SystemClock.elapsedRealtimeNanos();
+        mLinkHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onLinkLost(socket, lostNs, errorMsg);
             }
+        });
+    }
+
+    // Called under mStateLock
+    private void setState(int state) {
+        if (state == mState) return;
+        mState = state;
+        final SessionJournalWriter journal = mJournal;
+        if (journal != null) {
+            journal.writeLinkEvent(SystemClock.elapsedRealtimeNanos(), state);
         }
     }
 
-    protected void writeData(byte cmd, byte vals[]) {
-        OutputStream outputStream = null;
+    // Everything below runs on the link thread
+
+    private final Runnable mStart = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mStateLock) {
+                if (!mWanted || mState != STATE_IDLE) return;
+                setState(STATE_CONNECTING);
+            }
+            mAttempts = 0;
+            mDownSinceNs = SystemClock.elapsedRealtimeNanos();
+            mReportedDown = false;
+            attemptConnect();
+        }
+    };
+
+    private final Runnable mAttempt = new Runnable() {
+        @Override
+        public void run() {
+            if (mState != STATE_BACKOFF) return;
+            attemptConnect();
+        }
+    };
+
+    private final Runnable mFinishClosing = new Runnable() {
+        @Override
+        public void run() {
+            final BluetoothSocket socket;
+            synchronized (mStateLock) {
+                if (mState != STATE_CLOSING) return;
+                socket = mSocket;
+                mSocket = null;
+                setState(STATE_IDLE);
+            }
+            closeQuietly(socket);
+            mLinkHandler.removeCallbacks(mAttempt);
+            Log.d(TAG, "Disconnected");
+        }
+    };
+
+    private void attemptConnect() {
+        BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        if (bluetoothAdapter == null) {
+            // No Bluetooth on this device, don't retry
+            synchronized (mStateLock) {
+                if (mState == STATE_CLOSING) return;
+                setState(STATE_IDLE);
+            }
+            reportDown("Can't get Bluetooth adaptor");
+            return;
+        }
+        if (!bluetoothAdapter.isEnabled()) {
+            mConnectAttempts++;
+            mAttempts++;
+            retryLater("Bluetooth not enabled");
+            return;
+        }
+        if (mDevice == null) {
+            // By address, rather than scanning the bonded devices on every connect
+            mDevice = bluetoothAdapter.getRemoteDevice(DEVICE_ADDRESS);
+        }
+
+        mConnectAttempts++;
+        mAttempts++;
+        BluetoothSocket socket = null;
         try {
-            outputStream = mSocket.getOutputStream();
-            byte[] data = new byte[2 + vals.length];
-            data[0] = cmd;
-            data[1] = (byte) vals.length;
-            for (int i = 0; i < vals.length; i++) {
-                data[i+2] = vals[i];
+            socket = mDevice.createRfcommSocketToServiceRecord(PORT_UUID);
+            synchronized (mStateLock) {
+                if (mState == STATE_CLOSING) {
+                    closeQuietly(socket);
+                    return;
+                }
+                setState(STATE_CONNECTING);
+                mSocket = socket;
             }
-            outputStream.write(data);
+            Log.d(TAG, "Connecting, attempt " + mAttempts);
+            socket.connect();
         } catch (IOException e) {
-            mListener.onBluetoothConnectionFailed(e.getMessage());
-            connectAsync(mListener);  // for robustness, try to automatically reconnect
+            closeQuietly(socket);
+            synchronized (mStateLock) {
+                if (mState == STATE_CLOSING) return;  // aborted by disconnect()
+                mSocket = null;
+            }
+            retryLater(e.getMessage());
+            return;
+        }
+
+        synchronized (mWriteLock) {
+            synchronized (mStateLock) {
+                if (mState == STATE_CLOSING) return;  // mFinishClosing closes the socket
+                setState(STATE_CONNECTED);
+            }
+            try {
+                replay(socket);
+            } catch (IOException e) {
+                mWriteFailures++;
+                onWriteFailed(socket, e.getMessage());
+                return;
+            }
         }
+
+        final long connectNs = SystemClock.elapsedRealtimeNanos() - mDownSinceNs;
+        mConnectHistogram.observe(connectNs);
+        mLastConnectNs = connectNs;
+        Log.i(TAG, String.format(Locale.US, "Connected in %.0f ms after %d attempts",
+                connectNs / 1e6, mAttempts));
+        mAttempts = 0;
+        mReportedDown = false;
+        mMainHandler.post(mReportConnected);
     }
 
-    private void postOnBluetoothConnectionFailed(final String errorMsg) {
-        mHandler.post(new Runnable() {
+    private void retryLater(String errorMsg) {
+        mConnectFailures++;
+        synchronized (mStateLock) {
+            if (mState == STATE_CLOSING) return;
+            setState(STATE_BACKOFF);
+        }
+        // Full range doubles per attempt, of which a random half is used so that retries from
+        // several bots don't line up
+        final long range = Math.min(BACKOFF_MAX_MS,
+                BACKOFF_INITIAL_MS << Math.min(mAttempts - 1, 16));
+        final long delayMs = range / 2 + (long) (mRandom.nextDouble() * (range / 2));
+        Log.w(TAG, "Connect attempt " + mAttempts + " failed (" + errorMsg + "), retrying in "
+                + delayMs + " ms");
+        reportDown(errorMsg);
+        mLinkHandler.postDelayed(mAttempt, delayMs);
+    }
+
+    private void onLinkLost(BluetoothSocket socket, long lostNs, String errorMsg) {
+        synchronized (mStateLock) {
+            if (mState != STATE_BACKOFF || mSocket != socket) return;
+            mSocket = null;
+        }
+        closeQuietly(socket);
+        Log.w(TAG, "Link lost (" + errorMsg + "), reconnecting");
+        mReconnects++;
+        mAttempts = 0;
+        mDownSinceNs = lostNs;
+        reportDown(errorMsg);
+        attemptConnect();
+    }
+
+    // Tells the listener once per outage
+    private void reportDown(final String errorMsg) {
+        if (mReportedDown) return;
+        mReportedDown = true;
+        mMainHandler.post(new Runnable() {
             @Override
             public void run() {
-                mListener.onBluetoothConnectionFailed(errorMsg);
+                final Listener listener = mListener;
+                if (listener != null) {
+                    listener.onBluetoothConnectionFailed(errorMsg);
+                }
             }
         });
-        mConnecting = false;
     }
 
-    private void postOnBluetoothConnected() {
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                mListener.onBluetoothConnected();
+    private final Runnable mReportConnected = new Runnable() {
+        @Override
+        public void run() {
+            final Listener listener = mListener;
+            if (listener != null) {
+                listener.onBluetoothConnected();
             }
-        });
-        mConnecting = false;
+        }
+    };
+
+    private static void closeQuietly(BluetoothSocket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+        }
     }
 }
@@ -0,0 +1,293 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SizeF;
+
+import java.util.Arrays;
+
+/**
+ * Delivers YUV_420_888 preview frames from the front-facing camera via Camera2.
+ */
+public class CameraFrameSource implements FrameSource, ImageReader.OnImageAvailableListener {
+    private static final String TAG = "CameraFrameSource";
+
+    // Used if the camera doesn't report its optics
+    private static final float DEFAULT_HORIZONTAL_FOV = 60.0f;
+    private static final float DEFAULT_VERTICAL_FOV = 45.0f;
+
+    private Context mContext;
+    private Listener mListener;
+    private CameraDevice mCameraDevice;
+    private String mCameraId;
+    private HandlerThread mBackgroundThread;
+    private Handler mBackgroundHandler;
+    private ImageReader mPreviewReader;
+    private CameraCaptureSession mCaptureSession;
+    private CaptureRequest mPreviewRequest;
+    private int mPreviewWidth = 640;
+    private int mPreviewHeight = 480;
+    private boolean mRealtimeTimestamps;
+    private volatile float mHorizontalFov = DEFAULT_HORIZONTAL_FOV;
+    private volatile float mVerticalFov = DEFAULT_VERTICAL_FOV;
+    private final Frame mFrame = new Frame();
+
+    public CameraFrameSource(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        mListener = listener;
+        startBackgroundThread();
+        selectCamera();
+
+        // Open camera - preview session is started via the state callback
+        final CameraManager manager =
+                (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            manager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
+        } catch (final CameraAccessException e) {
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    @Override
+    public void stop() {
+        closeCamera();
+        stopBackgroundThread();
+    }
+
+    @Override
+    public int getWidth() {
+        return mPreviewWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mPreviewHeight;
+    }
+
+    @Override
+    public float getHorizontalFov() {
+        return mHorizontalFov;
+    }
+
+    @Override
+    public float getVerticalFov() {
+        return mVerticalFov;
+    }
+
+    private void startBackgroundThread() {
+        mBackgroundThread = new HandlerThread("BackgroundThread");
+        mBackgroundThread.start();
+        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+    }
+
+    private void stopBackgroundThread() {
+        mBackgroundThread.quitSafely();
+        try {
+            mBackgroundThread.join();
+            mBackgroundThread = null;
+            mBackgroundHandler = null;
+        } catch (final InterruptedException e) {
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader imageReader) {
+        final Image image = imageReader.acquireLatestImage();
+        if (image == null) return;
+
+        // Frames are timestamped with SystemClock.elapsedRealtimeNanos() at exposure. If the
+        // sensor uses another time base, the time the frame arrived is the best we have.
+        final long timestamp = mRealtimeTimestamps ? image.getTimestamp()
+                : SystemClock.elapsedRealtimeNanos();
+        mFrame.set(mPreviewWidth, mPreviewHeight, timestamp);
+        final Image.Plane[] planes = image.getPlanes();
+        for (int i = 0; i < Frame.NUM_PLANES; i++) {
+            mFrame.setPlane(i, planes[i].getBuffer(), planes[i].getRowStride(),
+                    planes[i].getPixelStride());
+        }
+        try {
+            mListener.onFrameAvailable(mFrame);
+        } finally {
+            image.close();
+        }
+    }
+
+    private void selectCamera() {
+        final CameraManager manager =
+                (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            for (final String cameraId : manager.getCameraIdList()) {
+                final CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+
+                final Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK) {
+                    continue;
+                }
+
+                final StreamConfigurationMap map =
+                        characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+
+                if (map == null) {
+                    continue;
+                }
+
+                mCameraId = cameraId;
+
+                final Integer timestampSource =
+                        characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+                mRealtimeTimestamps = timestampSource != null && timestampSource
+                        == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+
+                final float[] focalLengths =
+                        characteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+                final SizeF sensorSize =
+                        characteristics.get(CameraCharacteristics.SENSOR_INFO_PHYSICAL_SIZE);
+                if (focalLengths != null && focalLengths.length > 0 && sensorSize != null) {
+                    mHorizontalFov = (float) Math.toDegrees(
+                            2 * Math.atan(sensorSize.getWidth() / (2 * focalLengths[0])));
+                    // The preview is 4:3, cropped from the sensor's active area
+                    mVerticalFov = (float) Math.toDegrees(2 * Math.atan(
+                            sensorSize.getWidth() * mPreviewHeight / mPreviewWidth
+                                    / (2 * focalLengths[0])));
+                }
+            }
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Not allowed to access camera " + e.getMessage());
+        }
+    }
+
+    private void createCameraPreviewSession() {
+        try {
+            final CaptureRequest.Builder previewRequestBuilder =
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+
+            // Create the reader for the preview frames.
+            mPreviewReader =
+                    ImageReader.newInstance(
+                            mPreviewWidth, mPreviewHeight, ImageFormat.YUV_420_888, 2);
+
+            mPreviewReader.setOnImageAvailableListener(this, mBackgroundHandler);
+            previewRequestBuilder.addTarget(mPreviewReader.getSurface());
+
+            // Here, we create a CameraCaptureSession for camera preview.
+            mCameraDevice.createCaptureSession(
+                    Arrays.asList(mPreviewReader.getSurface()),
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(final CameraCaptureSession cameraCaptureSession) {
+                            if (null == mCameraDevice) {
+                                return;
+                            }
+
+                            mCaptureSession = cameraCaptureSession;
+                            try {
+                                previewRequestBuilder.set(
+                                        CaptureRequest.CONTROL_AF_MODE,
+                                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                                previewRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                                        CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+                                mPreviewRequest = previewRequestBuilder.build();
+                                mCaptureSession.setRepeatingRequest(
+                                        mPreviewRequest, mCaptureCallback, mBackgroundHandler);
+                            } catch (final CameraAccessException e) {
+                                Log.e(TAG, e.getMessage());
+                            }
+                        }
+
+                        @Override
+                        public void onConfigureFailed(final CameraCaptureSession cameraCaptureSession) {
+                            Log.e(TAG, "Failed");
+                        }
+                    },
+                    null);
+        } catch (final CameraAccessException e) {
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    private void closeCamera() {
+        if (null != mCaptureSession) {
+            mCaptureSession.close();
+            mCaptureSession = null;
+        }
+        if (null != mCameraDevice) {
+            mCameraDevice.close();
+            mCameraDevice = null;
+        }
+        if (null != mPreviewReader) {
+            mPreviewReader.close();
+            mPreviewReader = null;
+        }
+    }
+
+    private final CameraDevice.StateCallback mStateCallback =
+            new CameraDevice.StateCallback() {
+                @Override
+                public void onOpened(final CameraDevice cd) {
+                    mCameraDevice = cd;
+                    createCameraPreviewSession();
+                }
+
+                @Override
+                public void onDisconnected(final CameraDevice cd) {
+                    cd.close();
+                    mCameraDevice = null;
+                }
+
+                @Override
+                public void onError(final CameraDevice cd, final int error) {
+                    cd.close();
+                    mCameraDevice = null;
+                }
+            };
+
+    private final CameraCaptureSession.CaptureCallback mCaptureCallback =
+            new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureProgressed(
+                        final CameraCaptureSession session,
+                        final CaptureRequest request,
+                        final CaptureResult partialResult) {}
+
+                @Override
+                public void onCaptureCompleted(
+                        final CameraCaptureSession session,
+                        final CaptureRequest request,
+                        final TotalCaptureResult result) {}
+            };
+}
@@ -17,358 +17,685 @@ package com.example.pixelbotbrain;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.RectF;
-import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraDevice;
-import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.CaptureResult;
-import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.StreamConfigurationMap;
-import android.media.Image;
-import android.media.ImageReader;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.example.pixelbotbrain.tensorflow.AsyncClassifier;
 import com.example.pixelbotbrain.tensorflow.Classifier;
+import com.example.pixelbotbrain.tensorflow.DetectorBackends;
+import com.example.pixelbotbrain.tensorflow.DetectorBenchmark;
 import com.example.pixelbotbrain.tensorflow.ImageUtils;
-import com.example.pixelbotbrain.tensorflow.TensorFlowObjectDetectionAPIModel;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Camera / Tensorflow object recognition. Derived/simplified from:
  * github.com/tensorflow/tensorflow/tree/master/tensorflow/examples/android
  */
-public class CameraObjectRecognizer implements ImageReader.OnImageAvailableListener {
+public class CameraObjectRecognizer implements FrameSource.Listener {
     private static final String TAG = "CameraObjectRecognizer";
 
-    private static final int TF_OD_API_INPUT_SIZE = 300;
-    private static final String TF_OD_API_MODEL_FILE =
-            "file:///android_asset/ssd_mobilenet_v1_android_export.pb";
-    private static final String TF_OD_API_LABELS_FILE =
-            "file:///android_asset/coco_labels_list.txt";
-    private static final float MINIMUM_CONFIDENCE_TF_OD_API = 0.6f;
-
-    private static final String TRACKABLE_OBJECTS [] = { "person", "airplane", "car", "bus",
-            "train", "truck", "boat", "bird", "cat", "dog", "horse", "sheep", "cow", "elephant",
-            "bear", "zebra", "giraffe", "umbrella", "handbag", "tennis racket", "bottle",
-            "wine glass", "cup", "fork", "knife", "spoon", "bowl", "banana", "apple", "sandwich",
-            "orange", "broccoli", "carrot", "hot dog", "pizza", "donut", "cake", "cell phone",
-            "teddy bear", "toothbrush" };
+    private static final int DEFAULT_NUM_THREADS = 4;
+    private static final int BENCHMARK_LOG_INTERVAL = 50;  // frames
+
+    // One frame being inferred, one queued, one being converted by the camera thread and one
+    // for a consumer holding on to a frame (see RgbFrameListener)
+    private static final int NUM_FRAME_BUFFERS = 4;
+    private static final int MAX_PUBLISHED_DETECTIONS = 16;  // per frame
+    private static final int MAX_RESULTS = 100;  // considered per frame
+    private static final float TRACK_MATCH_IOU = 0.3f;
+    private static final float TRACK_MAX_CENTER_DISTANCE = 0.1f;
+    private static final long TRACK_MAX_AGE_MS = 1000;
+    private static final int INFERENCE_TIME_SAMPLES = 256;
+    private static final long[] INFERENCE_BUCKETS_NS = {10000000L, 20000000L, 50000000L,
+            100000000L, 200000000L, 500000000L, 1000000000L};
 
     private Context mContext;
-    private Listener mListener;
-    private CameraDevice mCameraDevice;
-    private String mCameraId;
-    private HandlerThread mBackgroundThread;
-    private Handler mBackgroundHandler;
-    private ImageReader mPreviewReader;
-    private CameraCaptureSession mCaptureSession;
-    private CaptureRequest mPreviewRequest;
-    private int mPreviewWidth = 640;
-    private int mPreviewHeight = 480;
+    private DetectionBus mDetectionBus;
+    private FrameSource mFrameSource;
+    private FrameRecorder mFrameRecorder;
+    private volatile SessionJournalWriter mJournal;
+    private HandlerThread mInferenceThread;
+    private Handler mInferenceHandler;
+    private int mPreviewWidth;
+    private int mPreviewHeight;
     private Classifier mDetector;
-    private Bitmap mRgbFrameBitmap;
-    private Bitmap mCroppedBitmap;
+    private String mBackendName = DetectorBackends.DEFAULT;
+    private int mNumThreads = DEFAULT_NUM_THREADS;
+    private String mLoadedBackendName;
+    private int mLoadedNumThreads;
+    private String mComparisonBackendName;
+    private String mLoadedComparisonBackendName;
+    private Classifier mComparisonDetector;
+    private DetectorBenchmark mBenchmark;
+    private AsyncClassifier mAsyncDetector;
+    private volatile BufferPool<FrameBuffer> mFramePool;  // replaced under this
+    private BufferPool.Policy mFrameDropPolicy = BufferPool.Policy.DROP_OLDEST;
+    private int mFramePoolWidth;
+    private int mFramePoolHeight;
+    private int mFramePoolCropSize;
     private Matrix mFrameToCropTransform;
     private Matrix mCropToFrameTransform;
-    private boolean mComputingDetection = false;
-    int[] mRgbBytes;
 
-    public interface Listener {
-        public void onObjectDetected(LinkedList<Classifier.Recognition> recognitions,
-                                     int viewFinderWidth, int viewFinderHeight);
+    // Detections are post-processed and published on the inference thread; consumers subscribe
+    // to the DetectionBus on their own threads.
+    private final Executor mPublishExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+    private final RectF mLocation = new RectF();
+    private final String[] mResultLabels = new String[MAX_RESULTS];
+    private final float[] mResultScores = new float[MAX_RESULTS];
+    private final int[] mTrackableIndices = new int[MAX_PUBLISHED_DETECTIONS];
+    private final ObjectTracker mTracker = new ObjectTracker(TRACK_MATCH_IOU,
+            TRACK_MAX_CENTER_DISTANCE, TRACK_MAX_AGE_MS, TrackableObjects.getCount());
+    private DetectionCascade mCascade;
+    private volatile RgbFrameListener[] mRgbFrameListeners = new RgbFrameListener[0];
+    private volatile FrameQualityGate mQualityGate;
+    private ServoMotionModel mServoMotionModel;
+
+    // Live counters, read by the performance HUD
+    private volatile long mFrameCount;
+    private volatile long mDetectionCount;
+    private volatile long mConversionsSkipped;  // gated frames no one else wanted
+    private final long[] mInferenceTimes = new long[INFERENCE_TIME_SAMPLES];
+    private final Metrics.Histogram mInferenceHistogram =
+            new Metrics.Histogram(INFERENCE_BUCKETS_NS);
+
+    /**
+     * Shares the camera frames converted for detection with another consumer.
+     */
+    public interface RgbFrameListener {
+        /**
+         * Called on the frame source's thread with each frame passed to the detector. To use
+         * the frame after returning, retain() it and release() it when done; holding frames
+         * long starves the pool and drops frames.
+         */
+        void onRgbFrame(BufferPool.Buffer<FrameBuffer> frame);
     }
 
-    public CameraObjectRecognizer(Context context, Listener listener) {
+    /**
+     * @param detectionBus Receives trackable detections, classId being a TrackableObjects
+     *                     class id.
+     */
+    public CameraObjectRecognizer(Context context, DetectionBus detectionBus) {
         mContext = context;
-        mListener = listener;
+        mDetectionBus = detectionBus;
+        mFrameSource = new CameraFrameSource(context);
     }
 
-    public void onPause() {
-        closeCamera();
-        stopBackgroundThread();
+    /**
+     * Feeds the pipeline from another source, e.g. a RecordedFrameSource. Takes effect on the
+     * next resume.
+     */
+    public void setFrameSource(FrameSource frameSource) {
+        mFrameSource = frameSource;
     }
 
-    public void onResume() {
-        startBackgroundThread();
-        openCamera();
+    /**
+     * Records every frame delivered to the pipeline, or stops recording if null. The recorder
+     * is closed by the caller.
+     */
+    public synchronized void setFrameRecorder(FrameRecorder frameRecorder) {
+        mFrameRecorder = frameRecorder;
     }
 
-    private void startBackgroundThread() {
-        mBackgroundThread = new HandlerThread("BackgroundThread");
-        mBackgroundThread.start();
-        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+    /**
+     * Journals every detected frame and its detections, or stops if null.
+     */
+    public void setJournal(SessionJournalWriter journal) {
+        mJournal = journal;
     }
 
-    private void stopBackgroundThread() {
-        mBackgroundThread.quitSafely();
-        try {
-            mBackgroundThread.join();
-            mBackgroundThread = null;
-            mBackgroundHandler = null;
-        } catch (final InterruptedException e) {
-            Log.e(TAG, e.getMessage());
-        }
+    /**
+     * Skips detection on blurred frames, or runs it on every frame if gate is null.
+     *
+     * @param servoMotionModel Commanded head motion, or null to judge frames on sharpness alone.
+     */
+    public void setQualityGate(FrameQualityGate gate, ServoMotionModel servoMotionModel) {
+        mServoMotionModel = servoMotionModel;
+        mQualityGate = gate;
+    }
+
+    /** Frames the quality gate has skipped, and how many of those weren't even converted. */
+    public String getQualityGateStatString() {
+        final FrameQualityGate gate = mQualityGate;
+        return gate != null ? gate.getStatString() + ", " + mConversionsSkipped
+                + " conversions saved" : "off";
     }
 
-    private synchronized void runInBackground(final Runnable runnable) {
-        if (mBackgroundHandler != null) {
-            mBackgroundHandler.post(runnable);
+    /**
+     * Adds a receiver of the RGB frames taken for detection.
+     */
+    public synchronized void addRgbFrameListener(RgbFrameListener listener) {
+        final RgbFrameListener[] listeners = Arrays.copyOf(mRgbFrameListeners,
+                mRgbFrameListeners.length + 1);
+        listeners[mRgbFrameListeners.length] = listener;
+        mRgbFrameListeners = listeners;
+    }
+
+    public synchronized void removeRgbFrameListener(RgbFrameListener listener) {
+        final RgbFrameListener[] listeners = mRgbFrameListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                final RgbFrameListener[] remaining = new RgbFrameListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, remaining, 0, i);
+                System.arraycopy(listeners, i + 1, remaining, i, remaining.length - i);
+                mRgbFrameListeners = remaining;
+                return;
+            }
         }
     }
 
-    @Override
-    public void onImageAvailable(ImageReader imageReader) {
-        if (mComputingDetection) return;
-        mComputingDetection = true;
+    /** Frames delivered by the frame source. */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
 
-        final Image image = imageReader.acquireLatestImage();
-        if (image == null) return;
+    /** Frames the detector has finished. */
+    public long getDetectionCount() {
+        return mDetectionCount;
+    }
 
-        // Get the RGB frame
-        byte[][] yuvBytes = new byte[3][];
-        if (mRgbBytes == null) {
-            mRgbBytes = new int[mPreviewWidth * mPreviewHeight];
+    /**
+     * Copies the most recent inference times into out, which must hold
+     * getInferenceTimeCapacity() values.
+     *
+     * @return The number of times copied, in no particular order.
+     */
+    public int copyInferenceTimes(long[] out) {
+        synchronized (mInferenceTimes) {
+            final int n = (int) Math.min(mDetectionCount, INFERENCE_TIME_SAMPLES);
+            System.arraycopy(mInferenceTimes, 0, out, 0, n);
+            return n;
         }
-        final Image.Plane[] planes = image.getPlanes();
-        fillBytes(planes, yuvBytes);
-        int yRowStride = planes[0].getRowStride();
-        final int uvRowStride = planes[1].getRowStride();
-        final int uvPixelStride = planes[1].getPixelStride();
-        ImageUtils.convertYUV420ToARGB8888(
-                yuvBytes[0],
-                yuvBytes[1],
-                yuvBytes[2],
-                mPreviewWidth,
-                mPreviewHeight,
-                yRowStride,
-                uvRowStride,
-                uvPixelStride,
-                mRgbBytes);
-        mRgbFrameBitmap.setPixels(mRgbBytes, 0, mPreviewWidth, 0, 0,
-                mPreviewWidth, mPreviewHeight);
-
-        final Canvas canvas = new Canvas(mCroppedBitmap);
-        canvas.drawBitmap(mRgbFrameBitmap, mFrameToCropTransform, null);
+    }
 
-        image.close();
+    public static int getInferenceTimeCapacity() {
+        return INFERENCE_TIME_SAMPLES;
+    }
 
-        // Detect objects on background handler
-        runInBackground(
-                new Runnable() {
+    /**
+     * Exports the frame, inference and frame drop counters.
+     */
+    public void registerMetrics(Metrics metrics) {
+        metrics.addCounter("pixelbot_camera_frames_total", "Frames delivered by the camera",
+                new Metrics.Value() {
                     @Override
-                    public void run() {
-                        final List<Classifier.Recognition> results =
-                                mDetector.recognizeImage(mCroppedBitmap);
-
-                        final LinkedList<Classifier.Recognition> mappedRecognitions =
-                                new LinkedList<Classifier.Recognition>();
-
-                        for (final Classifier.Recognition result : results) {
-                            final RectF location = result.getLocation();
-                            if (location != null &&
-                                    result.getConfidence() >= MINIMUM_CONFIDENCE_TF_OD_API) {
-                                // Only include if it's one of our trackable objects
-                                for (int i = 0; i < TRACKABLE_OBJECTS.length; i++) {
-                                    if (result.getTitle().equals(TRACKABLE_OBJECTS[i])) {
-                                        mCropToFrameTransform.mapRect(location);
-                                        result.setLocation(location);
-                                        mappedRecognitions.add(result);
-                                        break;
-                                    }
-                                }
-                            }
-                        }
-                        if (mappedRecognitions.size() > 0) {
-                            mListener.onObjectDetected(mappedRecognitions, mPreviewWidth,
-                                    mPreviewHeight);
-                        }
-                        mComputingDetection = false;
+                    public long get() {
+                        return mFrameCount;
+                    }
+                });
+        metrics.addCounter("pixelbot_inferences_total", "Frames the detector has finished",
+                new Metrics.Value() {
+                    @Override
+                    public long get() {
+                        return mDetectionCount;
+                    }
+                });
+        metrics.addHistogram("pixelbot_inference_duration_seconds",
+                "Time the detector spent on a frame", mInferenceHistogram);
+        metrics.addCounter("pixelbot_frames_dropped_total",
+                "Camera frames skipped because every frame buffer was in use",
+                new Metrics.Value() {
+                    @Override
+                    public long get() {
+                        final BufferPool<FrameBuffer> pool = mFramePool;
+                        return pool != null ? pool.getDroppedNewestCount() : 0;
+                    }
+                });
+        metrics.addCounter("pixelbot_frames_reclaimed_total",
+                "Frames queued for detection dropped to make room for a newer one",
+                new Metrics.Value() {
+                    @Override
+                    public long get() {
+                        final BufferPool<FrameBuffer> pool = mFramePool;
+                        return pool != null ? pool.getDroppedOldestCount() : 0;
+                    }
+                });
+        metrics.addCounter("pixelbot_frames_skipped_blurred_total",
+                "Frames the quality gate kept from the detector as too blurred",
+                new Metrics.Value() {
+                    @Override
+                    public long get() {
+                        final FrameQualityGate gate = mQualityGate;
+                        return gate != null ? gate.getSkippedCount() : 0;
+                    }
+                });
+        metrics.addCounter("pixelbot_frame_conversions_skipped_total",
+                "Frames the quality gate skipped without converting them to RGB",
+                new Metrics.Value() {
+                    @Override
+                    public long get() {
+                        return mConversionsSkipped;
                     }
                 });
     }
 
-    private void openCamera() {
-        selectCamera();
+    /** Frame buffers currently held by the pipeline, or 0 before the first resume. */
+    public synchronized int getFramesInUse() {
+        return mFramePool != null ? mFramePool.getInUseCount() : 0;
+    }
 
-        // Create detector
-        int cropSize = TF_OD_API_INPUT_SIZE;
-        try {
-            mDetector = TensorFlowObjectDetectionAPIModel.create(
-                    mContext.getAssets(), TF_OD_API_MODEL_FILE, TF_OD_API_LABELS_FILE, TF_OD_API_INPUT_SIZE);
-        } catch (final IOException e) {
-            Log.e(TAG, "Exception initializing classifier!", e);
-            return;
+    public synchronized int getFramePoolCapacity() {
+        return mFramePool != null ? mFramePool.getCapacity() : 0;
+    }
+
+    /**
+     * Selects which frame is dropped when every frame buffer is in use: DROP_OLDEST cancels the
+     * frame queued for detection, DROP_NEWEST skips the incoming frame.
+     */
+    public synchronized void setFrameDropPolicy(BufferPool.Policy policy) {
+        mFrameDropPolicy = policy;
+        if (mFramePool != null) {
+            mFramePool.setPolicy(policy);
         }
+    }
 
-        // Calculate crop/rotate matrix to/from camera preview to/from TensorFlow inference
-        mRgbFrameBitmap = Bitmap.createBitmap(mPreviewWidth, mPreviewHeight,
-                Bitmap.Config.ARGB_8888);
-        mCroppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Bitmap.Config.ARGB_8888);
+    /** Frame buffer occupancy and drops. */
+    public synchronized String getFramePoolStatString() {
+        return mFramePool != null ? mFramePool.getStatString() : "no frames";
+    }
 
-        mFrameToCropTransform =
-                ImageUtils.getTransformationMatrix(
-                        mPreviewWidth, mPreviewHeight,
-                        cropSize, cropSize,
-                        0, false);  // assume landscape camera/display
-        mCropToFrameTransform = new Matrix();
-        mFrameToCropTransform.invert(mCropToFrameTransform);
+    /**
+     * Turns the fine classification stage (see DetectionCascade) on or off. Takes effect on the
+     * next resume.
+     */
+    public void setCascadeEnabled(boolean enabled) {
+        if (enabled && mCascade == null) {
+            mCascade = new DetectionCascade(mContext);
+        } else if (!enabled && mCascade != null) {
+            mCascade.close();
+            mCascade = null;
+        }
+    }
 
-        // Open camera - preview session is started via the state callback
-        final CameraManager manager =
-                (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
-        try {
-            manager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
-        } catch (final CameraAccessException e) {
-            Log.e(TAG, e.getMessage());
+    /**
+     * The fine label of a tracked object from the cascade, or null if there is none (yet).
+     *
+     * @param trackId A DetectionBus record's trackId.
+     */
+    public String getFineLabel(int trackId) {
+        final DetectionCascade cascade = mCascade;
+        return cascade != null ? cascade.getLabel(trackId) : null;
+    }
+
+    public FrameSource getFrameSource() {
+        return mFrameSource;
+    }
+
+    /** Horizontal field of view of the frame source in degrees. */
+    public float getHorizontalFov() {
+        return mFrameSource.getHorizontalFov();
+    }
+
+    /** Vertical field of view of the frame source in degrees. */
+    public float getVerticalFov() {
+        return mFrameSource.getVerticalFov();
+    }
+
+    public static int getTrackableObjectCount() {
+        return TrackableObjects.getCount();
+    }
+
+    public static String getTrackableObject(int classId) {
+        return TrackableObjects.getName(classId);
+    }
+
+    public void onPause() {
+        mFrameSource.stop();
+        if (mAsyncDetector != null) {
+            mAsyncDetector.cancelPending();
+        }
+        stopInferenceThread();
+        if (mCascade != null) {
+            mCascade.stop();
+            Log.i(TAG, "Cascade: " + mCascade.getStatString());
         }
+        Log.i(TAG, "Frame buffers: " + getFramePoolStatString());
+        Log.i(TAG, "Quality gate: " + getQualityGateStatString());
     }
 
-    private void selectCamera() {
-        final CameraManager manager =
-                (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
-        try {
-            for (final String cameraId : manager.getCameraIdList()) {
-                final CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+    public void onResume() {
+        startInferenceThread();
+        if (mCascade != null) {
+            mCascade.start();
+        }
+        openDetector();
+        mFrameSource.start(this);
+    }
 
-                final Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-                if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK) {
-                    continue;
-                }
+    public void onDestroy() {
+        closeDetectors();
+        if (mCascade != null) {
+            mCascade.close();
+        }
+    }
 
-                final StreamConfigurationMap map =
-                        characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+    /**
+     * Selects the detector backend (see DetectorBackends) and its inference thread count. Takes
+     * effect on the next resume.
+     */
+    public void setDetectorBackend(String backendName, int numThreads) {
+        DetectorBackends.get(backendName);  // fail fast on unknown names
+        mBackendName = backendName;
+        mNumThreads = numThreads;
+    }
 
-                if (map == null) {
-                    continue;
-                }
+    /**
+     * Runs a second backend side by side with the selected one on every frame and periodically
+     * logs latency and agreement between the two. Pass null to turn off. Takes effect on the
+     * next resume.
+     */
+    public void setComparisonBackend(String backendName) {
+        if (backendName != null) {
+            DetectorBackends.get(backendName);
+        }
+        mComparisonBackendName = backendName;
+    }
 
-                mCameraId = cameraId;
+    private void startInferenceThread() {
+        mInferenceThread = new HandlerThread("InferenceThread");
+        mInferenceThread.start();
+        mInferenceHandler = new Handler(mInferenceThread.getLooper());
+    }
+
+    private void stopInferenceThread() {
+        mInferenceThread.quitSafely();
+        try {
+            mInferenceThread.join();
+            synchronized (this) {
+                mInferenceThread = null;
+                mInferenceHandler = null;
             }
-        } catch (CameraAccessException e) {
-            Log.e(TAG, "Not allowed to access camera " + e.getMessage());
+        } catch (final InterruptedException e) {
+            Log.e(TAG, e.getMessage());
         }
     }
 
-    private void createCameraPreviewSession() {
-        try {
-            final CaptureRequest.Builder previewRequestBuilder =
-                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+    private synchronized void runInference(final Runnable runnable) {
+        if (mInferenceHandler != null) {
+            mInferenceHandler.post(runnable);
+        }
+    }
 
-            // Create the reader for the preview frames.
-            mPreviewReader =
-                    ImageReader.newInstance(
-                            mPreviewWidth, mPreviewHeight, ImageFormat.YUV_420_888, 2);
+    @Override
+    public void onFrameAvailable(Frame frame) {
+        synchronized (this) {
+            if (mFrameRecorder != null) {
+                mFrameRecorder.record(frame);
+            }
+        }
+        mFrameCount++;
+        final AsyncClassifier asyncDetector = mAsyncDetector;
+        if (asyncDetector == null) return;
+
+        // Blurred frames are not worth an inference, nor a buffer unless someone else wants them
+        final FrameQualityGate gate = mQualityGate;
+        boolean detect = true;
+        if (gate != null) {
+            final ServoMotionModel model = mServoMotionModel;
+            final long timestamp = frame.getTimestamp();
+            detect = gate.accept(timestamp,
+                    FrameQualityGate.sharpness(frame.getPlane(0), frame.getWidth(),
+                            frame.getHeight(), frame.getRowStride(0)),
+                    model != null ? model.getSpeed(timestamp, FrameQualityGate.MOTION_WINDOW_NS)
+                            : 0);
+        }
+        final RgbFrameListener[] rgbFrameListeners = mRgbFrameListeners;
+        if (!detect && mCascade == null && rgbFrameListeners.length == 0) {
+            mConversionsSkipped++;
+            return;
+        }
 
-            mPreviewReader.setOnImageAvailableListener(this, mBackgroundHandler);
-            previewRequestBuilder.addTarget(mPreviewReader.getSurface());
+        final BufferPool.Buffer<FrameBuffer> buffer = mFramePool.acquire();
+        if (buffer == null) return;
+        final FrameBuffer frameBuffer = buffer.get();
 
-            // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(
-                    Arrays.asList(mPreviewReader.getSurface()),
-                    new CameraCaptureSession.StateCallback() {
+        // Get the RGB frame
+        frameBuffer.copyPlanes(frame);
+        final int[] rgbBytes = frameBuffer.getRgbBytes();
+        ImageUtils.convertYUV420ToARGB8888(
+                frameBuffer.getYuvPlane(0),
+                frameBuffer.getYuvPlane(1),
+                frameBuffer.getYuvPlane(2),
+                mPreviewWidth,
+                mPreviewHeight,
+                frame.getRowStride(0),
+                frame.getRowStride(1),
+                frame.getPixelStride(1),
+                rgbBytes);
+        final Bitmap rgbFrameBitmap = frameBuffer.getRgbBitmap();
+        rgbFrameBitmap.setPixels(rgbBytes, 0, mPreviewWidth, 0, 0, mPreviewWidth, mPreviewHeight);
+        frameBuffer.getCropCanvas().drawBitmap(rgbFrameBitmap, mFrameToCropTransform, null);
+
+        // Detect objects on the inference thread, replacing any older frame still waiting. The
+        // request holds its own reference until inference is done with the crop.
+        if (detect) {
+            buffer.retain();
+            frameBuffer.mRequest = asyncDetector.submit(frameBuffer.getCrop(),
+                    frameBuffer.getTimestamp(), mDetectionCallback, mPublishExecutor,
+                    new Runnable() {
                         @Override
-                        public void onConfigured(final CameraCaptureSession cameraCaptureSession) {
-                            if (null == mCameraDevice) {
-                                return;
-                            }
-
-                            mCaptureSession = cameraCaptureSession;
-                            try {
-                                previewRequestBuilder.set(
-                                        CaptureRequest.CONTROL_AF_MODE,
-                                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-                                previewRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                                        CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-                                mPreviewRequest = previewRequestBuilder.build();
-                                mCaptureSession.setRepeatingRequest(
-                                        mPreviewRequest, mCaptureCallback, mBackgroundHandler);
-                            } catch (final CameraAccessException e) {
-                                Log.e(TAG, e.getMessage());
-                            }
+                        public void run() {
+                            frameBuffer.mRequest = null;
+                            buffer.release();
                         }
+                    });
+        }
 
-                        @Override
-                        public void onConfigureFailed(final CameraCaptureSession cameraCaptureSession) {
-                            Log.e(TAG, "Failed");
-                        }
-                    },
-                    null);
-        } catch (final CameraAccessException e) {
-            Log.e(TAG, e.getMessage());
+        // Then the other consumers of the frame, after detection is under way
+        if (mCascade != null) {
+            mCascade.onFrame(rgbFrameBitmap);  // crops a track from the previous detections
+        }
+        for (int i = 0; i < rgbFrameListeners.length; i++) {
+            rgbFrameListeners[i].onRgbFrame(buffer);
         }
+        buffer.release();
     }
 
-    private void closeCamera() {
-        if (null != mCaptureSession) {
-            mCaptureSession.close();
-            mCaptureSession = null;
+    // Frees a buffer for a newer frame by cancelling its detection if it hasn't started
+    private final BufferPool.Reclaimer<FrameBuffer> mFrameReclaimer =
+            new BufferPool.Reclaimer<FrameBuffer>() {
+        @Override
+        public void reclaim(BufferPool.Buffer<FrameBuffer> buffer) {
+            final AsyncClassifier.Request request = buffer.get().mRequest;
+            if (request != null) {
+                request.cancel(false);
+            }
+        }
+    };
+
+    private final AsyncClassifier.Callback mDetectionCallback = new AsyncClassifier.Callback() {
+        @Override
+        public void onRecognized(AsyncClassifier.Request request,
+                                 List<Classifier.Recognition> results) {
+            synchronized (mInferenceTimes) {
+                mInferenceTimes[(int) (mDetectionCount % INFERENCE_TIME_SAMPLES)] =
+                        request.getInferenceTimeNs();
+                mDetectionCount++;
+            }
+            mInferenceHistogram.observe(request.getInferenceTimeNs());
+            final DetectorBenchmark benchmark = mBenchmark;
+            if (benchmark != null && benchmark.getFrameCount() % BENCHMARK_LOG_INTERVAL == 0) {
+                Log.i(TAG, mComparisonBackendName + " vs " + mBackendName + ": "
+                        + benchmark.getStatString());
+            }
+
+            // Only include our trackable objects. They are selected before publishing, since
+            // every record carries the number of detections in its frame.
+            final int numResults = Math.min(results.size(), MAX_RESULTS);
+            for (int r = 0; r < numResults; r++) {
+                final Classifier.Recognition result = results.get(r);
+                mResultLabels[r] = result.getTitle();
+                mResultScores[r] = result.getConfidence();
+            }
+            final int count = TrackableObjects.select(mResultLabels, mResultScores, numResults,
+                    TrackableObjects.MIN_CONFIDENCE, mTrackableIndices);
+
+            final SessionJournalWriter journal = mJournal;
+            if (journal != null) {
+                journal.writeFrame(request.getTimestamp(), count, request.getInferenceTimeNs());
+            }
+            mTracker.beginFrame(request.getTimestamp());
+            for (int n = 0; n < count; n++) {
+                final Classifier.Recognition result = results.get(mTrackableIndices[n] >> 8);
+                final int detectedClassId = mTrackableIndices[n] & 0xFF;
+                mLocation.set(result.getLocation());
+                mCropToFrameTransform.mapRect(mLocation);
+                final float left = mLocation.left / mPreviewWidth;
+                final float top = mLocation.top / mPreviewHeight;
+                final float right = mLocation.right / mPreviewWidth;
+                final float bottom = mLocation.bottom / mPreviewHeight;
+                final int trackId = mTracker.update(detectedClassId, result.getConfidence(),
+                        left, top, right, bottom);
+                // Publish the track's label so consumers don't see the detector flicker
+                final int classId = mTracker.getVotedClassId();
+                mDetectionBus.publish(request.getTimestamp(), classId, result.getConfidence(),
+                        left, top, right, bottom, n, count, trackId);
+                if (journal != null) {
+                    journal.writeDetection(request.getTimestamp(), classId, trackId,
+                            result.getConfidence(), left, top, right, bottom);
+                }
+
+                // ImageNet has no people to tell apart
+                if (mCascade != null && classId != TrackableObjects.PERSON && trackId != 0) {
+                    mCascade.onDetection(trackId, left, top, right, bottom);
+                }
+            }
+            if (count > 0) {
+                mDetectionBus.signal();
+            }
         }
-        if (null != mCameraDevice) {
-            mCameraDevice.close();
-            mCameraDevice = null;
+    };
+
+    private void openDetector() {
+        // Create detector. It is kept across pause/resume unless the backend selection changed.
+        if (!mBackendName.equals(mLoadedBackendName) || mNumThreads != mLoadedNumThreads) {
+            closeDetectors();
         }
-        if (null != mPreviewReader) {
-            mPreviewReader.close();
-            mPreviewReader = null;
+        if (mDetector == null) {
+            try {
+                mDetector = createDetector(mBackendName);
+                mLoadedBackendName = mBackendName;
+                mLoadedNumThreads = mNumThreads;
+            } catch (final IOException e) {
+                Log.e(TAG, "Exception initializing classifier!", e);
+                return;
+            }
         }
+        updateComparisonDetector();
+        mAsyncDetector = new AsyncClassifier(mBenchmark != null ? mBenchmark : mDetector,
+                new Executor() {
+                    @Override
+                    public void execute(Runnable runnable) {
+                        runInference(runnable);
+                    }
+                });
+        int cropSize = DetectorBackends.get(mBackendName).getInputSize();
+
+        // Calculate crop/rotate matrix to/from camera preview to/from TensorFlow inference
+        mPreviewWidth = mFrameSource.getWidth();
+        mPreviewHeight = mFrameSource.getHeight();
+        createFramePool(mPreviewWidth, mPreviewHeight, cropSize);
+
+        mFrameToCropTransform =
+                ImageUtils.getTransformationMatrix(
+                        mPreviewWidth, mPreviewHeight,
+                        cropSize, cropSize,
+                        0, false);  // assume landscape camera/display
+        mCropToFrameTransform = new Matrix();
+        mFrameToCropTransform.invert(mCropToFrameTransform);
     }
 
-    protected void fillBytes(final Image.Plane[] planes, final byte[][] yuvBytes) {
-        for (int i = 0; i < planes.length; ++i) {
-            final ByteBuffer buffer = planes[i].getBuffer();
-            if (yuvBytes[i] == null) {
-                yuvBytes[i] = new byte[buffer.capacity()];
-            }
-            buffer.get(yuvBytes[i]);
+    // Buffers are kept across resumes unless the frame or crop size changed. Frames still held
+    // from a replaced pool are released to it and dropped with it.
+    private synchronized void createFramePool(final int width, final int height,
+                                              final int cropSize) {
+        if (mFramePool != null && width == mFramePoolWidth && height == mFramePoolHeight
+                && cropSize == mFramePoolCropSize) {
+            return;
         }
+        mFramePool = new BufferPool<FrameBuffer>(NUM_FRAME_BUFFERS,
+                new BufferPool.Factory<FrameBuffer>() {
+                    @Override
+                    public FrameBuffer create() {
+                        return new FrameBuffer(width, height, cropSize);
+                    }
+                }, mFrameDropPolicy);
+        mFramePool.setReclaimer(mFrameReclaimer);
+        mFramePoolWidth = width;
+        mFramePoolHeight = height;
+        mFramePoolCropSize = cropSize;
     }
 
-    private final CameraDevice.StateCallback mStateCallback =
-            new CameraDevice.StateCallback() {
-                @Override
-                public void onOpened(final CameraDevice cd) {
-                    mCameraDevice = cd;
-                    createCameraPreviewSession();
-                }
+    private Classifier createDetector(String backendName) throws IOException {
+        final Runtime runtime = Runtime.getRuntime();
+        final long startHeap = runtime.totalMemory() - runtime.freeMemory();
+        final long startNativeHeap = Debug.getNativeHeapAllocatedSize();
+        final long startTime = SystemClock.elapsedRealtime();
+
+        final Classifier detector = DetectorBackends.get(backendName).create(
+                mContext.getAssets(), mContext.getFilesDir(), mNumThreads);
+
+        // No GC is forced, so the Java heap delta includes the transient model copy (peak)
+        Log.i(TAG, String.format("Detector %s (%d threads) loaded in %d ms, "
+                        + "Java heap %+d KB, native heap %+d KB", backendName, mNumThreads,
+                SystemClock.elapsedRealtime() - startTime,
+                (runtime.totalMemory() - runtime.freeMemory() - startHeap) / 1024,
+                (Debug.getNativeHeapAllocatedSize() - startNativeHeap) / 1024));
+        return detector;
+    }
 
-                @Override
-                public void onDisconnected(final CameraDevice cd) {
-                    cd.close();
-                    mCameraDevice = null;
-                }
+    private void updateComparisonDetector() {
+        if (mBenchmark != null && mBenchmark.getReference() == mDetector
+                && mComparisonBackendName != null
+                && mComparisonBackendName.equals(mLoadedComparisonBackendName)) {
+            return;  // already comparing against the loaded detector
+        }
+        if (mComparisonDetector != null) {
+            mComparisonDetector.close();
+            mComparisonDetector = null;
+            mBenchmark = null;
+        }
+        if (mComparisonBackendName == null || mDetector == null) return;
 
-                @Override
-                public void onError(final CameraDevice cd, final int error) {
-                    cd.close();
-                    mCameraDevice = null;
-                }
-            };
-
-    private final CameraCaptureSession.CaptureCallback mCaptureCallback =
-            new CameraCaptureSession.CaptureCallback() {
-                @Override
-                public void onCaptureProgressed(
-                        final CameraCaptureSession session,
-                        final CaptureRequest request,
-                        final CaptureResult partialResult) {}
-
-                @Override
-                public void onCaptureCompleted(
-                        final CameraCaptureSession session,
-                        final CaptureRequest request,
-                        final TotalCaptureResult result) {}
-            };
+        if (DetectorBackends.get(mComparisonBackendName).getInputSize()
+                != DetectorBackends.get(mBackendName).getInputSize()) {
+            Log.e(TAG, "Can't compare backends with different input sizes");
+            return;
+        }
+        try {
+            mComparisonDetector = createDetector(mComparisonBackendName);
+            mLoadedComparisonBackendName = mComparisonBackendName;
+            mBenchmark = new DetectorBenchmark(mDetector, mComparisonDetector,
+                    TrackableObjects.MIN_CONFIDENCE);
+        } catch (final IOException e) {
+            Log.e(TAG, "Exception initializing comparison classifier!", e);
+        }
+    }
+
+    private void closeDetectors() {
+        mAsyncDetector = null;
+        if (mComparisonDetector != null) {
+            mComparisonDetector.close();
+            mComparisonDetector = null;
+            mBenchmark = null;
+        }
+        if (mDetector != null) {
+            mDetector.close();
+            mDetector = null;
+            mLoadedBackendName = null;
+        }
+    }
 }
@@ -0,0 +1,254 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import android.os.Handler;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Delivers detections from a single producer to any number of subscribers without copying or
+ * allocating per event. Detections are stored as primitive records in a preallocated ring and
+ * each subscriber reads at its own cursor. The producer never waits: a subscriber that falls a
+ * full ring behind skips ahead and counts the records it missed.
+ *
+ * Records for one frame are published in confidence order and share the frame timestamp; index
+ * and count give the record's position within the frame, and trackId identifies the object
+ * across frames (see ObjectTracker), or is 0 for a detection left untracked. Boxes are
+ * normalized to [0, 1] of the camera frame.
+ */
+public class DetectionBus {
+    // Per-record int fields, floats are stored as raw int bits
+    private static final int FIELD_CLASS_ID = 0;
+    private static final int FIELD_SCORE = 1;
+    private static final int FIELD_LEFT = 2;
+    private static final int FIELD_TOP = 3;
+    private static final int FIELD_RIGHT = 4;
+    private static final int FIELD_BOTTOM = 5;
+    private static final int FIELD_INDEX = 6;
+    private static final int FIELD_COUNT = 7;
+    private static final int FIELD_TRACK_ID = 8;
+    private static final int FIELDS_PER_RECORD = 9;
+
+    private final int mCapacity;
+    private final int mMask;
+    // Sequence number of the record held by each slot, -1 while it is being written. Every field
+    // is accessed through an atomic array so a reader can detect a record overwritten under it.
+    private final AtomicLongArray mSequences;
+    private final AtomicLongArray mTimestamps;
+    private final AtomicIntegerArray mFields;
+    private final AtomicLong mPublished = new AtomicLong();
+    private volatile Subscriber[] mSubscribers = new Subscriber[0];
+
+    /**
+     * A detection record, filled in place by Subscriber.poll().
+     */
+    public static class Record {
+        public long timestamp;
+        public int classId;
+        public float score;
+        public float left;
+        public float top;
+        public float right;
+        public float bottom;
+        public int index;
+        public int count;
+        public int trackId;
+
+        public float centerX() {
+            return (left + right) / 2;
+        }
+
+        public float centerY() {
+            return (top + bottom) / 2;
+        }
+
+        public float area() {
+            return (right - left) * (bottom - top);
+        }
+
+        public void set(Record other) {
+            timestamp = other.timestamp;
+            classId = other.classId;
+            score = other.score;
+            left = other.left;
+            top = other.top;
+            right = other.right;
+            bottom = other.bottom;
+            index = other.index;
+            count = other.count;
+            trackId = other.trackId;
+        }
+    }
+
+    /**
+     * A reader with its own cursor into the ring. Not thread safe: poll from one thread.
+     */
+    public class Subscriber {
+        private final Handler mHandler;
+        private final AtomicBoolean mWakePending = new AtomicBoolean();
+        private final Runnable mDrain;
+        private long mCursor;
+        private long mDropped;
+
+        private Subscriber(Handler handler, final Runnable onAvailable) {
+            mHandler = handler;
+            mCursor = mPublished.get();
+            mDrain = new Runnable() {
+                @Override
+                public void run() {
+                    mWakePending.set(false);
+                    onAvailable.run();
+                }
+            };
+        }
+
+        /**
+         * Copies the next record into out.
+         *
+         * @return false if the subscriber has caught up with the producer.
+         */
+        public boolean poll(Record out) {
+            while (true) {
+                final long published = mPublished.get();
+                if (mCursor >= published) return false;
+                if (published - mCursor > mCapacity) {
+                    mDropped += published - mCapacity - mCursor;
+                    mCursor = published - mCapacity;
+                }
+
+                final int slot = (int) (mCursor & mMask);
+                final int base = slot * FIELDS_PER_RECORD;
+                if (mSequences.get(slot) == mCursor) {
+                    out.timestamp = mTimestamps.get(slot);
+                    out.classId = mFields.get(base + FIELD_CLASS_ID);
+                    out.score = Float.intBitsToFloat(mFields.get(base + FIELD_SCORE));
+                    out.left = Float.intBitsToFloat(mFields.get(base + FIELD_LEFT));
+                    out.top = Float.intBitsToFloat(mFields.get(base + FIELD_TOP));
+                    out.right = Float.intBitsToFloat(mFields.get(base + FIELD_RIGHT));
+                    out.bottom = Float.intBitsToFloat(mFields.get(base + FIELD_BOTTOM));
+                    out.index = mFields.get(base + FIELD_INDEX);
+                    out.count = mFields.get(base + FIELD_COUNT);
+                    out.trackId = mFields.get(base + FIELD_TRACK_ID);
+                    if (mSequences.get(slot) == mCursor) {
+                        mCursor++;
+                        return true;
+                    }
+                }
+                // Lapped by the producer while reading, the loop above skips ahead
+                mDropped++;
+                mCursor++;
+            }
+        }
+
+        /** Number of records overwritten before this subscriber could read them. */
+        public long getDroppedCount() {
+            return mDropped;
+        }
+
+        private void wake() {
+            if (mHandler != null && mWakePending.compareAndSet(false, true)) {
+                mHandler.post(mDrain);
+            }
+        }
+    }
+
+    /**
+     * @param capacity Number of records held, rounded up to a power of two.
+     */
+    public DetectionBus(int capacity) {
+        mCapacity = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mMask = mCapacity - 1;
+        mSequences = new AtomicLongArray(mCapacity);
+        mTimestamps = new AtomicLongArray(mCapacity);
+        mFields = new AtomicIntegerArray(mCapacity * FIELDS_PER_RECORD);
+        for (int i = 0; i < mCapacity; i++) {
+            mSequences.set(i, -1);
+        }
+    }
+
+    /**
+     * Subscribes to records published from now on.
+     *
+     * @param handler Handler onAvailable is posted to when new records are signalled, or null to
+     *                only poll.
+     * @param onAvailable Drains the subscriber with poll(). Posts are coalesced, so it must read
+     *                    until poll() returns false.
+     */
+    public synchronized Subscriber subscribe(Handler handler, Runnable onAvailable) {
+        final Subscriber subscriber = new Subscriber(handler, onAvailable);
+        final Subscriber[] subscribers = new Subscriber[mSubscribers.length + 1];
+        System.arraycopy(mSubscribers, 0, subscribers, 0, mSubscribers.length);
+        subscribers[mSubscribers.length] = subscriber;
+        mSubscribers = subscribers;
+        return subscriber;
+    }
+
+    public synchronized void unsubscribe(Subscriber subscriber) {
+        final Subscriber[] subscribers = mSubscribers;
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i] == subscriber) {
+                final Subscriber[] remaining = new Subscriber[subscribers.length - 1];
+                System.arraycopy(subscribers, 0, remaining, 0, i);
+                System.arraycopy(subscribers, i + 1, remaining, i, remaining.length - i);
+                mSubscribers = remaining;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Appends a record. Must only be called from the producer thread.
+     */
+    public void publish(long timestamp, int classId, float score, float left, float top,
+                        float right, float bottom, int index, int count, int trackId) {
+        final long sequence = mPublished.get();
+        final int slot = (int) (sequence & mMask);
+        final int base = slot * FIELDS_PER_RECORD;
+        mSequences.set(slot, -1);
+        mTimestamps.set(slot, timestamp);
+        mFields.set(base + FIELD_CLASS_ID, classId);
+        mFields.set(base + FIELD_SCORE, Float.floatToRawIntBits(score));
+        mFields.set(base + FIELD_LEFT, Float.floatToRawIntBits(left));
+        mFields.set(base + FIELD_TOP, Float.floatToRawIntBits(top));
+        mFields.set(base + FIELD_RIGHT, Float.floatToRawIntBits(right));
+        mFields.set(base + FIELD_BOTTOM, Float.floatToRawIntBits(bottom));
+        mFields.set(base + FIELD_INDEX, index);
+        mFields.set(base + FIELD_COUNT, count);
+        mFields.set(base + FIELD_TRACK_ID, trackId);
+        mSequences.set(slot, sequence);
+        mPublished.set(sequence + 1);
+    }
+
+    /**
+     * Wakes subscribers that have a handler, typically once per frame after its records are
+     * published.
+     */
+    public void signal() {
+        final Subscriber[] subscribers = mSubscribers;
+        for (int i = 0; i < subscribers.length; i++) {
+            subscribers[i].wake();
+        }
+    }
+
+    /** Total number of records published. */
+    public long getPublishedCount() {
+        return mPublished.get();
+    }
+}
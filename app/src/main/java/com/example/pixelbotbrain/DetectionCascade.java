@@ -0,0 +1,312 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.pixelbotbrain.tensorflow.AsyncClassifier;
+import com.example.pixelbotbrain.tensorflow.Classifier;
+import com.example.pixelbotbrain.tensorflow.ModelLoader;
+import com.example.pixelbotbrain.tensorflow.TensorFlowImageClassifier;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Optional second detection stage that names tracked objects more finely with an ImageNet
+ * classifier, e.g. "golden retriever" rather than "dog". A track's box is cropped from the
+ * camera frame and classified once, when the track appears or its box has changed a lot since,
+ * and the label is cached by track id, so in steady state the cascade costs a lookup per
+ * detection. One crop is classified at a time on a background priority thread, so the detector
+ * always comes first.
+ *
+ * The model isn't bundled: push tensorflow_inception_graph.pb from the TensorFlow Android demo
+ * to the app's files directory (see ModelLoader.resolve) or add it to the assets. Without it
+ * the cascade is disabled.
+ */
+public class DetectionCascade {
+    private static final String TAG = "DetectionCascade";
+
+    private static final String MODEL_FILE =
+            "file:///android_asset/tensorflow_inception_graph.pb";
+    private static final String LABELS_FILE =
+            "file:///android_asset/imagenet_comp_graph_label_strings.txt";
+    private static final int INPUT_SIZE = 224;
+    private static final float IMAGE_MEAN = 117;
+    private static final float IMAGE_STD = 1;
+    private static final String INPUT_NAME = "input";
+    private static final String OUTPUT_NAME = "output";
+
+    private static final float MINIMUM_CONFIDENCE = 0.3f;
+    private static final float RECLASSIFY_IOU = 0.5f;  // below this the box has changed a lot
+    private static final float CROP_MARGIN = 0.1f;  // of the box size, on each side
+    private static final int CACHE_SIZE = 2 * ObjectTracker.MAX_TRACKS;
+
+    private final Context mContext;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private volatile AsyncClassifier mClassifier;
+    private boolean mModelFailed;
+
+    // Used by the camera thread while no crop is being classified, then by the cascade thread
+    private final Bitmap mCrop = Bitmap.createBitmap(INPUT_SIZE, INPUT_SIZE,
+            Bitmap.Config.ARGB_8888);
+    private final Canvas mCropCanvas = new Canvas(mCrop);
+    private final Paint mCropPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mCropSource = new Rect();
+    private final RectF mCropDest = new RectF(0, 0, INPUT_SIZE, INPUT_SIZE);
+    private final float[] mCropBox = new float[4];
+    private AsyncClassifier.Request mCropRequest;
+    private volatile int mCropTrackId;
+    private volatile long mCropTime;
+
+    // Cache entries, each the box a track was classified at and its label once known. Guarded
+    // by this.
+    private final int[] mTrackIds = new int[CACHE_SIZE];
+    private final float[] mBoxes = new float[CACHE_SIZE * 4];
+    private final String[] mLabels = new String[CACHE_SIZE];
+    private final long[] mLastUsed = new long[CACHE_SIZE];
+    private long mUseCount;
+    private int mPendingTrackId;
+    private final float[] mPendingBox = new float[4];
+
+    // Stats, guarded by this
+    private long mLookups;
+    private int mClassifications;
+    private int mLabelled;
+    private long mClassifyTimeNs;
+
+    public DetectionCascade(Context context) {
+        mContext = context;
+    }
+
+    public void start() {
+        mThread = new HandlerThread("CascadeThread", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        synchronized (this) {
+            mHandler = new Handler(mThread.getLooper());
+        }
+        // Loaded on the cascade thread so TensorFlow's threads inherit its priority
+        mHandler.post(mOpenClassifier);
+    }
+
+    public void stop() {
+        final AsyncClassifier classifier = mClassifier;
+        if (classifier != null) {
+            classifier.cancelPending();
+        }
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (final InterruptedException e) {
+            Log.e(TAG, e.getMessage());
+        }
+        synchronized (this) {
+            mThread = null;
+            mHandler = null;
+            mPendingTrackId = 0;
+            // Forget crops that never got a label so they are retried
+            for (int i = 0; i < CACHE_SIZE; i++) {
+                if (mLabels[i] == null) {
+                    mTrackIds[i] = 0;
+                }
+            }
+        }
+    }
+
+    public void close() {
+        final AsyncClassifier classifier = mClassifier;
+        mClassifier = null;
+        if (classifier != null) {
+            classifier.getClassifier().close();
+        }
+    }
+
+    /**
+     * Notes a detection of a track in the current frame, requesting a crop of it if the track
+     * hasn't been classified at a similar box. Called on the inference thread.
+     *
+     * @param trackId Track id from ObjectTracker.
+     */
+    public synchronized void onDetection(int trackId, float left, float top, float right,
+                                         float bottom) {
+        if (mClassifier == null) return;
+        mLookups++;
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            if (mTrackIds[i] == trackId) {
+                mLastUsed[i] = ++mUseCount;
+                if (ObjectTracker.iou(mBoxes, i * 4, left, top, right, bottom)
+                        >= RECLASSIFY_IOU) {
+                    return;
+                }
+                mTrackIds[i] = 0;  // moved on, classify again
+                break;
+            }
+        }
+        // One crop waits at a time; other tracks ask again on a later frame
+        if (mPendingTrackId != 0) return;
+        mPendingTrackId = trackId;
+        mPendingBox[0] = left;
+        mPendingBox[1] = top;
+        mPendingBox[2] = right;
+        mPendingBox[3] = bottom;
+    }
+
+    /**
+     * The fine label of a track, or null if it hasn't been classified confidently.
+     */
+    public synchronized String getLabel(int trackId) {
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            if (mTrackIds[i] == trackId) return mLabels[i];
+        }
+        return null;
+    }
+
+    /**
+     * Crops the pending track from the camera frame and queues it for classification if no
+     * crop is in progress. Called on the camera thread after each frame is converted.
+     *
+     * @param frame The RGB camera frame, which boxes are normalized to.
+     */
+    public void onFrame(Bitmap frame) {
+        final AsyncClassifier classifier = mClassifier;
+        if (classifier == null || (mCropRequest != null && !mCropRequest.isDone())) return;
+
+        final int trackId;
+        synchronized (this) {
+            if (mPendingTrackId == 0) return;
+            trackId = mPendingTrackId;
+            mPendingTrackId = 0;
+            System.arraycopy(mPendingBox, 0, mCropBox, 0, 4);
+        }
+
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        final float marginX = (mCropBox[2] - mCropBox[0]) * CROP_MARGIN;
+        final float marginY = (mCropBox[3] - mCropBox[1]) * CROP_MARGIN;
+        mCropSource.set(
+                Math.max(0, (int) ((mCropBox[0] - marginX) * width)),
+                Math.max(0, (int) ((mCropBox[1] - marginY) * height)),
+                Math.min(width, (int) ((mCropBox[2] + marginX) * width)),
+                Math.min(height, (int) ((mCropBox[3] + marginY) * height)));
+        if (mCropSource.isEmpty()) return;
+        synchronized (this) {
+            addEntry(trackId, mCropBox);
+        }
+        mCropCanvas.drawBitmap(frame, mCropSource, mCropDest, mCropPaint);
+
+        mCropTrackId = trackId;
+        mCropTime = SystemClock.elapsedRealtimeNanos();
+        mCropRequest = classifier.submit(mCrop, mCropTime, mClassified, mDirectExecutor);
+    }
+
+    public synchronized String getStatString() {
+        return String.format("%d lookups, %d classified (%.1f ms mean), %d labelled",
+                mLookups, mClassifications,
+                mClassifications == 0 ? 0 : mClassifyTimeNs / 1e6 / mClassifications, mLabelled);
+    }
+
+    // Replaces the least recently used entry. Guarded by this.
+    private void addEntry(int trackId, float[] box) {
+        int slot = 0;
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            if (mTrackIds[i] == 0) {
+                slot = i;
+                break;
+            }
+            if (mLastUsed[i] < mLastUsed[slot]) {
+                slot = i;
+            }
+        }
+        mTrackIds[slot] = trackId;
+        System.arraycopy(box, 0, mBoxes, slot * 4, 4);
+        mLabels[slot] = null;
+        mLastUsed[slot] = ++mUseCount;
+    }
+
+    private final Executor mDirectExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private final AsyncClassifier.Callback mClassified = new AsyncClassifier.Callback() {
+        @Override
+        public void onRecognized(AsyncClassifier.Request request,
+                                 List<Classifier.Recognition> results) {
+            final int trackId = mCropTrackId;
+            final long time = SystemClock.elapsedRealtimeNanos() - mCropTime;
+            final Classifier.Recognition best = results.isEmpty() ? null : results.get(0);
+            final boolean confident = best != null && best.getConfidence() >= MINIMUM_CONFIDENCE;
+            synchronized (DetectionCascade.this) {
+                mClassifications++;
+                mClassifyTimeNs += time;
+                if (confident) {
+                    mLabelled++;
+                    for (int i = 0; i < CACHE_SIZE; i++) {
+                        if (mTrackIds[i] == trackId) {
+                            mLabels[i] = best.getTitle();
+                            break;
+                        }
+                    }
+                }
+            }
+            if (confident) {
+                Log.d(TAG, String.format("Track %d is a %s (%.2f), %.1f ms", trackId,
+                        best.getTitle(), best.getConfidence(), time / 1e6));
+            }
+        }
+    };
+
+    private final Runnable mOpenClassifier = new Runnable() {
+        @Override
+        public void run() {
+            if (mClassifier != null || mModelFailed) return;
+            try {
+                final String modelFile = ModelLoader.resolve(mContext.getFilesDir(), MODEL_FILE);
+                final Classifier classifier = TensorFlowImageClassifier.create(
+                        mContext.getAssets(), ModelLoader.map(mContext.getAssets(), modelFile),
+                        LABELS_FILE, INPUT_SIZE, IMAGE_MEAN, IMAGE_STD, INPUT_NAME, OUTPUT_NAME);
+                mClassifier = new AsyncClassifier(classifier, new Executor() {
+                    @Override
+                    public void execute(Runnable runnable) {
+                        synchronized (DetectionCascade.this) {
+                            if (mHandler != null) {
+                                mHandler.post(runnable);
+                            }
+                        }
+                    }
+                });
+                Log.i(TAG, "Fine classification enabled");
+            } catch (final IOException e) {
+                Log.w(TAG, "Cascade disabled, can't load " + MODEL_FILE + ": " + e.getMessage());
+                mModelFailed = true;
+            }
+        }
+    };
+}
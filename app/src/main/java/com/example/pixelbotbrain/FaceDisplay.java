@@ -0,0 +1,35 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+/**
+ * A view that shows Pixelbot's face.
+ */
+public interface FaceDisplay {
+    /**
+     * Starts a blink. May be called from any thread.
+     */
+    void blink();
+
+    /**
+     * Points the eyes at a position in the camera frame, normalized to [0, 1]. The eyes ease
+     * toward the latest target and look ahead again if no new target arrives for a while.
+     */
+    void setGazeTarget(float x, float y);
+
+    /** Frame timing of the face animation. */
+    String getStatString();
+}
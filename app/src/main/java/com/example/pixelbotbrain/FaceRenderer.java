@@ -0,0 +1,273 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Face animation state and drawing, shared by the face views. The eye artwork is rendered once
+ * into a bitmap; animate() advances blink and gaze to a frame time and draw() paints the face.
+ * Views that move the eyes themselves draw each one at rest with drawLeftEye() and
+ * drawRightEye() and offset it by getGazeX() and getGazeY(). Not thread safe: the owning view
+ * drives it from a single thread.
+ */
+class FaceRenderer {
+    private static final int EYE_W = 700;
+    private static final int EYE_H = (int) (EYE_W * 0.7);
+    private static final int EYE_ANGLE = 10;
+    private static final long BLINK_PHASE_NS = 175000000L;
+
+    // Eyes shift up to this far (px) toward what the camera is tracking
+    private static final float MAX_GAZE_X = 80;
+    private static final float MAX_GAZE_Y = 50;
+    private static final double GAZE_TIME_CONSTANT_NS = 120000000.0;
+    private static final float GAZE_SETTLED_PX = 0.5f;
+
+    /** Look ahead again after this long without a gaze target. */
+    static final long GAZE_TIMEOUT_MS = 1500;
+
+    private static final int EYE_STATE_IDLE = 0;
+    private static final int EYE_STATE_CLOSING = 1;
+    private static final int EYE_STATE_OPENING = 2;
+    private int mEyeState = EYE_STATE_IDLE;
+
+    private Paint mPaint = new Paint();
+    private long mStartTime;
+    private int mSubsequentBlinks = 0;
+    private float mEyelidFraction;  // 0 open, 1 closed
+
+    private Bitmap mEyeBitmap;
+    private final RectF mLeftEye = new RectF();
+    private final RectF mRightEye = new RectF();
+    private final RectF mEyelid = new RectF();
+    private final Rect mLeftBounds = new Rect();
+    private final Rect mRightBounds = new Rect();
+    private long mFramePeriodNs = 16666667L;
+
+    // Eye offset in px, eased toward the target
+    private float mGazeX;
+    private float mGazeY;
+    private float mGazeTargetX;
+    private float mGazeTargetY;
+    private long mLastGazeFrameTime;
+
+    void setSize(int w, int h) {
+        int x1 = w / 4;
+        int x2 = w * 3 / 4;
+        int y = h / 2;
+        mLeftEye.set(x1 - EYE_W/2, y - EYE_H/2, x1 + EYE_W/2, y + EYE_H/2);
+        mRightEye.set(x2 - EYE_W/2, y - EYE_H/2, x2 + EYE_W/2, y + EYE_H/2);
+        eyeBounds(mLeftEye, EYE_ANGLE, mLeftBounds);
+        eyeBounds(mRightEye, -EYE_ANGLE, mRightBounds);
+
+        if (mEyeBitmap == null) {
+            mEyeBitmap = renderEye();
+        }
+    }
+
+    void setFramePeriod(long framePeriodNs) {
+        mFramePeriodNs = framePeriodNs;
+    }
+
+    long getFramePeriod() {
+        return mFramePeriodNs;
+    }
+
+    /** Screen bounds of the left eye looking ahead. */
+    Rect getLeftBounds() {
+        return mLeftBounds;
+    }
+
+    /** Screen bounds of the right eye looking ahead. */
+    Rect getRightBounds() {
+        return mRightBounds;
+    }
+
+    /** Horizontal offset of the eyes from looking ahead, in px. */
+    float getGazeX() {
+        return mGazeX;
+    }
+
+    /** Vertical offset of the eyes from looking ahead, in px. */
+    float getGazeY() {
+        return mGazeY;
+    }
+
+    /** 0 with the eyes open, 1 closed. */
+    float getEyelidFraction() {
+        return mEyelidFraction;
+    }
+
+    /**
+     * Points the eyes at a position in the camera frame, normalized to [0, 1].
+     */
+    void setGazeTarget(float x, float y) {
+        // Mirror horizontally like the pan servo: the camera faces the same way as the screen
+        mGazeTargetX = clamp(-2 * (x - 0.5f)) * MAX_GAZE_X;
+        mGazeTargetY = clamp(2 * (y - 0.5f)) * MAX_GAZE_Y;
+    }
+
+    void lookAhead() {
+        mGazeTargetX = 0;
+        mGazeTargetY = 0;
+    }
+
+    /**
+     * @return false if a blink is already in progress.
+     */
+    boolean startBlink() {
+        if (mEyeState != EYE_STATE_IDLE) return false;
+        mEyeState = EYE_STATE_CLOSING;
+        mStartTime = 0;  // set by the first frame
+        return true;
+    }
+
+    boolean isBlinking() {
+        return mEyeState != EYE_STATE_IDLE;
+    }
+
+    /**
+     * Advances the animations to a frame time.
+     *
+     * @return true while another frame is needed.
+     */
+    boolean animate(long frameTimeNanos) {
+        final boolean gazing = animateGaze(frameTimeNanos);
+        if (mEyeState != EYE_STATE_IDLE) {
+            if (mStartTime == 0) {
+                mStartTime = frameTimeNanos;
+            }
+            animateBlink(frameTimeNanos);
+        }
+        return gazing || mEyeState != EYE_STATE_IDLE;
+    }
+
+    // Eases the eyes toward the gaze target, returns false once they have settled
+    private boolean animateGaze(long frameTimeNanos) {
+        final float dx = mGazeTargetX - mGazeX;
+        final float dy = mGazeTargetY - mGazeY;
+        if (Math.abs(dx) < GAZE_SETTLED_PX && Math.abs(dy) < GAZE_SETTLED_PX) {
+            mGazeX = mGazeTargetX;
+            mGazeY = mGazeTargetY;
+            mLastGazeFrameTime = 0;
+            return false;
+        }
+
+        final long interval = mLastGazeFrameTime == 0 ? mFramePeriodNs
+                : frameTimeNanos - mLastGazeFrameTime;
+        mLastGazeFrameTime = frameTimeNanos;
+        final float k = (float) (1.0 - Math.exp(-interval / GAZE_TIME_CONSTANT_NS));
+        mGazeX += dx * k;
+        mGazeY += dy * k;
+        return true;
+    }
+
+    private void animateBlink(long frameTimeNanos) {
+        double fraction = (frameTimeNanos - mStartTime) / (double) BLINK_PHASE_NS;
+
+        if (fraction > 0.95) {
+            if (mEyeState == EYE_STATE_CLOSING) {
+                mEyeState = EYE_STATE_OPENING;
+                mStartTime = frameTimeNanos;
+                fraction = 0;
+            } else if (mEyeState == EYE_STATE_OPENING) {
+                mSubsequentBlinks++;
+                if (Math.random() < 0.33 && mSubsequentBlinks < 2) {
+                    mEyeState = EYE_STATE_CLOSING;
+                    mStartTime = frameTimeNanos;
+                    fraction = 0;
+                } else {
+                    mEyeState = EYE_STATE_IDLE;
+                    mSubsequentBlinks = 0;
+                    mEyelidFraction = 0;
+                    return;
+                }
+            }
+        }
+        mEyelidFraction = (float) (mEyeState == EYE_STATE_CLOSING ? fraction : 1.0 - fraction);
+    }
+
+    void draw(Canvas canvas) {
+        // Make screen black
+        canvas.drawColor(Color.BLACK);
+
+        // Draw eyes
+        drawEye(mLeftEye, EYE_ANGLE, mGazeX, mGazeY, canvas);
+        drawEye(mRightEye, -EYE_ANGLE, mGazeX, mGazeY, canvas);
+    }
+
+    /** Draws the left eye, looking ahead, in screen coordinates. */
+    void drawLeftEye(Canvas canvas) {
+        drawEye(mLeftEye, EYE_ANGLE, 0, 0, canvas);
+    }
+
+    /** Draws the right eye, looking ahead, in screen coordinates. */
+    void drawRightEye(Canvas canvas) {
+        drawEye(mRightEye, -EYE_ANGLE, 0, 0, canvas);
+    }
+
+    private void drawEye(RectF rect, int angle, float gazeX, float gazeY, Canvas canvas) {
+        if (mEyeBitmap == null) return;
+
+        canvas.save();
+        canvas.translate(gazeX, gazeY);
+        canvas.rotate(+angle, rect.centerX(), rect.centerY());
+        canvas.drawBitmap(mEyeBitmap, rect.left, rect.top, null);
+
+        if (mEyelidFraction > 0) {
+            // The eyelid is a black oval sliding down over the eye and back up
+            float yOffset = -rect.height() + mEyelidFraction * rect.height();
+            mEyelid.set(rect.left, rect.top + yOffset, rect.right, rect.bottom + yOffset);
+            mPaint.setColor(0xFF000000);
+            canvas.drawOval(mEyelid, mPaint);
+        }
+        canvas.restore();
+    }
+
+    // The static eye artwork: a blue oval with black scanlines
+    private Bitmap renderEye() {
+        Bitmap bitmap = Bitmap.createBitmap(EYE_W, EYE_H, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        paint.setColor(0xFF378EDD);
+        canvas.drawOval(0, 0, EYE_W, EYE_H, paint);
+        paint.setColor(0xFF000000);
+        paint.setStrokeWidth(6);
+        for (int j = 0; j < EYE_H; j += 16) {
+            canvas.drawLine(0, j, EYE_W, j, paint);
+        }
+        return bitmap;
+    }
+
+    // Screen bounds of an eye rotated about its centre
+    private static void eyeBounds(RectF eye, int angle, Rect out) {
+        Matrix matrix = new Matrix();
+        matrix.setRotate(angle, eye.centerX(), eye.centerY());
+        RectF bounds = new RectF(eye);
+        matrix.mapRect(bounds);
+        bounds.roundOut(out);
+    }
+
+    private static float clamp(float value) {
+        return Math.max(-1, Math.min(1, value));
+    }
+}
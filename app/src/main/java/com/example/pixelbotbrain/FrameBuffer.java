@@ -0,0 +1,90 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package com.example.pixelbotbrain;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import com.example.pixelbotbrain.tensorflow.AsyncClassifier;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One camera frame at each stage of conversion for detection: the YUV planes copied out of the
+ * camera's image, the ARGB pixels and bitmap, and the detector's input crop. Instances are
+ * pooled by CameraObjectRecognizer (see BufferPool) and handed to consumers by reference.
+ */
+public class FrameBuffer {
+    private final byte[][] mYuvBytes = new byte[Frame.NUM_PLANES][];
+    private final int[] mRgbBytes;
+    private final Bitmap mRgbBitmap;
+    private final Bitmap mCrop;
+    private final Canvas mCropCanvas;
+    private long mTimestamp;
+    // The detection request reading the crop, for cancelling it to reclaim the buffer
+    volatile AsyncClassifier.Request mRequest;
+
+    public FrameBuffer(int width, int height, int cropSize) {
+        mRgbBytes = new int[width * height];
+        mRgbBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mCrop = Bitmap.createBitmap(cropSize, cropSize, Bitmap.Config.ARGB_8888);
+        mCropCanvas = new Canvas(mCrop);
+    }
+
+    /**
+     * Copies the frame's planes, leaving the frame intact for other consumers.
+     */
+    void copyPlanes(Frame frame) {
+        for (int i = 0; i < Frame.NUM_PLANES; ++i) {
+            final ByteBuffer buffer = frame.getPlane(i);
+            if (mYuvBytes[i] == null || mYuvBytes[i].length != buffer.remaining()) {
+                mYuvBytes[i] = new byte[buffer.remaining()];
+            }
+            final int position = buffer.position();
+            buffer.get(mYuvBytes[i]);
+            buffer.position(position);
+        }
+        mTimestamp = frame.getTimestamp();
+    }
+
+    /** Exposure time of the frame, in SystemClock.elapsedRealtimeNanos() time. */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public byte[] getYuvPlane(int plane) {
+        return mYuvBytes[plane];
+    }
+
+    int[] getRgbBytes() {
+        return mRgbBytes;
+    }
+
+    /** The whole frame in ARGB. */
+    public Bitmap getRgbBitmap() {
+        return mRgbBitmap;
+    }
+
+    /** The detector's square input, cropped and scaled from the frame. */
+    public Bitmap getCrop() {
+        return mCrop;
+    }
+
+    Canvas getCropCanvas() {
+        return mCropCanvas;
+    }
+}
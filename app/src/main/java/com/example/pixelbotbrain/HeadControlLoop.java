@@ -0,0 +1,244 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package com.example.pixelbotbrain;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the head from the phone at a fixed rate rather than once per detection. Detections
+ * update a TargetPredictor; a dedicated thread wakes on absolute deadlines, projects the target
+ * to when its command will arrive, runs a PanTiltController with the target's velocity as
+ * feed-forward, and streams absolute SERVO_MOVE_CMD positions whenever an angle changes by a
+ * whole degree. The loop period and gains can be changed while it runs, and how late each tick
+ * wakes is recorded.
+ *
+ * With no detection for TARGET_TIMEOUT_NS the head holds where it is.
+ */
+public class HeadControlLoop {
+    private static final String TAG = "HeadControlLoop";
+
+    public static final int DEFAULT_PERIOD_MS = 30;
+    // Not faster than this, the HC-06 link at 9600 baud takes ~4 ms per move frame
+    private static final int MIN_PERIOD_MS = 10;
+    private static final long TARGET_TIMEOUT_NS = 500000000L;
+    private static final int JITTER_SAMPLES = 256;
+
+    private final PixelbotBodyController mBody;
+    private final TargetPredictor mPredictor;
+    private final PanTiltController mController;
+    private final long mLinkLatencyNs;
+    private final Object mTargetLock = new Object();
+    private float mHorizontalFov;
+    private float mVerticalFov;
+    private boolean mHasTarget;
+
+    private volatile long mPeriodNs = DEFAULT_PERIOD_MS * 1000000L;
+    // The running loop thread, a loop whose thread is no longer this one exits
+    private volatile Thread mThread;
+
+    // Written by the loop thread, read under the stats lock
+    private final Object mStatsLock = new Object();
+    private final long[] mJitter = new long[JITTER_SAMPLES];
+    private final long[] mSortScratch = new long[JITTER_SAMPLES];
+    private long mTicks;
+    private long mOverruns;
+    private long mMoves;
+    private long mMaxJitter;
+
+    /**
+     * @param predictor Used only through this loop once it is passed in.
+     * @param linkLatencyNs Time from writing a command to the body acting on it.
+     */
+    public HeadControlLoop(PixelbotBodyController body, TargetPredictor predictor,
+                           PanTiltController controller, long linkLatencyNs) {
+        mBody = body;
+        mPredictor = predictor;
+        mController = controller;
+        mLinkLatencyNs = linkLatencyNs;
+    }
+
+    public void setPeriodMs(int periodMs) {
+        mPeriodNs = Math.max(MIN_PERIOD_MS, periodMs) * 1000000L;
+    }
+
+    public PanTiltController getController() {
+        return mController;
+    }
+
+    /**
+     * Adds a detection of the target centered at (x, y), normalized to the camera frame.
+     */
+    public void onTarget(long timestampNs, int classId, float x, float y, float horizontalFov,
+                         float verticalFov) {
+        synchronized (mTargetLock) {
+            mPredictor.setFieldOfView(horizontalFov, verticalFov);
+            mPredictor.observe(timestampNs, classId, x, y);
+            mHorizontalFov = horizontalFov;
+            mVerticalFov = verticalFov;
+            mHasTarget = true;
+        }
+    }
+
+    /**
+     * Forgets the target, e.g. when tracking is paused, and holds the head.
+     */
+    public void clearTarget() {
+        synchronized (mTargetLock) {
+            mHasTarget = false;
+            mPredictor.reset();
+        }
+    }
+
+    /**
+     * Turns the head by the given angles from where it is now, in degrees, with any target
+     * forgotten so the loop holds the new position.
+     */
+    public void nudge(float panDegrees, float tiltDegrees) {
+        clearTarget();
+        mController.reset();
+        mController.moveBy(panDegrees, tiltDegrees);
+        sendAngles();
+    }
+
+    public synchronized void start() {
+        if (mThread != null) return;
+
+        mThread = new Thread("HeadControlLoop") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+                runLoop();
+            }
+        };
+        mThread.start();
+    }
+
+    /**
+     * Stops the loop. May be called from the loop itself, e.g. from a failed Bluetooth write.
+     */
+    public void stop() {
+        final Thread thread;
+        synchronized (this) {
+            if (mThread == null) return;
+            thread = mThread;
+            mThread = null;
+        }
+        // Joined outside the lock, the loop may be stopping itself at the same time
+        if (thread != Thread.currentThread()) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted stopping the loop");
+                Thread.currentThread().interrupt();
+            }
+        }
+        clearTarget();
+        mController.reset();
+    }
+
+    private void runLoop() {
+        final Thread self = Thread.currentThread();
+        // Put the body where the controller thinks the head is
+        sendAngles();
+        long lastTick = SystemClock.elapsedRealtimeNanos();
+        long deadline = lastTick + mPeriodNs;
+        while (mThread == self) {
+            long now = SystemClock.elapsedRealtimeNanos();
+            while (now < deadline && mThread == self) {
+                LockSupport.parkNanos(deadline - now);
+                now = SystemClock.elapsedRealtimeNanos();
+            }
+            if (mThread != self) break;
+
+            recordTick(now - deadline);
+            tick(now, (now - lastTick) / 1e9f);
+            lastTick = now;
+
+            // Keep to the original schedule, skipping ticks missed entirely
+            final long period = mPeriodNs;
+            deadline += period;
+            if (now - deadline >= 0) {
+                synchronized (mStatsLock) {
+                    mOverruns++;
+                }
+                deadline = now + period;
+            }
+        }
+    }
+
+    private void tick(long now, float dt) {
+        final float panError;
+        final float tiltError;
+        final float panRate;
+        final float tiltRate;
+        synchronized (mTargetLock) {
+            if (!mHasTarget) return;
+            if (now - mPredictor.getLastObservationTime() > TARGET_TIMEOUT_NS) {
+                mHasTarget = false;
+                mController.reset();
+                return;
+            }
+
+            // Degrees the head has to turn to center the target when the command lands. The
+            // front camera is mirrored, so pan errors are inverted as in BodyProtocol.
+            mPredictor.project(now + mLinkLatencyNs);
+            panError = (0.5f - mPredictor.getPredictedX()) * mHorizontalFov;
+            tiltError = (mPredictor.getPredictedY() - 0.5f) * mVerticalFov;
+            panRate = -mPredictor.getVelocityX() * mHorizontalFov;
+            tiltRate = mPredictor.getVelocityY() * mVerticalFov;
+        }
+        if (mController.update(dt, panError, tiltError, panRate, tiltRate)) {
+            sendAngles();
+        }
+    }
+
+    private void sendAngles() {
+        mBody.moveServoCommand((byte) Math.round(mController.getPanAngle()),
+                (byte) Math.round(mController.getTiltAngle()));
+        synchronized (mStatsLock) {
+            mMoves++;
+        }
+    }
+
+    private void recordTick(long jitterNs) {
+        synchronized (mStatsLock) {
+            mJitter[(int) (mTicks % JITTER_SAMPLES)] = jitterNs;
+            mTicks++;
+            mMaxJitter = Math.max(mMaxJitter, jitterNs);
+        }
+    }
+
+    public String getStatString() {
+        synchronized (mStatsLock) {
+            final int n = (int) Math.min(mTicks, JITTER_SAMPLES);
+            if (n == 0) return "no ticks";
+            System.arraycopy(mJitter, 0, mSortScratch, 0, n);
+            Arrays.sort(mSortScratch, 0, n);
+            return String.format("%d ticks at %d ms, %d overruns, %d moves | jitter p50 %.2f ms "
+                            + "p99 %.2f ms max %.2f ms | %s", mTicks, mPeriodNs / 1000000L,
+                    mOverruns, mMoves, mSortScratch[n / 2] / 1e6,
+                    mSortScratch[(n * 99) / 100] / 1e6, mMaxJitter / 1e6,
+                    mController.getGainString());
+        }
+    }
+}
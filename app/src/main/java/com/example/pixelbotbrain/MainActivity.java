@@ -16,21 +16,26 @@ limitations under the License.
 package com.example.pixelbotbrain;
 
 import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
-import android.graphics.RectF;
-import android.media.MediaPlayer;
-import android.speech.tts.TextToSpeech;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.widget.Toast;
 
-import com.example.pixelbotbrain.tensorflow.Classifier;
-
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.net.InetAddress;
+import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -40,8 +45,7 @@ import java.util.TimerTask;
  * with its body via Bluetooth to an Arduino-controlled set of servos and motors. TensorFlow
  * is used for object detection.
  */
-public class MainActivity extends AppCompatActivity implements
-        CameraObjectRecognizer.Listener, BluetoothArduinoBridge.Listener {
+public class MainActivity extends AppCompatActivity implements BluetoothArduinoBridge.Listener {
     private static final String TAG = "PixelbotBrain";
 
     private static final int TF_OD_API_INPUT_SIZE = 300;
@@ -49,48 +53,543 @@ public class MainActivity extends AppCompatActivity implements
             "file:///android_asset/ssd_mobilenet_v1_android_export.pb";
     private static final String TF_OD_API_LABELS_FILE =
             "file:///android_asset/coco_labels_list.txt";
-    private static final float MINIMUM_CONFIDENCE_TF_OD_API = 0.7f;
+
+    // Detector selection, e.g. adb shell am start -n com.example.pixelbotbrain/.MainActivity
+    //     -e detector tflite-quantized --ei detector_threads 2 -e detector_compare tensorflow
+    private static final String EXTRA_DETECTOR = "detector";
+    private static final String EXTRA_DETECTOR_THREADS = "detector_threads";
+    private static final String EXTRA_DETECTOR_COMPARE = "detector_compare";
+    // Fine classification of tracked objects with ImageNet, e.g. --ez cascade true
+    private static final String EXTRA_CASCADE = "cascade";
+    // Frame dropped when every frame buffer is in use, "oldest" (default) or "newest", e.g.
+    //     -e frame_drop newest
+    private static final String EXTRA_FRAME_DROP = "frame_drop";
+    // Detection skipped on motion blurred frames, e.g. --ez quality_gate true
+    private static final String EXTRA_QUALITY_GATE = "quality_gate";
+    // The gate still lets through a frame this often, at least 4 detections a second
+    private static final long QUALITY_GATE_MAX_SKIP_NS = 250000000L;
+
+    // Frame capture and replay, files are relative to getExternalFilesDir(), e.g.
+    //     -e record_frames session.pbfr   or   -e replay_frames session.pbfr --ez replay_loop true
+    private static final String EXTRA_RECORD_FRAMES = "record_frames";
+    private static final String EXTRA_REPLAY_FRAMES = "replay_frames";
+    private static final String EXTRA_REPLAY_LOOP = "replay_loop";
+    // Voice command replay, a 16 kHz 16-bit mono WAV file in place of the microphone, e.g.
+    //     -e replay_audio commands.wav --ez replay_loop true
+    private static final String EXTRA_REPLAY_AUDIO = "replay_audio";
+    private static final int RECORDER_QUEUE_CAPACITY = 8;
+
+    // Face renderer, "view" (default) draws on the UI thread and "surface" on its own render
+    // thread, e.g. -e face_renderer surface
+    private static final String EXTRA_FACE_RENDERER = "face_renderer";
+    // Style transfer display mode, showing the restyled camera feed instead of the face, e.g.
+    //     --ei style 3 (tap to cycle styles)
+    private static final String EXTRA_STYLE = "style";
+    // Head control, "track" (default) sends errors for the sketch's controller and "pid" runs
+    // the controller on the phone at a fixed rate, e.g. -e head_control pid --ei head_period_ms 20
+    // Gains can then be tuned live with
+    //     adb shell am broadcast -a com.example.pixelbotbrain.TUNE_HEAD --ef kp 6 --ef kd 0.1
+    // Only senders holding DUMP, which the adb shell has and apps can't get, may tune the loop.
+    private static final String EXTRA_HEAD_CONTROL = "head_control";
+    private static final String EXTRA_HEAD_PERIOD_MS = "head_period_ms";
+    private static final String ACTION_TUNE_HEAD = "com.example.pixelbotbrain.TUNE_HEAD";
+    private static final String EXTRA_KP = "kp";
+    private static final String EXTRA_KI = "ki";
+    private static final String EXTRA_KD = "kd";
+    private static final String EXTRA_KFF = "kff";
+    private static final String EXTRA_MAX_RATE = "max_rate";
+    private static final float DEFAULT_KP = 4.0f;
+    private static final float DEFAULT_KI = 0.5f;
+    private static final float DEFAULT_KD = 0.05f;
+    private static final float DEFAULT_KFF = 0.8f;
+    private static final float DEFAULT_MAX_RATE = 180.0f;
+    // Gains and rates outside these are rejected
+    private static final float MAX_GAIN = 50.0f;
+    private static final float MAX_KFF = 2.0f;
+    private static final float MAX_MAX_RATE = 720.0f;
+    private static final int MAX_HEAD_PERIOD_MS = 1000;
+    // Tracking corrected for the camera's measured rotation since each frame, on unless
+    // --ez ego_motion false
+    private static final String EXTRA_EGO_MOTION = "ego_motion";
+    // Performance HUD over the face, shown from the start with --ez hud true and toggled by a
+    // long press on the face
+    private static final String EXTRA_HUD = "hud";
+    // Prometheus metrics at http://<address>:<port>/metrics, off unless a port is given, e.g.
+    //     --ei metrics_port 9464   then   adb forward tcp:9464 tcp:9464
+    // The address defaults to loopback; -e metrics_address 0.0.0.0 exposes it to the network.
+    private static final String EXTRA_METRICS_PORT = "metrics_port";
+    private static final String EXTRA_METRICS_ADDRESS = "metrics_address";
+    private static final String DEFAULT_METRICS_ADDRESS = "127.0.0.1";
+    private static final long RECORDER_MAX_BYTES = 1L << 30;
+    // Journal of detections, body commands and link events, relative to getExternalFilesDir(),
+    // e.g. -e journal session   for session-0000.pbj, session-0001.pbj, ...
+    private static final String EXTRA_JOURNAL = "journal";
+    // 256k records per segment, the newest 16 segments kept
+    private static final long JOURNAL_SEGMENT_BYTES = 8L << 20;
+    private static final int JOURNAL_MAX_SEGMENTS = 16;
+
+    private static final int DETECTION_BUS_CAPACITY = 256;
+    private static final int SOUND_EFFECT_VOICES = 2;
+
+    // Gyro samples kept, over a second at the fastest rate of most phones
+    private static final int ROTATION_HISTORY_CAPACITY = 512;
+    // Phone axes, as mounted upright in the head, about which the servos pan and tilt
+    private static final int PAN_AXIS = 1;
+    private static final float PAN_SIGN = 1.0f;
+    private static final int TILT_AXIS = 0;
+    private static final float TILT_SIGN = 1.0f;
+
+    // Bluetooth write to the Arduino acting on a command (HC-06 at 9600 baud)
+    private static final long BODY_LINK_LATENCY_NS = 15000000L;
+
+    // Pan/tilt error sent to turn the head on a "left", "right", "up" or "down" command
+    private static final byte HEAD_NUDGE = 48;
+
+    // Target switching hysteresis: a challenger must outrank the followed target by the margin
+    // for this many frames, and a target that goes undetected is waited for this long
+    private static final float TARGET_SWITCH_MARGIN = 0.15f;
+    private static final int TARGET_SWITCH_FRAMES = 5;
+    private static final long TARGET_HOLD_MS = 500;
+    // Degrees the head turns on those commands under phone-side control
+    private static final float HEAD_NUDGE_DEGREES = 15.0f;
 
     private PixelbotBodyController mPixelbotBodyController;
     private CameraObjectRecognizer mCameraObjectRecognizer;
-    private PixelbotFace mPixelbotFace;
+    private DetectionBus mDetectionBus;
+    private DetectionBus.Subscriber mSpeechSubscriber;
+    private DetectionBus.Subscriber mTrackingSubscriber;
+    private DetectionBus.Subscriber mGazeSubscriber;
+    private final TargetSelector mSpeechTarget = new TargetSelector();
+    private final TargetSelector mTrackingTarget = new TargetSelector();
+    private final TargetSelector mGazeTarget = new TargetSelector();
+    private HandlerThread mBodyThread;
+    private Handler mBodyHandler;
+    private TargetPredictor mTargetPredictor;
+    private HeadControlLoop mHeadControlLoop;
+    private RotationSource mRotationSource;
+    private final RotationHistory mRotationHistory =
+            new RotationHistory(ROTATION_HISTORY_CAPACITY);
+    private File mRecordFile;
+    private FrameRecorder mFrameRecorder;
+    private FaceDisplay mPixelbotFace;
+    private StyleTransfer mStyleTransfer;
+    private PerformanceHud mPerformanceHud;
+    private MetricsServer mMetricsServer;
+    private SessionJournalWriter mJournal;
     private Timer mBlinkTimer;
-    private boolean mBodyConnected;
-    private long mLastSpeakTime;
-    private TextToSpeech mTts;
+    private volatile boolean mBodyConnected;
+    private SpeechCache mSpeechCache;
+    private SoundEffects mSoundEffects;
+    private int mFartEffect;
+    private VoiceCommandRecognizer mVoiceCommandRecognizer;
+    // Set by voice commands, owned by the body thread
+    private boolean mTrackingPaused;
+    private boolean mDriveEnabled = true;
+    // Counters at resume, to report behaviour per minute in onPause
+    private long mResumedMs;
+    private int mResumedSwitches;
+    private long mResumedReversals;
+    private int mResumedUtterances;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
-        mPixelbotFace = findViewById(R.id.pixelbotfaceview);
+        selectFaceRenderer(getIntent());
 
-        if (!hasCameraPermission()) {
-            requestCameraPermission();
+        if (!hasCameraPermission() || !hasAudioPermission()) {
+            requestPermissions();
         }
 
-        mTts = new TextToSpeech(this, new TextToSpeech.OnInitListener () {
-            @Override
-            public void onInit(int i) { }
-        });
+        mSpeechCache = new SpeechCache(this, speechVocabulary());
+        mSoundEffects = new SoundEffects(this, SOUND_EFFECT_VOICES);
+        mFartEffect = mSoundEffects.load(R.raw.fart);
 
         mPixelbotBodyController = new PixelbotBodyController();
-        mCameraObjectRecognizer = new CameraObjectRecognizer(this, this);
+
+        // Speech and gaze run on the main thread, and tracking and voice commands on their own
+        // thread, so Bluetooth writes neither hold up nor wait for the inference threads.
+        mBodyThread = new HandlerThread("BodyThread");
+        mBodyThread.start();
+        mBodyHandler = new Handler(mBodyThread.getLooper());
+        mDetectionBus = new DetectionBus(DETECTION_BUS_CAPACITY);
+        Handler mainHandler = new Handler(getMainLooper());
+        mSpeechSubscriber = mDetectionBus.subscribe(mainHandler, mSpeechConsumer);
+        mGazeSubscriber = mDetectionBus.subscribe(mainHandler, mGazeConsumer);
+        mTrackingSubscriber = mDetectionBus.subscribe(mBodyHandler, mTrackingConsumer);
+
+        mCameraObjectRecognizer = new CameraObjectRecognizer(this, mDetectionBus);
+        mTargetPredictor = new TargetPredictor(mPixelbotBodyController.getServoMotionModel(),
+                mCameraObjectRecognizer.getHorizontalFov(),
+                mCameraObjectRecognizer.getVerticalFov());
+        if (getIntent().getBooleanExtra(EXTRA_EGO_MOTION, true)) {
+            mRotationSource = new SensorRotationSource(this, PAN_AXIS, PAN_SIGN, TILT_AXIS,
+                    TILT_SIGN);
+        }
+        selectHeadControl(getIntent());
+        selectDetector(getIntent());
+        selectFrameSource(getIntent());
+        selectStyleTransfer(getIntent());
+        addPerformanceHud(getIntent());
+
+        mVoiceCommandRecognizer = new VoiceCommandRecognizer(this, mVoiceCommandListener);
+        selectAudioSource(getIntent());
+        startMetricsServer(getIntent());
+        openJournal(getIntent());
+    }
+
+    private void openJournal(Intent intent) {
+        String journalName = intent.getStringExtra(EXTRA_JOURNAL);
+        if (journalName == null) return;
+
+        File prefix = new File(getExternalFilesDir(null), journalName);
+        try {
+            mJournal = new SessionJournalWriter(prefix, JOURNAL_SEGMENT_BYTES,
+                    JOURNAL_MAX_SEGMENTS);
+            mCameraObjectRecognizer.setJournal(mJournal);
+            mPixelbotBodyController.setJournal(mJournal);
+            Log.i(TAG, "Journaling to " + prefix);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't journal to " + prefix + ": " + e.getMessage());
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal == null) return;
+
+        mCameraObjectRecognizer.setJournal(null);
+        mPixelbotBodyController.setJournal(null);
+        try {
+            mJournal.close();
+            Log.i(TAG, "Journaled " + mJournal.getRecordCount() + " records, dropped "
+                    + mJournal.getDroppedCount());
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+        }
+        mJournal = null;
+    }
+
+    private void startMetricsServer(Intent intent) {
+        int port = intent.getIntExtra(EXTRA_METRICS_PORT, -1);
+        if (port < 0) return;
+
+        Metrics metrics = new Metrics();
+        mCameraObjectRecognizer.registerMetrics(metrics);
+        mPixelbotBodyController.registerMetrics(metrics);
+        mSpeechCache.registerMetrics(metrics);
+        String address = intent.getStringExtra(EXTRA_METRICS_ADDRESS);
+        try {
+            // A numeric address, so no lookup on the main thread
+            mMetricsServer = new MetricsServer(metrics, InetAddress.getByName(
+                    address != null ? address : DEFAULT_METRICS_ADDRESS), port);
+            Log.i(TAG, "Serving metrics on port " + mMetricsServer.getPort());
+        } catch (IOException e) {
+            Log.e(TAG, "Can't serve metrics: " + e.getMessage());
+        }
+    }
+
+    private void selectHeadControl(Intent intent) {
+        if (!"pid".equals(intent.getStringExtra(EXTRA_HEAD_CONTROL))) return;
+
+        PanTiltController controller = new PanTiltController(DEFAULT_KP, DEFAULT_KI, DEFAULT_KD,
+                DEFAULT_KFF, DEFAULT_MAX_RATE);
+        mHeadControlLoop = new HeadControlLoop(mPixelbotBodyController, mTargetPredictor,
+                controller, BODY_LINK_LATENCY_NS);
+        tuneHeadControl(intent);
+        // Absolute head angles leave the sketch's tracking, and so driving, out of the loop
+        mDriveEnabled = false;
+        Log.i(TAG, "Phone-side head control: " + controller.getGainString());
+    }
+
+    private final BroadcastReceiver mTuneReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            tuneHeadControl(intent);
+            Log.i(TAG, "Head control tuned: "
+                    + mHeadControlLoop.getController().getGainString());
+        }
+    };
+
+    // Applies the gains and period in intent extras, leaving those missing or out of range as
+    // they are
+    private void tuneHeadControl(Intent intent) {
+        PanTiltController controller = mHeadControlLoop.getController();
+        synchronized (controller) {
+            final float kp = intent.getFloatExtra(EXTRA_KP, controller.getKp());
+            final float ki = intent.getFloatExtra(EXTRA_KI, controller.getKi());
+            final float kd = intent.getFloatExtra(EXTRA_KD, controller.getKd());
+            final float kff = intent.getFloatExtra(EXTRA_KFF, controller.getKff());
+            final float maxRate = intent.getFloatExtra(EXTRA_MAX_RATE, controller.getMaxRate());
+            // Comparisons are false for NaN, so it fails these too
+            if (kp >= 0 && kp <= MAX_GAIN && ki >= 0 && ki <= MAX_GAIN
+                    && kd >= 0 && kd <= MAX_GAIN && kff >= 0 && kff <= MAX_KFF
+                    && maxRate > 0 && maxRate <= MAX_MAX_RATE) {
+                controller.setGains(kp, ki, kd, kff, maxRate);
+            } else {
+                Log.w(TAG, String.format(Locale.US, "Ignoring head gains out of range: kp %f "
+                        + "ki %f kd %f kff %f max_rate %f", kp, ki, kd, kff, maxRate));
+            }
+        }
+        if (intent.hasExtra(EXTRA_HEAD_PERIOD_MS)) {
+            final int periodMs = intent.getIntExtra(EXTRA_HEAD_PERIOD_MS,
+                    HeadControlLoop.DEFAULT_PERIOD_MS);
+            if (periodMs > 0 && periodMs <= MAX_HEAD_PERIOD_MS) {
+                mHeadControlLoop.setPeriodMs(periodMs);
+            } else {
+                Log.w(TAG, "Ignoring head period out of range: " + periodMs + " ms");
+            }
+        }
+    }
+
+    private void selectDetector(Intent intent) {
+        mCameraObjectRecognizer.setCascadeEnabled(intent.getBooleanExtra(EXTRA_CASCADE, false));
+        if ("newest".equals(intent.getStringExtra(EXTRA_FRAME_DROP))) {
+            mCameraObjectRecognizer.setFrameDropPolicy(BufferPool.Policy.DROP_NEWEST);
+        }
+        if (intent.getBooleanExtra(EXTRA_QUALITY_GATE, false)) {
+            mCameraObjectRecognizer.setQualityGate(new FrameQualityGate(QUALITY_GATE_MAX_SKIP_NS),
+                    mPixelbotBodyController.getServoMotionModel());
+        }
+        String backend = intent.getStringExtra(EXTRA_DETECTOR);
+        if (backend == null) return;
+
+        try {
+            mCameraObjectRecognizer.setDetectorBackend(backend,
+                    intent.getIntExtra(EXTRA_DETECTOR_THREADS, 4));
+            mCameraObjectRecognizer.setComparisonBackend(
+                    intent.getStringExtra(EXTRA_DETECTOR_COMPARE));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    private void selectFrameSource(Intent intent) {
+        String recordName = intent.getStringExtra(EXTRA_RECORD_FRAMES);
+        if (recordName != null) {
+            mRecordFile = new File(getExternalFilesDir(null), recordName);
+        }
+
+        String replayName = intent.getStringExtra(EXTRA_REPLAY_FRAMES);
+        if (replayName == null) return;
+
+        try {
+            FrameRecording recording =
+                    new FrameRecording(new File(getExternalFilesDir(null), replayName));
+            mCameraObjectRecognizer.setFrameSource(new RecordedFrameSource(recording, true,
+                    intent.getBooleanExtra(EXTRA_REPLAY_LOOP, false)) {
+                @Override
+                protected long rebase(long nanoTime) {
+                    // Stamp replayed frames like live ones so latency compensation still works
+                    return nanoTime - System.nanoTime() + SystemClock.elapsedRealtimeNanos();
+                }
+            });
+            Log.i(TAG, "Replaying " + recording.getFrameCount() + " frames from " + replayName);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't replay " + replayName + ": " + e.getMessage());
+        }
+    }
+
+    private void selectAudioSource(Intent intent) {
+        String replayName = intent.getStringExtra(EXTRA_REPLAY_AUDIO);
+        if (replayName == null) return;
+
+        try {
+            WavAudioSource source = new WavAudioSource(
+                    new File(getExternalFilesDir(null), replayName), true,
+                    intent.getBooleanExtra(EXTRA_REPLAY_LOOP, false)) {
+                @Override
+                protected long rebase(long nanoTime) {
+                    // Stamp replayed audio like the microphone so latencies are comparable
+                    return nanoTime - System.nanoTime() + SystemClock.elapsedRealtimeNanos();
+                }
+            };
+            mVoiceCommandRecognizer.setAudioSource(source);
+            Log.i(TAG, "Replaying " + source.getSampleCount() + " samples from " + replayName);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Can't replay " + replayName + ": " + e.getMessage());
+        }
+    }
+
+    private void startRecording() {
+        // The frame source knows its size and optics once started. Each resume starts over.
+        FrameSource source = mCameraObjectRecognizer.getFrameSource();
+        try {
+            mFrameRecorder = new FrameRecorder(mRecordFile, source.getWidth(), source.getHeight(),
+                    source.getHorizontalFov(), source.getVerticalFov(), RECORDER_QUEUE_CAPACITY,
+                    RECORDER_MAX_BYTES);
+            mCameraObjectRecognizer.setFrameRecorder(mFrameRecorder);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't record to " + mRecordFile + ": " + e.getMessage());
+        }
+    }
+
+    private void stopRecording() {
+        if (mFrameRecorder == null) return;
+
+        mCameraObjectRecognizer.setFrameRecorder(null);
+        try {
+            mFrameRecorder.close();
+            Log.i(TAG, "Recorded " + mFrameRecorder.getRecordedCount() + " frames, dropped "
+                    + mFrameRecorder.getDroppedCount());
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+        }
+        mFrameRecorder = null;
     }
 
     public void onResume () {
         super.onResume();
+        if (mStyleTransfer != null) {
+            mStyleTransfer.start();
+        }
+        if (mRotationSource != null && mRotationSource.start(mRotationHistory)) {
+            mTargetPredictor.setRotationHistory(mRotationHistory);
+        }
         mCameraObjectRecognizer.onResume();
+        if (mRecordFile != null) {
+            startRecording();
+        }
+        mVoiceCommandRecognizer.onResume();
         mPixelbotBodyController.connectAsync(this);
+        mResumedMs = SystemClock.elapsedRealtime();
+        mResumedSwitches = mTrackingTarget.getSwitchCount();
+        mResumedReversals = mPixelbotBodyController.getServoMotionModel().getReversalCount();
+        mResumedUtterances = mSpeechCache.getSpokenCount();
+        if (mHeadControlLoop != null) {
+            registerReceiver(mTuneReceiver, new IntentFilter(ACTION_TUNE_HEAD),
+                    Manifest.permission.DUMP, null);
+        }
         startBlinkTimer();
     }
 
     public void onPause () {
         super.onPause();
         mCameraObjectRecognizer.onPause();
+        if (mStyleTransfer != null) {
+            mStyleTransfer.stop();
+            Log.i(TAG, "Style transfer: " + mStyleTransfer.getStatString());
+        }
+        stopRecording();
+        mVoiceCommandRecognizer.onPause();
+        if (mHeadControlLoop != null) {
+            unregisterReceiver(mTuneReceiver);
+            mHeadControlLoop.stop();
+            Log.i(TAG, "Head control: " + mHeadControlLoop.getStatString());
+        }
         mPixelbotBodyController.disconnect();
+        Log.i(TAG, "Body link: " + mPixelbotBodyController.getStatString());
+        if (mRotationSource != null) {
+            mRotationSource.stop();
+            mTargetPredictor.setRotationHistory(null);
+            mRotationHistory.clear();
+        }
         stopBlinkTimer();
+        Log.i(TAG, "Sound effects: " + mSoundEffects.getStatString());
+        Log.i(TAG, "Face: " + mPixelbotFace.getStatString());
+        Log.i(TAG, "Voice commands: " + mVoiceCommandRecognizer.getStatString());
+        logTrackingStats();
+    }
+
+    // How often the head switched targets and reversed, and speech was triggered, since resume
+    private void logTrackingStats() {
+        final float minutes = (SystemClock.elapsedRealtime() - mResumedMs) / 60000.0f;
+        if (minutes <= 0) return;
+        final int switches = mTrackingTarget.getSwitchCount() - mResumedSwitches;
+        final long reversals = mPixelbotBodyController.getServoMotionModel().getReversalCount()
+                - mResumedReversals;
+        final int utterances = mSpeechCache.getSpokenCount() - mResumedUtterances;
+        Log.i(TAG, String.format("Tracking: %d target switches (%.1f/min), %d servo reversals "
+                        + "(%.1f/min), %d utterances (%.1f/min) in %.1f min", switches,
+                switches / minutes, reversals, reversals / minutes, utterances,
+                utterances / minutes, minutes));
+    }
+
+    public void onDestroy() {
+        super.onDestroy();
+        mCameraObjectRecognizer.onDestroy();
+        mVoiceCommandRecognizer.onDestroy();
+        if (mStyleTransfer != null) {
+            mStyleTransfer.close();
+        }
+        mSpeechCache.release();
+        mSoundEffects.release();
+        mDetectionBus.unsubscribe(mSpeechSubscriber);
+        mDetectionBus.unsubscribe(mTrackingSubscriber);
+        mDetectionBus.unsubscribe(mGazeSubscriber);
+        mBodyThread.quitSafely();
+        mPixelbotBodyController.close();
+        closeJournal();
+        if (mMetricsServer != null) {
+            mMetricsServer.close();
+            Log.i(TAG, "Metrics: " + mMetricsServer.getScrapeCount() + " scrapes, "
+                    + mMetricsServer.getErrorCount() + " errors");
+        }
+    }
+
+    private void selectFaceRenderer(Intent intent) {
+        PixelbotFace face = findViewById(R.id.pixelbotfaceview);
+        if (!"surface".equals(intent.getStringExtra(EXTRA_FACE_RENDERER))) {
+            mPixelbotFace = face;
+            return;
+        }
+        // Swap in the SurfaceView in the same place in the layout
+        ViewGroup parent = (ViewGroup) face.getParent();
+        int index = parent.indexOfChild(face);
+        ViewGroup.LayoutParams params = face.getLayoutParams();
+        parent.removeViewAt(index);
+        PixelbotFaceSurface surface = new PixelbotFaceSurface(this);
+        surface.setId(R.id.pixelbotfaceview);
+        parent.addView(surface, index, params);
+        mPixelbotFace = surface;
+        Log.i(TAG, "Face rendered on its own thread");
+    }
+
+    private void selectStyleTransfer(Intent intent) {
+        int style = intent.getIntExtra(EXTRA_STYLE, -1);
+        if (style < 0) return;
+
+        // Cover the face, which keeps running underneath
+        View face = findViewById(R.id.pixelbotfaceview);
+        ViewGroup parent = (ViewGroup) face.getParent();
+        StyleTransferView view = new StyleTransferView(this);
+        parent.addView(view, parent.indexOfChild(face) + 1, face.getLayoutParams());
+        face.setVisibility(View.GONE);
+
+        mStyleTransfer = new StyleTransfer(this, view);
+        mStyleTransfer.setStyle(style);
+        view.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                mStyleTransfer.nextStyle();
+            }
+        });
+        mCameraObjectRecognizer.addRgbFrameListener(mStyleTransfer);
+        Log.i(TAG, "Style transfer with style " + style);
+    }
+
+    private void addPerformanceHud(Intent intent) {
+        View face = findViewById(R.id.pixelbotfaceview);
+        ViewGroup parent = (ViewGroup) face.getParent();
+        mPerformanceHud = new PerformanceHud(this);
+        mPerformanceHud.bind(mCameraObjectRecognizer, mPixelbotBodyController);
+        mPerformanceHud.setVisibility(intent.getBooleanExtra(EXTRA_HUD, false)
+                ? View.VISIBLE : View.GONE);
+        parent.addView(mPerformanceHud, face.getLayoutParams());
+
+        // Long press whatever is showing, the face or the stylized feed over it
+        View.OnLongClickListener toggle = new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                mPerformanceHud.toggle();
+                return true;
+            }
+        };
+        for (int i = 0; i < parent.getChildCount(); i++) {
+            if (parent.getChildAt(i) != mPerformanceHud) {
+                parent.getChildAt(i).setOnLongClickListener(toggle);
+            }
+        }
     }
 
     private void startBlinkTimer() {
@@ -101,7 +600,7 @@ public class MainActivity extends AppCompatActivity implements
             public void run() {
                 mPixelbotFace.blink();
                 if (Math.random() < 0.2) {
-                    fartNoise();
+                    mSoundEffects.play(mFartEffect);
                 }
             }
         };
@@ -115,70 +614,218 @@ public class MainActivity extends AppCompatActivity implements
         }
     }
 
-    private void speak(String text) {
-        if (System.currentTimeMillis() - mLastSpeakTime < 3000) return; // rate limit
+    // Everything the speech consumer says: the trackable objects, with humans called so
+    private static String[] speechVocabulary() {
+        String[] vocabulary = new String[TrackableObjects.getCount()];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = speechFor(i);
+        }
+        return vocabulary;
+    }
 
-        HashMap<String, String> params = new HashMap<String, String>();
-        params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, text);
-        mTts.speak(text, TextToSpeech.QUEUE_FLUSH, params);
-        mLastSpeakTime = System.currentTimeMillis();
+    private static String speechFor(int classId) {
+        return classId == TrackableObjects.PERSON ? "human" // for dramatic effect!
+                : TrackableObjects.getName(classId);
     }
 
     private boolean hasCameraPermission() {
         return checkSelfPermission(Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED;
     }
 
-    private void requestCameraPermission() {
-        if (shouldShowRequestPermissionRationale(Manifest.permission.CAMERA)) {
-            Toast.makeText(this,
-                    "Camera permission are required for this demo", Toast.LENGTH_LONG).show();
+    private boolean hasAudioPermission() {
+        return checkSelfPermission(Manifest.permission.RECORD_AUDIO)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private void requestPermissions() {
+        if (shouldShowRequestPermissionRationale(Manifest.permission.CAMERA)
+                || shouldShowRequestPermissionRationale(Manifest.permission.RECORD_AUDIO)) {
+            Toast.makeText(this, "Camera and microphone permissions are required for this demo",
+                    Toast.LENGTH_LONG).show();
         }
-        requestPermissions(new String[] {Manifest.permission.CAMERA}, 1);
+        requestPermissions(
+                new String[] {Manifest.permission.CAMERA, Manifest.permission.RECORD_AUDIO}, 1);
     }
 
-    private void fartNoise(){
-        try {
-            MediaPlayer player = MediaPlayer.create(this, R.raw.fart);
-            player.start();
-            player.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
-                @Override
-                public void onCompletion(MediaPlayer mp) {
-                    mp.release();
+    /**
+     * Picks one target per frame from a subscriber's records and sticks with it (see TargetLock).
+     * Detections rank by confidence, other objects ahead of humans.
+     */
+    private static class TargetSelector {
+        private final DetectionBus.Record mRecord = new DetectionBus.Record();
+        private final DetectionBus.Record mCurrent = new DetectionBus.Record();
+        private final DetectionBus.Record mBest = new DetectionBus.Record();
+        private final DetectionBus.Record mTarget = new DetectionBus.Record();
+        private final TargetLock mLock =
+                new TargetLock(TARGET_SWITCH_MARGIN, TARGET_SWITCH_FRAMES, TARGET_HOLD_MS);
+        private long mFrameTimestamp = -1;
+        private float mBestPriority;
+
+        /**
+         * Drains the subscriber and returns true if a frame with a target was completed, in
+         * which case getTarget() holds the target of the most recent one.
+         */
+        boolean drain(DetectionBus.Subscriber subscriber) {
+            boolean completed = false;
+            while (subscriber.poll(mRecord)) {
+                if (mRecord.index == 0 || mRecord.timestamp != mFrameTimestamp) {
+                    mFrameTimestamp = mRecord.timestamp;
+                    mLock.beginFrame();
+                    mBestPriority = Float.NEGATIVE_INFINITY;
+                }
+                // Untracked detections can't be followed from frame to frame
+                if (mRecord.trackId != 0) {
+                    final float priority = priority(mRecord);
+                    if (mRecord.trackId == mLock.getTrackId()) {
+                        mCurrent.set(mRecord);
+                    }
+                    if (priority > mBestPriority) {
+                        mBest.set(mRecord);
+                        mBestPriority = priority;
+                    }
+                    mLock.offer(mRecord.trackId, priority);
+                }
+                if (mRecord.index == mRecord.count - 1) {
+                    final int trackId = mLock.endFrame(mRecord.timestamp);
+                    if (trackId != 0) {
+                        mTarget.set(trackId == mBest.trackId ? mBest : mCurrent);
+                        completed = true;
+                    }
                 }
+            }
+            return completed;
+        }
 
-            });
-        } catch (Exception e) {
-            Log.e(TAG, e.getMessage());
+        DetectionBus.Record getTarget() {
+            return mTarget;
+        }
+
+        int getSwitchCount() {
+            return mLock.getSwitchCount();
+        }
+
+        static float priority(DetectionBus.Record record) {
+            return record.classId == TrackableObjects.PERSON ? record.score : 1 + record.score;
         }
     }
 
-    @Override
-    public void onObjectDetected(LinkedList<Classifier.Recognition> recognitions,
-                                 int viewFinderWidth, int viewFinderHeight) {
-        String objectName = recognitions.get(0).getTitle();
-        RectF location = recognitions.get(0).getLocation();
-
-        if (objectName.equals("person")) {
-            objectName = "human"; // for dramatic effect!
-
-            for (int i = 1; i < recognitions.size(); i++) {  // prefer other objects over humans
-                if (!recognitions.get(i).getTitle().equals("person")) {
-                    objectName = recognitions.get(i).getTitle();
-                    location = recognitions.get(i).getLocation();
-                    break;
-                }
+    private final Runnable mSpeechConsumer = new Runnable() {
+        @Override
+        public void run() {
+            if (!mSpeechTarget.drain(mSpeechSubscriber)) return;
+
+            DetectionBus.Record target = mSpeechTarget.getTarget();
+            String fineLabel = mCameraObjectRecognizer.getFineLabel(target.trackId);
+            mSpeechCache.speak(fineLabel != null ? fineLabel : speechFor(target.classId),
+                    target.timestamp);
+        }
+    };
+
+    private final Runnable mGazeConsumer = new Runnable() {
+        @Override
+        public void run() {
+            if (!mGazeTarget.drain(mGazeSubscriber)) return;
+
+            // Follow the latest detection, PixelbotFace smooths the motion
+            DetectionBus.Record target = mGazeTarget.getTarget();
+            mPixelbotFace.setGazeTarget(target.centerX(), target.centerY());
+            mPerformanceHud.setTarget(target.left, target.top, target.right, target.bottom);
+        }
+    };
+
+    private final Runnable mTrackingConsumer = new Runnable() {
+        @Override
+        public void run() {
+            if (!mTrackingTarget.drain(mTrackingSubscriber) || !mBodyConnected
+                    || mTrackingPaused) {
+                return;
+            }
+
+            DetectionBus.Record target = mTrackingTarget.getTarget();
+            if (mHeadControlLoop != null) {
+                mHeadControlLoop.onTarget(target.timestamp, target.classId, target.centerX(),
+                        target.centerY(), mCameraObjectRecognizer.getHorizontalFov(),
+                        mCameraObjectRecognizer.getVerticalFov());
+                return;
             }
+
+            // Aim at where the target will be when the command arrives rather than where it was
+            // at exposure, allowing for the camera's rotation since, as measured or commanded
+            mTargetPredictor.setFieldOfView(mCameraObjectRecognizer.getHorizontalFov(),
+                    mCameraObjectRecognizer.getVerticalFov());
+            mTargetPredictor.predict(target.timestamp, target.classId, target.centerX(),
+                    target.centerY(), SystemClock.elapsedRealtimeNanos() + BODY_LINK_LATENCY_NS);
+
+            // Track the object
+            mPixelbotBodyController.trackServo(
+                    BodyProtocol.panError(mTargetPredictor.getPredictedX()),
+                    BodyProtocol.tiltError(mTargetPredictor.getPredictedY()), mDriveEnabled,
+                    BodyProtocol.objectSize(target.area()));
+        }
+    };
+
+    private final VoiceCommandRecognizer.Listener mVoiceCommandListener =
+            new VoiceCommandRecognizer.Listener() {
+        @Override
+        public void onVoiceCommand(final String command, long timestamp) {
+            mBodyHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleVoiceCommand(command);
+                }
+            });
+        }
+    };
+
+    // Runs on the body thread, after any tracking command already queued
+    private void handleVoiceCommand(String command) {
+        switch (command) {
+            case "stop":
+                mTrackingPaused = true;
+                if (mHeadControlLoop != null) {
+                    mHeadControlLoop.clearTarget();
+                } else {
+                    // Held and sent on reconnect if the link is down
+                    mPixelbotBodyController.stop();
+                }
+                break;
+            case "go":
+                mTrackingPaused = false;
+                break;
+            case "on":
+                mDriveEnabled = mHeadControlLoop == null;
+                break;
+            case "off":
+                mDriveEnabled = false;
+                break;
+            case "left":
+                lookToward(HEAD_NUDGE, (byte) 0);
+                break;
+            case "right":
+                lookToward((byte) -HEAD_NUDGE, (byte) 0);
+                break;
+            case "up":
+                lookToward((byte) 0, (byte) -HEAD_NUDGE);
+                break;
+            case "down":
+                lookToward((byte) 0, HEAD_NUDGE);
+                break;
+            default:
+                // "yes" and "no" have no body action
+                break;
         }
+    }
 
-        speak(objectName);
+    // Looks where told until "go" resumes tracking. Errors are signed as for a target that way.
+    private void lookToward(byte panError, byte tiltError) {
+        mTrackingPaused = true;
+        if (!mBodyConnected) return;
 
-        if (mBodyConnected) {
-            // Track the object to scale (-128, 127). Invert pan because of front-facing camera
-            float panError = -255 * (location.centerX() - viewFinderWidth / 2) / viewFinderWidth;
-            float tiltError = 255 * (location.centerY() - viewFinderHeight / 2) / viewFinderHeight;
-            float objectSize = 255 * location.width() * location.height() / (viewFinderWidth * viewFinderHeight);
-            mPixelbotBodyController.trackServo((byte)panError, (byte)tiltError, true,
-                    (byte) objectSize);
+        if (mHeadControlLoop != null) {
+            mHeadControlLoop.nudge(Math.signum(panError) * HEAD_NUDGE_DEGREES,
+                    Math.signum(tiltError) * HEAD_NUDGE_DEGREES);
+        } else {
+            mPixelbotBodyController.nudgeHead(panError, tiltError);
         }
     }
 
@@ -186,11 +833,17 @@ public class MainActivity extends AppCompatActivity implements
     public void onBluetoothConnected() {
         Log.d(TAG, "Bluetooth connected");
         mBodyConnected = true;
+        if (mHeadControlLoop != null) {
+            mHeadControlLoop.start();
+        }
     }
 
     @Override
     public void onBluetoothConnectionFailed(String errorMsg) {
         Log.e(TAG, errorMsg);
         mBodyConnected = false;
+        if (mHeadControlLoop != null) {
+            mHeadControlLoop.stop();
+        }
     }
 }
@@ -0,0 +1,116 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Captures 16-bit mono PCM from the microphone in 10 ms blocks on its own thread.
+ */
+public class MicrophoneAudioSource implements AudioSource {
+    private static final String TAG = "MicrophoneAudioSource";
+    private static final int BLOCKS_PER_SECOND = 100;
+    private static final int BUFFER_MS = 200;  // absorbs scheduling hiccups on the capture thread
+
+    private final int mSampleRate;
+    private final short[] mBlock;
+    private final AudioTimestamp mAudioTimestamp = new AudioTimestamp();
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    public MicrophoneAudioSource(int sampleRate) {
+        mSampleRate = sampleRate;
+        mBlock = new short[sampleRate / BLOCKS_PER_SECOND];
+    }
+
+    @Override
+    public synchronized void start(final Listener listener) {
+        if (mThread != null) return;
+        final int bufferSize = Math.max(AudioRecord.getMinBufferSize(mSampleRate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT),
+                mSampleRate * BUFFER_MS / 1000 * 2);
+        final AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.VOICE_RECOGNITION,
+                mSampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                bufferSize);
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.e(TAG, "Can't open the microphone, is RECORD_AUDIO granted?");
+            record.release();
+            return;
+        }
+
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                try {
+                    capture(record, listener);
+                } finally {
+                    record.release();
+                }
+            }
+        }, "AudioCapture");
+        mThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mThread == null) return;
+        mRunning = false;
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    private void capture(AudioRecord record, Listener listener) {
+        record.startRecording();
+        long framesRead = 0;
+        while (mRunning) {
+            final int count = record.read(mBlock, 0, mBlock.length);
+            if (count < 0) {
+                Log.e(TAG, "Microphone read failed: " + count);
+                break;
+            }
+            framesRead += count;
+            listener.onAudioAvailable(mBlock, count, timestamp(record, framesRead));
+        }
+        record.stop();
+    }
+
+    // Capture time of the frame before framesRead, from the HAL's timestamp when it has one
+    private long timestamp(AudioRecord record, long framesRead) {
+        if (record.getTimestamp(mAudioTimestamp, AudioTimestamp.TIMEBASE_BOOTTIME)
+                == AudioRecord.SUCCESS) {
+            return mAudioTimestamp.nanoTime
+                    + (framesRead - 1 - mAudioTimestamp.framePosition) * 1000000000L / mSampleRate;
+        }
+        return SystemClock.elapsedRealtimeNanos();
+    }
+}
@@ -0,0 +1,334 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package com.example.pixelbotbrain;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Typeface;
+import android.os.SystemClock;
+import android.util.TypedValue;
+import android.view.View;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Overlays live pipeline health on the face: camera and detector frame rates, inference
+ * latency percentiles, frame buffers in use, the Bluetooth link, and the followed target over a
+ * small preview of what the camera sees.
+ *
+ * Everything is read from counters the pipeline already keeps and sampled at a capped rate while
+ * the HUD is shown, and it only listens for camera frames while shown, so it costs nothing when
+ * hidden. Text and preview live in buffers allocated
+ * once, and drawing doesn't allocate.
+ */
+public class PerformanceHud extends View implements CameraObjectRecognizer.RgbFrameListener {
+    private static final long REFRESH_INTERVAL_MS = 250;
+    private static final long PREVIEW_INTERVAL_NS = 200000000L;  // 5 fps
+    private static final long TARGET_TIMEOUT_MS = 1000;
+    private static final int PREVIEW_WIDTH = 160;
+    private static final int NUM_LINES = 4;
+    private static final int MAX_LINE_LENGTH = 64;
+    private static final float TEXT_SIZE_DP = 12;
+    private static final int BACKGROUND_COLOR = 0xa0000000;
+    private static final int TARGET_COLOR = 0xff00ff00;
+
+    private CameraObjectRecognizer mRecognizer;
+    private BluetoothArduinoBridge mBridge;
+
+    // Sampled on each refresh
+    private final long[] mInferenceTimes =
+            new long[CameraObjectRecognizer.getInferenceTimeCapacity()];
+    private long mLastRefreshMs;
+    private long mLastFrameCount;
+    private long mLastDetectionCount;
+    private volatile boolean mRefreshing;
+
+    // Text, formatted in place
+    private final StringBuilder mBuilder = new StringBuilder(MAX_LINE_LENGTH);
+    private final char[][] mLines = new char[NUM_LINES][MAX_LINE_LENGTH];
+    private final int[] mLineLengths = new int[NUM_LINES];
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mBackgroundPaint = new Paint();
+    private final Paint mTargetPaint = new Paint();
+    private final Paint mPreviewPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final float mDensity;
+    private final float mLineHeight;
+    private final float mPadding;
+
+    // Preview, scaled from the camera's frames on the UI thread
+    private final AtomicBoolean mPreviewPending = new AtomicBoolean();
+    private final RectF mPreviewBounds = new RectF();
+    private final RectF mPreviewRect = new RectF();
+    private final RectF mTargetRect = new RectF();
+    private Bitmap mPreview;
+    private Canvas mPreviewCanvas;
+    private BufferPool.Buffer<FrameBuffer> mPendingFrame;
+    private long mLastPreviewNs;
+
+    // Normalized box of the followed target
+    private float mTargetLeft;
+    private float mTargetTop;
+    private float mTargetRight;
+    private float mTargetBottom;
+    private long mTargetMs = -1;
+
+    public PerformanceHud(Context context) {
+        super(context);
+        mDensity = getResources().getDisplayMetrics().density;
+        mTextPaint.setColor(Color.WHITE);
+        mTextPaint.setTypeface(Typeface.MONOSPACE);
+        mTextPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                TEXT_SIZE_DP, getResources().getDisplayMetrics()));
+        mBackgroundPaint.setColor(BACKGROUND_COLOR);
+        mTargetPaint.setColor(TARGET_COLOR);
+        mTargetPaint.setStyle(Paint.Style.STROKE);
+        mTargetPaint.setStrokeWidth(2 * mDensity);
+        mLineHeight = mTextPaint.getFontSpacing();
+        mPadding = 8 * mDensity;
+    }
+
+    /**
+     * Sets what the HUD reports on. Either may be null. Must be called before the HUD is
+     * attached.
+     */
+    public void bind(CameraObjectRecognizer recognizer, BluetoothArduinoBridge bridge) {
+        mRecognizer = recognizer;
+        mBridge = bridge;
+    }
+
+    public void toggle() {
+        setVisibility(getVisibility() == VISIBLE ? GONE : VISIBLE);
+    }
+
+    /**
+     * Shows the box of the target being followed, normalized to the camera frame. Must be
+     * called on the UI thread.
+     */
+    public void setTarget(float left, float top, float right, float bottom) {
+        mTargetLeft = left;
+        mTargetTop = top;
+        mTargetRight = right;
+        mTargetBottom = bottom;
+        mTargetMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Takes a frame for the preview while shown, at most every PREVIEW_INTERVAL_NS. Called on the
+     * camera thread; the frame is held until it has been scaled on the UI thread.
+     */
+    @Override
+    public void onRgbFrame(BufferPool.Buffer<FrameBuffer> frame) {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        if (!mRefreshing || now - mLastPreviewNs < PREVIEW_INTERVAL_NS
+                || !mPreviewPending.compareAndSet(false, true)) {
+            return;
+        }
+        mLastPreviewNs = now;
+        frame.retain();
+        mPendingFrame = frame;
+        if (!post(mUpdatePreview)) {
+            mPendingFrame = null;
+            frame.release();
+            mPreviewPending.set(false);
+        }
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateRefreshing();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateRefreshing();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        updateRefreshing();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        updateRefreshing();
+    }
+
+    // Samples only while the HUD can be seen
+    private void updateRefreshing() {
+        final boolean refresh = isAttachedToWindow() && isShown()
+                && getWindowVisibility() == VISIBLE;
+        if (refresh == mRefreshing) return;
+        mRefreshing = refresh;
+        removeCallbacks(mRefresh);
+        // A hidden HUD doesn't take frames, so the recognizer can skip converting gated ones
+        if (mRecognizer != null) {
+            if (refresh) {
+                mRecognizer.addRgbFrameListener(this);
+            } else {
+                mRecognizer.removeRgbFrameListener(this);
+            }
+        }
+        if (refresh) {
+            // Rates start from the counters as they are now
+            mLastRefreshMs = SystemClock.elapsedRealtime();
+            if (mRecognizer != null) {
+                mLastFrameCount = mRecognizer.getFrameCount();
+                mLastDetectionCount = mRecognizer.getDetectionCount();
+            }
+            post(mRefresh);
+        }
+    }
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRefreshing) return;
+            sample();
+            invalidate();
+            postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    private final Runnable mUpdatePreview = new Runnable() {
+        @Override
+        public void run() {
+            final BufferPool.Buffer<FrameBuffer> frame = mPendingFrame;
+            mPendingFrame = null;
+            final Bitmap rgb = frame.get().getRgbBitmap();
+            if (mPreview == null) {
+                final int height = PREVIEW_WIDTH * rgb.getHeight() / rgb.getWidth();
+                mPreview = Bitmap.createBitmap(PREVIEW_WIDTH, height, Bitmap.Config.ARGB_8888);
+                mPreviewCanvas = new Canvas(mPreview);
+                mPreviewBounds.set(0, 0, PREVIEW_WIDTH, height);
+            }
+            mPreviewCanvas.drawBitmap(rgb, null, mPreviewBounds, mPreviewPaint);
+            frame.release();
+            mPreviewPending.set(false);
+        }
+    };
+
+    private void sample() {
+        final long nowMs = SystemClock.elapsedRealtime();
+        final long elapsedMs = Math.max(nowMs - mLastRefreshMs, 1);
+        mLastRefreshMs = nowMs;
+
+        final StringBuilder b = mBuilder;
+        final CameraObjectRecognizer recognizer = mRecognizer;
+        if (recognizer != null) {
+            final long frames = recognizer.getFrameCount();
+            final long detections = recognizer.getDetectionCount();
+            b.setLength(0);
+            b.append("camera ");
+            appendTenths(b, (frames - mLastFrameCount) * 10000 / elapsedMs);
+            b.append(" fps  detector ");
+            appendTenths(b, (detections - mLastDetectionCount) * 10000 / elapsedMs);
+            b.append(" fps");
+            setLine(0);
+            mLastFrameCount = frames;
+            mLastDetectionCount = detections;
+
+            final int n = recognizer.copyInferenceTimes(mInferenceTimes);
+            b.setLength(0);
+            b.append("inference ");
+            if (n == 0) {
+                b.append('-');
+            } else {
+                Arrays.sort(mInferenceTimes, 0, n);
+                b.append("p50 ");
+                appendTenths(b, mInferenceTimes[n / 2] / 100000);
+                b.append(" ms  p99 ");
+                appendTenths(b, mInferenceTimes[(n * 99) / 100] / 100000);
+                b.append(" ms");
+            }
+            setLine(1);
+
+            b.setLength(0);
+            b.append("frames ").append(recognizer.getFramesInUse()).append('/')
+                    .append(recognizer.getFramePoolCapacity()).append(" in use");
+            setLine(2);
+        }
+
+        final BluetoothArduinoBridge bridge = mBridge;
+        if (bridge != null) {
+            b.setLength(0);
+            b.append("bt ").append(BluetoothArduinoBridge.getStateName(bridge.getState()))
+                    .append("  ");
+            b.append(bridge.getWritesInFlight()).append(" queued  last write ");
+            appendTenths(b, bridge.getLastWriteNs() / 100000);
+            b.append(" ms");
+            setLine(3);
+        }
+    }
+
+    // Appends value / 10 with one decimal, without going through floats or String.format
+    private static void appendTenths(StringBuilder b, long tenths) {
+        if (tenths < 0) {
+            b.append('-');
+            tenths = -tenths;
+        }
+        b.append(tenths / 10).append('.').append((char) ('0' + tenths % 10));
+    }
+
+    private void setLine(int line) {
+        final int length = Math.min(mBuilder.length(), MAX_LINE_LENGTH);
+        mBuilder.getChars(0, length, mLines[line], 0);
+        mLineLengths[line] = length;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        float width = 0;
+        for (int i = 0; i < NUM_LINES; i++) {
+            width = Math.max(width, mTextPaint.measureText(mLines[i], 0, mLineLengths[i]));
+        }
+        final float previewWidth = mPreview != null ? PREVIEW_WIDTH * mDensity : 0;
+        final float previewHeight = mPreview != null ? mPreview.getHeight() * mDensity : 0;
+        width = Math.max(width, previewWidth);
+        final float textTop = mPadding + (previewHeight > 0 ? previewHeight + mPadding : 0);
+        canvas.drawRect(0, 0, width + 2 * mPadding, textTop + NUM_LINES * mLineHeight + mPadding,
+                mBackgroundPaint);
+
+        if (mPreview != null) {
+            mPreviewRect.set(mPadding, mPadding, mPadding + previewWidth,
+                    mPadding + previewHeight);
+            canvas.drawBitmap(mPreview, null, mPreviewRect, mPreviewPaint);
+            if (mTargetMs >= 0
+                    && SystemClock.elapsedRealtime() - mTargetMs < TARGET_TIMEOUT_MS) {
+                mTargetRect.set(mPreviewRect.left + mTargetLeft * previewWidth,
+                        mPreviewRect.top + mTargetTop * previewHeight,
+                        mPreviewRect.left + mTargetRight * previewWidth,
+                        mPreviewRect.top + mTargetBottom * previewHeight);
+                canvas.drawRect(mTargetRect, mTargetPaint);
+            }
+        }
+
+        float y = textTop - mTextPaint.ascent();
+        for (int i = 0; i < NUM_LINES; i++) {
+            canvas.drawText(mLines[i], 0, mLineLengths[i], mPadding, y, mTextPaint);
+            y += mLineHeight;
+        }
+    }
+}
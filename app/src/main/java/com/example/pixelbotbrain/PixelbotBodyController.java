@@ -15,26 +15,48 @@ limitations under the License.
 
 package com.example.pixelbotbrain;
 
-import java.io.IOException;
+import android.os.SystemClock;
 
 /**
  * Controls Pixelbot's body which includes a pan/tilt servo that mounts the phone ("face") and
  * motor controllers, which drive track motors for maneuvering the robot.
  */
 public class PixelbotBodyController extends BluetoothArduinoBridge {
-    // Move servo protocol: SERVO_MOVE_CMD <pan-postion-degrees>  <tilt-position-degrees>
-    private static final byte SERVO_MOVE_CMD = 0;
+    private final byte[] mFrame = new byte[BodyProtocol.MAX_FRAME_SIZE];
+    private final ServoMotionModel mServoMotionModel = new ServoMotionModel();
+
+    /**
+     * Head motion commanded so far, for compensating tracking latency.
+     */
+    public ServoMotionModel getServoMotionModel() {
+        return mServoMotionModel;
+    }
+
+    public synchronized void moveServoCommand(byte panPos, byte tiltPos) {
+        writeFrame(mFrame, BodyProtocol.encodeMoveServo(mFrame, panPos, tiltPos));
+        mServoMotionModel.onMoveCommand(SystemClock.elapsedRealtimeNanos(), panPos & 0xFF,
+                tiltPos & 0xFF);
+    }
 
-    // Track servo protocol: SERVO_TRACK_CMD <pan-error> <tilt-error> <drive-enable> <object-size>
-    private static final byte SERVO_TRACK_CMD = 1;  // check
+    public synchronized void trackServo(byte panError, byte tiltError, boolean drive,
+                                        byte objectSize) {
+        writeFrame(mFrame,
+                BodyProtocol.encodeTrackServo(mFrame, panError, tiltError, drive, objectSize));
+        mServoMotionModel.onTrackCommand(SystemClock.elapsedRealtimeNanos(), panError, tiltError);
+    }
 
-    public void moveServoCommand(byte panPos, byte tiltPos) throws IOException {
-        byte vals[] = { panPos, tiltPos };
-        writeData(SERVO_MOVE_CMD, vals);
+    /**
+     * Turns the head by one burst of tracking correction, as if a target were off to that side,
+     * without driving.
+     */
+    public synchronized void nudgeHead(byte panError, byte tiltError) {
+        trackServo(panError, tiltError, false, (byte) 0);
     }
 
-    public void trackServo(byte panError, byte tiltError, boolean drive, byte objectSize) {
-        byte vals[] = { panError, tiltError, drive == true ? (byte)1 : (byte) 0, objectSize };
-        writeData(SERVO_TRACK_CMD, vals);
+    /**
+     * Holds the head where it is and stops driving.
+     */
+    public synchronized void stop() {
+        trackServo((byte) 0, (byte) 0, false, (byte) 0);
     }
 }
@@ -18,33 +18,79 @@ package com.example.pixelbotbrain;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Paint;
 import android.graphics.Rect;
-import android.graphics.RectF;
+import android.os.Debug;
 import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
+import android.view.ViewGroup;
+
+import java.util.Locale;
 
 /**
  * Pixelbot face. Inspired by Eve :)
+ *
+ * Drawn on the UI thread. Each eye is a child view showing the cached eye bitmap, and blinks
+ * and gaze are animated from Choreographer frame callbacks. Gaze moves the eye views with
+ * setTranslationX() and setTranslationY(), which the hardware renderer applies without
+ * recording them again, so only eyelid frames redraw an eye and nothing redraws the screen.
+ * Each blink logs its frame intervals (jank) and the CPU time spent drawing. See
+ * PixelbotFaceSurface for a renderer that runs off the UI thread.
  */
-public class PixelbotFace extends View {
-    private static final int EYE_W = 700;
-    private static final int EYE_H = (int) (EYE_W * 0.7);
-
-    private static final int EYE_STATE_IDLE = 0;
-    private static final int EYE_STATE_CLOSING = 1;
-    private static final int EYE_STATE_OPENING = 2;
-    private int mEyeState = EYE_STATE_IDLE;
-
-    private Paint mPaint = new Paint();
-    private long mStartTime = System.currentTimeMillis();
-    private int mSubsequentBlinks = 0;
+public class PixelbotFace extends ViewGroup implements FaceDisplay {
+    private static final String TAG = "PixelbotFace";
+
+    private final FaceRenderer mRenderer = new FaceRenderer();
+    private final EyeView mLeftEye;
+    private final EyeView mRightEye;
+    private float mDrawnEyelidFraction;
+    private boolean mFrameCallbackPending;
+
+    // Per-blink frame metrics
+    private long mLastFrameTime;
+    private int mBlinkFrames;
+    private int mJankyFrames;
+    private long mMaxFrameIntervalNs;
+    private long mDrawCpuNs;
+    private int mDraws;
+    private volatile String mLastBlinkStats = "no blinks";
 
     public PixelbotFace(Context context) {
-        super(context);
+        this(context, null);
     }
     public PixelbotFace(Context context, AttributeSet attrs) {
         super(context, attrs);
+        setBackgroundColor(Color.BLACK);
+        mLeftEye = new EyeView(context, true);
+        mRightEye = new EyeView(context, false);
+        addView(mLeftEye);
+        addView(mRightEye);
+    }
+
+    // One eye at rest, drawn from the renderer's bitmap
+    private class EyeView extends View {
+        private final boolean mLeft;
+
+        EyeView(Context context, boolean left) {
+            super(context);
+            mLeft = left;
+        }
+
+        @Override
+        protected void onDraw(Canvas canvas) {
+            final long cpuStart = mRenderer.isBlinking() ? Debug.threadCpuTimeNanos() : 0;
+            canvas.translate(-getLeft(), -getTop());
+            if (mLeft) {
+                mRenderer.drawLeftEye(canvas);
+            } else {
+                mRenderer.drawRightEye(canvas);
+            }
+            if (cpuStart != 0) {
+                mDrawCpuNs += Debug.threadCpuTimeNanos() - cpuStart;
+                mDraws++;
+            }
+        }
     }
 
     @Override
@@ -61,82 +107,127 @@ public class PixelbotFace extends View {
         }
     }
 
-    public void blink() {
-        mEyeState = EYE_STATE_CLOSING;
-        mStartTime = System.currentTimeMillis();
-        invalidate();
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (getDisplay() != null) {
+            mRenderer.setFramePeriod((long) (1e9 / getDisplay().getRefreshRate()));
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        mFrameCallbackPending = false;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+        mRenderer.setSize(getMeasuredWidth(), getMeasuredHeight());
+        measureEye(mLeftEye, mRenderer.getLeftBounds());
+        measureEye(mRightEye, mRenderer.getRightBounds());
     }
 
     @Override
-    protected void onDraw(Canvas canvas) {
-        int w = getMeasuredWidth();
-        int h = getMeasuredHeight();
-        Rect screenRect = new Rect(0, 0, w, h);
-
-        // Make screen black
-        mPaint.setColor(Color.BLACK);
-        canvas.drawRect(screenRect, mPaint);
-
-        // Draw eyes
-        int x1 = w / 4;
-        int x2 = w * 3 / 4;
-        int y = h / 2;
-        RectF leftRect = new RectF(x1 - EYE_W/2, y - EYE_H/2,
-                x1 + EYE_W/2, y + EYE_H/2);
-        RectF rightRect = new RectF(x2 - EYE_W/2, y - EYE_H/2,
-                x2 + EYE_W/2, y + EYE_H/2);
-        drawEye(leftRect, 10, canvas);
-        drawEye(rightRect, -10, canvas);
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        final Rect left = mRenderer.getLeftBounds();
+        final Rect right = mRenderer.getRightBounds();
+        mLeftEye.layout(left.left, left.top, left.right, left.bottom);
+        mRightEye.layout(right.left, right.top, right.right, right.bottom);
     }
 
-    private void drawEye(RectF rect, int angle, Canvas canvas) {
-        canvas.rotate(+angle, rect.centerX(), rect.centerY());
-        mPaint.setColor(0xFF378EDD);
-        canvas.drawOval(rect, mPaint);
-        mPaint.setColor(0xFF000000);
-        mPaint.setStrokeWidth(6);
-        for (int j = (int)rect.top; j < (int)rect.bottom; j += 16) {
-            canvas.drawLine((int)rect.left, j, (int)rect.right, j, mPaint);
+    private static void measureEye(View eye, Rect bounds) {
+        eye.measure(MeasureSpec.makeMeasureSpec(bounds.width(), MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(bounds.height(), MeasureSpec.EXACTLY));
+    }
+
+    /**
+     * Must be called on the UI thread.
+     */
+    @Override
+    public void setGazeTarget(float x, float y) {
+        mRenderer.setGazeTarget(x, y);
+        removeCallbacks(mGazeTimeout);
+        postDelayed(mGazeTimeout, FaceRenderer.GAZE_TIMEOUT_MS);
+        scheduleFrame();
+    }
+
+    private final Runnable mGazeTimeout = new Runnable() {
+        @Override
+        public void run() {
+            mRenderer.lookAhead();
+            scheduleFrame();
+        }
+    };
+
+    @Override
+    public void blink() {
+        post(mStartBlink);
+    }
+
+    private final Runnable mStartBlink = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRenderer.startBlink()) return;
+            mLastFrameTime = 0;
+            mBlinkFrames = 0;
+            mJankyFrames = 0;
+            mMaxFrameIntervalNs = 0;
+            mDrawCpuNs = 0;
+            mDraws = 0;
+            scheduleFrame();
         }
+    };
 
-        maybeAnimateBlink(canvas, new RectF(rect));
-        canvas.rotate(-angle, rect.centerX(), rect.centerY());
+    @Override
+    public String getStatString() {
+        return "last blink: " + mLastBlinkStats;
     }
 
-    private void maybeAnimateBlink(Canvas canvas, RectF rect) {
-        if (mEyeState == EYE_STATE_IDLE) return;
-
-        long elapsedTime = System.currentTimeMillis() - mStartTime;
-        double fraction = elapsedTime / 175.0;
-
-        if (fraction > 0.95) {
-            if (mEyeState == EYE_STATE_CLOSING) {
-                mEyeState = EYE_STATE_OPENING;
-                mStartTime = System.currentTimeMillis();
-                fraction = 0;
-            } else if (mEyeState == EYE_STATE_OPENING) {
-                mSubsequentBlinks++;
-                if (Math.random() < 0.33 && mSubsequentBlinks < 2) {
-                    mEyeState = EYE_STATE_CLOSING;
-                    mStartTime = System.currentTimeMillis();
-                    fraction = 0;
-                } else {
-                    mEyeState = EYE_STATE_IDLE;
-                    mSubsequentBlinks = 0;
-                    return;
+    private void scheduleFrame() {
+        if (mFrameCallbackPending) return;
+        mFrameCallbackPending = true;
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+    }
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameCallbackPending = false;
+            final boolean blinking = mRenderer.isBlinking();
+            if (blinking) {
+                if (mLastFrameTime != 0) {
+                    long interval = frameTimeNanos - mLastFrameTime;
+                    mMaxFrameIntervalNs = Math.max(mMaxFrameIntervalNs, interval);
+                    if (interval > mRenderer.getFramePeriod() * 3 / 2) {
+                        mJankyFrames++;
+                    }
                 }
+                mLastFrameTime = frameTimeNanos;
+                mBlinkFrames++;
             }
-        }
 
-        mPaint.setColor(0xFF000000);
-        int yOffset = -(int)rect.height();
-        if (mEyeState == EYE_STATE_CLOSING) {
-            yOffset += fraction * rect.height();
-        } else {
-            yOffset += (1.0 - fraction) * rect.height();
+            if (mRenderer.animate(frameTimeNanos)) {
+                scheduleFrame();
+            }
+            mLeftEye.setTranslationX(mRenderer.getGazeX());
+            mLeftEye.setTranslationY(mRenderer.getGazeY());
+            mRightEye.setTranslationX(mRenderer.getGazeX());
+            mRightEye.setTranslationY(mRenderer.getGazeY());
+            if (mRenderer.getEyelidFraction() != mDrawnEyelidFraction) {
+                mDrawnEyelidFraction = mRenderer.getEyelidFraction();
+                mLeftEye.invalidate();
+                mRightEye.invalidate();
+            }
+
+            if (blinking && !mRenderer.isBlinking()) {
+                mLastBlinkStats = String.format(Locale.US, "%d frames, %d janky, max interval "
+                                + "%.1f ms, draw CPU %.2f ms/frame", mBlinkFrames, mJankyFrames,
+                        mMaxFrameIntervalNs / 1e6, mDraws == 0 ? 0 : mDrawCpuNs / 1e6 / mDraws);
+                Log.d(TAG, "Blink: " + mLastBlinkStats);
+            }
         }
-        canvas.drawOval(rect.left, rect.top + yOffset, rect.right,
-                rect.bottom + yOffset, mPaint);
-        invalidate();
-    }
+    };
 }
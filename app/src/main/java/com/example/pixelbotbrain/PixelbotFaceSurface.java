@@ -0,0 +1,279 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.View;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Pixelbot face drawn into a SurfaceView on its own render thread, so animation doesn't drop
+ * frames when the UI thread is busy. Frames are paced by a Choreographer running on the render
+ * thread and are only produced while something is animating.
+ *
+ * blink() and setGazeTarget() may be called from any thread. They publish the request through
+ * atomics and wake the render thread, which picks up the latest state at the start of its next
+ * frame; no locks are shared with the callers.
+ */
+public class PixelbotFaceSurface extends SurfaceView implements FaceDisplay,
+        SurfaceHolder.Callback {
+    private static final int FRAME_SAMPLES = 256;
+
+    // Owned by the render thread
+    private final FaceRenderer mRenderer = new FaceRenderer();
+    private HandlerThread mRenderThread;
+    private volatile Handler mRenderHandler;
+    private Choreographer mChoreographer;
+    private boolean mFrameCallbackPending;
+    private int mBlinksHandled;
+    private int mGazeVersionHandled;
+    private long mLastFrameTime;
+
+    // Handed off from other threads
+    private final AtomicInteger mBlinkRequests = new AtomicInteger();
+    private final AtomicLong mGazeTarget = new AtomicLong();  // x and y float bits
+    private final AtomicInteger mGazeVersion = new AtomicInteger();
+    private final AtomicBoolean mWakePending = new AtomicBoolean();
+    private volatile boolean mSurfaceValid;
+    private volatile int mWidth;
+    private volatile int mHeight;
+    private volatile long mFramePeriodNs = 16666667L;
+
+    // Frame time (lock to post) and interval between consecutive animated frames
+    private final AtomicLongArray mFrameTimes = new AtomicLongArray(FRAME_SAMPLES);
+    private final AtomicLongArray mFrameIntervals = new AtomicLongArray(FRAME_SAMPLES);
+    private final AtomicInteger mFrameTimeCount = new AtomicInteger();
+    private final AtomicInteger mFrameIntervalCount = new AtomicInteger();
+    private final AtomicInteger mMissedFrames = new AtomicInteger();
+
+    public PixelbotFaceSurface(Context context) {
+        super(context);
+        getHolder().addCallback(this);
+    }
+    public PixelbotFaceSurface(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        getHolder().addCallback(this);
+    }
+
+    @Override
+    public void onWindowFocusChanged(boolean hasFocus) {
+        super.onWindowFocusChanged(hasFocus);
+        if (hasFocus) {
+            this.setSystemUiVisibility(
+                    View.SYSTEM_UI_FLAG_LAYOUT_STABLE
+                            | View.SYSTEM_UI_FLAG_LAYOUT_HIDE_NAVIGATION
+                            | View.SYSTEM_UI_FLAG_LAYOUT_FULLSCREEN
+                            | View.SYSTEM_UI_FLAG_HIDE_NAVIGATION
+                            | View.SYSTEM_UI_FLAG_FULLSCREEN
+                            | View.SYSTEM_UI_FLAG_IMMERSIVE_STICKY);
+        }
+    }
+
+    @Override
+    public void blink() {
+        mBlinkRequests.incrementAndGet();
+        wake();
+    }
+
+    @Override
+    public void setGazeTarget(float x, float y) {
+        mGazeTarget.set(((long) Float.floatToIntBits(x) << 32)
+                | (Float.floatToIntBits(y) & 0xFFFFFFFFL));
+        mGazeVersion.incrementAndGet();
+        wake();
+    }
+
+    /**
+     * Percentiles of the time to draw and post a frame and of the interval between animated
+     * frames, plus the number of frames that missed a vsync.
+     */
+    @Override
+    public String getStatString() {
+        return String.format(Locale.US, "frame time %s, interval %s, %d missed vsyncs",
+                percentiles(mFrameTimes, mFrameTimeCount.get()),
+                percentiles(mFrameIntervals, mFrameIntervalCount.get()), mMissedFrames.get());
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        final Display display = getDisplay();
+        if (display != null) {
+            mFramePeriodNs = (long) (1e9 / display.getRefreshRate());
+        }
+        mRenderThread = new HandlerThread("FaceRenderThread");
+        mRenderThread.start();
+        mRenderHandler = new Handler(mRenderThread.getLooper());
+        mRenderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mChoreographer = Choreographer.getInstance();  // the render thread's instance
+                mRenderer.setFramePeriod(mFramePeriodNs);
+            }
+        });
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mSurfaceValid = true;
+        final Handler handler = mRenderHandler;
+        if (handler != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mRenderer.setSize(mWidth, mHeight);
+                    scheduleFrame();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        // No frame may touch the surface once this returns
+        mSurfaceValid = false;
+        mRenderHandler = null;
+        mRenderThread.quitSafely();
+        try {
+            mRenderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mRenderThread = null;
+        mChoreographer = null;
+        mFrameCallbackPending = false;
+        mWakePending.set(false);
+    }
+
+    private void wake() {
+        final Handler handler = mRenderHandler;
+        if (handler != null && mWakePending.compareAndSet(false, true)) {
+            handler.post(mWake);
+        }
+    }
+
+    private final Runnable mWake = new Runnable() {
+        @Override
+        public void run() {
+            mWakePending.set(false);
+            scheduleFrame();
+        }
+    };
+
+    private final Runnable mGazeTimeout = new Runnable() {
+        @Override
+        public void run() {
+            mRenderer.lookAhead();
+            scheduleFrame();
+        }
+    };
+
+    private void scheduleFrame() {
+        if (mFrameCallbackPending || mChoreographer == null) return;
+        mFrameCallbackPending = true;
+        mChoreographer.postFrameCallback(mFrameCallback);
+    }
+
+    // Applies the requests published since the last frame
+    private void takeState() {
+        final int blinkRequests = mBlinkRequests.get();
+        if (blinkRequests != mBlinksHandled) {
+            mBlinksHandled = blinkRequests;
+            mRenderer.startBlink();
+        }
+        final int gazeVersion = mGazeVersion.get();
+        if (gazeVersion != mGazeVersionHandled) {
+            mGazeVersionHandled = gazeVersion;
+            final long gaze = mGazeTarget.get();
+            mRenderer.setGazeTarget(Float.intBitsToFloat((int) (gaze >>> 32)),
+                    Float.intBitsToFloat((int) gaze));
+            final Handler handler = mRenderHandler;
+            if (handler != null) {
+                handler.removeCallbacks(mGazeTimeout);
+                handler.postDelayed(mGazeTimeout, FaceRenderer.GAZE_TIMEOUT_MS);
+            }
+        }
+    }
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameCallbackPending = false;
+            if (!mSurfaceValid) return;
+            final long start = SystemClock.elapsedRealtimeNanos();
+
+            takeState();
+            final boolean animating = mRenderer.animate(frameTimeNanos);
+
+            final SurfaceHolder holder = getHolder();
+            final Canvas canvas = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                    ? holder.getSurface().lockHardwareCanvas() : holder.lockCanvas();
+            if (canvas == null) return;
+            try {
+                mRenderer.draw(canvas);
+            } finally {
+                holder.getSurface().unlockCanvasAndPost(canvas);
+            }
+
+            final long end = SystemClock.elapsedRealtimeNanos();
+            mFrameTimes.set(mFrameTimeCount.getAndIncrement() % FRAME_SAMPLES, end - start);
+            if (mLastFrameTime != 0) {
+                final long interval = frameTimeNanos - mLastFrameTime;
+                mFrameIntervals.set(mFrameIntervalCount.getAndIncrement() % FRAME_SAMPLES,
+                        interval);
+                if (interval > mFramePeriodNs * 3 / 2) {
+                    mMissedFrames.incrementAndGet();
+                }
+            }
+
+            if (animating) {
+                mLastFrameTime = frameTimeNanos;
+                scheduleFrame();
+            } else {
+                mLastFrameTime = 0;  // idle gaps aren't missed frames
+            }
+        }
+    };
+
+    private static String percentiles(AtomicLongArray samples, int count) {
+        final int n = Math.min(count, FRAME_SAMPLES);
+        if (n == 0) return "-";
+        final long[] sorted = new long[n];
+        for (int i = 0; i < n; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        return String.format(Locale.US, "p50 %.2f ms p90 %.2f ms p99 %.2f ms", sorted[n / 2] / 1e6,
+                sorted[(n * 9) / 10] / 1e6, sorted[(n * 99) / 100] / 1e6);
+    }
+}
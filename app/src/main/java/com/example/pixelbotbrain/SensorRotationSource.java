@@ -0,0 +1,163 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package com.example.pixelbotbrain;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures how the camera turns with the gyroscope, integrating its rates on a sensor thread at
+ * the fastest rate the device offers. Devices without a gyroscope fall back to the game rotation
+ * vector, turning the change between consecutive orientations into angles.
+ *
+ * Pan is the rotation about one of the phone's axes and tilt about another, signed to match the
+ * servos; the defaults in MainActivity are for the phone mounted upright facing out of the head.
+ */
+public class SensorRotationSource implements RotationSource {
+    private static final String TAG = "SensorRotationSource";
+    // Sensor clocks that differ from elapsedRealtimeNanos() by more than this are rebased
+    private static final long MAX_CLOCK_OFFSET_NS = 100000000L;
+
+    private final SensorManager mSensorManager;
+    private final int mPanAxis;
+    private final float mPanSign;
+    private final int mTiltAxis;
+    private final float mTiltSign;
+    private HandlerThread mThread;
+
+    // Owned by the sensor thread
+    private Listener mListener;
+    private Sensor mSensor;
+    private long mLastTimestamp;
+    private long mClockOffset;
+    private final float[] mAngles = new float[3];  // radians turned about x, y and z
+    private final float[] mRotation = new float[9];
+    private final float[] mLastRotation = new float[9];
+
+    /**
+     * @param panAxis Phone axis, 0 for x, 1 for y or 2 for z, that the head pans about.
+     * @param panSign 1 or -1 to sign the rotation about panAxis as the pan servo's.
+     * @param tiltAxis Phone axis the head tilts about.
+     * @param tiltSign 1 or -1 to sign the rotation about tiltAxis as the tilt servo's.
+     */
+    public SensorRotationSource(Context context, int panAxis, float panSign, int tiltAxis,
+                                float tiltSign) {
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mPanAxis = panAxis;
+        mPanSign = panSign;
+        mTiltAxis = tiltAxis;
+        mTiltSign = tiltSign;
+    }
+
+    @Override
+    public synchronized boolean start(Listener listener) {
+        if (mThread != null) return true;
+
+        Sensor sensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        if (sensor == null) {
+            sensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GAME_ROTATION_VECTOR);
+        }
+        if (sensor == null) {
+            Log.w(TAG, "No gyroscope or rotation vector sensor");
+            return false;
+        }
+
+        mListener = listener;
+        mSensor = sensor;
+        mLastTimestamp = 0;
+        mAngles[0] = mAngles[1] = mAngles[2] = 0;
+        mThread = new HandlerThread("SensorThread", Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mSensorManager.registerListener(mSensorListener, sensor, SensorManager.SENSOR_DELAY_FASTEST,
+                new Handler(mThread.getLooper()));
+        Log.i(TAG, "Measuring rotation with " + sensor.getName());
+        return true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mThread == null) return;
+
+        mSensorManager.unregisterListener(mSensorListener);
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    private final SensorEventListener mSensorListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            if (mLastTimestamp == 0) {
+                // Most sensor HALs stamp events in the elapsedRealtimeNanos() base, not all do
+                final long offset = SystemClock.elapsedRealtimeNanos() - event.timestamp;
+                mClockOffset = Math.abs(offset) > MAX_CLOCK_OFFSET_NS ? offset : 0;
+            }
+
+            if (mSensor.getType() == Sensor.TYPE_GYROSCOPE) {
+                if (mLastTimestamp != 0) {
+                    final float dt = (event.timestamp - mLastTimestamp) / 1e9f;
+                    mAngles[0] += event.values[0] * dt;
+                    mAngles[1] += event.values[1] * dt;
+                    mAngles[2] += event.values[2] * dt;
+                }
+            } else {
+                SensorManager.getRotationMatrixFromVector(mRotation, event.values);
+                if (mLastTimestamp != 0) {
+                    accumulateRotation();
+                }
+                System.arraycopy(mRotation, 0, mLastRotation, 0, 9);
+            }
+            mLastTimestamp = event.timestamp;
+
+            mListener.onRotation(event.timestamp + mClockOffset,
+                    mPanSign * (float) Math.toDegrees(mAngles[mPanAxis]),
+                    mTiltSign * (float) Math.toDegrees(mAngles[mTiltAxis]));
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+    };
+
+    // Adds the small rotation from the last orientation to this one, in phone axes: the
+    // antisymmetric part of last^T * current
+    private void accumulateRotation() {
+        final float[] a = mLastRotation;
+        final float[] b = mRotation;
+        // Elements (2,1), (1,2), (0,2), (2,0), (1,0) and (0,1) of a^T b, both row-major
+        final float d21 = a[2] * b[1] + a[5] * b[4] + a[8] * b[7];
+        final float d12 = a[1] * b[2] + a[4] * b[5] + a[7] * b[8];
+        final float d02 = a[0] * b[2] + a[3] * b[5] + a[6] * b[8];
+        final float d20 = a[2] * b[0] + a[5] * b[3] + a[8] * b[6];
+        final float d10 = a[1] * b[0] + a[4] * b[3] + a[7] * b[6];
+        final float d01 = a[0] * b[1] + a[3] * b[4] + a[6] * b[7];
+        mAngles[0] += (d21 - d12) / 2;
+        mAngles[1] += (d02 - d20) / 2;
+        mAngles[2] += (d10 - d01) / 2;
+    }
+}
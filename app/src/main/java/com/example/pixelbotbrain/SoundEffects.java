@@ -0,0 +1,144 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.media.SoundPool;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Plays short sound effects with minimal startup latency. Effects are decoded once, when
+ * loaded, into a SoundPool with a fixed number of voices; playing one just starts mixing the
+ * decoded samples. play() may be called from any thread and doesn't allocate.
+ *
+ * SoundPool doesn't report when a sound becomes audible, so latency is reported as the time
+ * play() takes to start the voice plus the output buffer duration of the device.
+ */
+public class SoundEffects {
+    private static final int MAX_EFFECTS = 8;
+    private static final int LATENCY_SAMPLES = 64;
+
+    private final Context mContext;
+    private final SoundPool mSoundPool;
+    private final AtomicIntegerArray mSoundIds = new AtomicIntegerArray(MAX_EFFECTS);
+    private final AtomicIntegerArray mLoaded = new AtomicIntegerArray(MAX_EFFECTS);
+    private final AtomicInteger mEffectCount = new AtomicInteger();
+    private final AtomicLongArray mPlayLatencies = new AtomicLongArray(LATENCY_SAMPLES);
+    private final AtomicInteger mPlayCount = new AtomicInteger();
+    private final float mOutputBufferMs;
+
+    /**
+     * @param maxVoices Number of effects that can play at once; the oldest is stopped beyond it.
+     */
+    public SoundEffects(Context context, int maxVoices) {
+        mContext = context;
+        mSoundPool = new SoundPool.Builder()
+                .setMaxStreams(maxVoices)
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_GAME)  // takes the low latency path
+                        .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                        .build())
+                .build();
+        mSoundPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
+            @Override
+            public void onLoadComplete(SoundPool soundPool, int sampleId, int status) {
+                if (status != 0) return;
+                for (int i = 0; i < mEffectCount.get(); i++) {
+                    if (mSoundIds.get(i) == sampleId) {
+                        mLoaded.set(i, 1);
+                    }
+                }
+            }
+        });
+
+        final AudioManager audioManager =
+                (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        mOutputBufferMs = outputBufferMs(audioManager);
+    }
+
+    /**
+     * Decodes a raw resource in the background.
+     *
+     * @return The effect to pass to play().
+     */
+    public synchronized int load(int rawResId) {
+        final int effect = mEffectCount.get();
+        if (effect == MAX_EFFECTS) {
+            throw new IllegalStateException("Too many sound effects");
+        }
+        mSoundIds.set(effect, mSoundPool.load(mContext, rawResId, 1));
+        mEffectCount.set(effect + 1);
+        return effect;
+    }
+
+    /**
+     * Starts playing an effect.
+     *
+     * @return false if the effect hasn't finished loading or no voice could be started.
+     */
+    public boolean play(int effect) {
+        if (mLoaded.get(effect) == 0) return false;
+
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final int streamId = mSoundPool.play(mSoundIds.get(effect), 1.0f, 1.0f, 1, 0, 1.0f);
+        final long latency = SystemClock.elapsedRealtimeNanos() - start;
+        mPlayLatencies.set(mPlayCount.getAndIncrement() % LATENCY_SAMPLES, latency);
+        return streamId != 0;
+    }
+
+    /**
+     * Latency of recent plays: time taken by play() and the device output buffer duration.
+     */
+    public String getStatString() {
+        final int n = Math.min(mPlayCount.get(), LATENCY_SAMPLES);
+        if (n == 0) {
+            return String.format(Locale.US, "no plays, output buffer %.1f ms", mOutputBufferMs);
+        }
+        final long[] latencies = new long[n];
+        for (int i = 0; i < n; i++) {
+            latencies[i] = mPlayLatencies.get(i);
+        }
+        Arrays.sort(latencies);
+        return String.format(Locale.US, "%d plays, play() p50 %.2f ms p90 %.2f ms, "
+                        + "output buffer %.1f ms", mPlayCount.get(), latencies[n / 2] / 1e6,
+                latencies[(n * 9) / 10] / 1e6, mOutputBufferMs);
+    }
+
+    public void release() {
+        mSoundPool.release();
+    }
+
+    // Duration of one output burst, the minimum added between a voice starting and being heard
+    private static float outputBufferMs(AudioManager audioManager) {
+        try {
+            final int frames = Integer.parseInt(
+                    audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER));
+            final int sampleRate = Integer.parseInt(
+                    audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE));
+            return 1000.0f * frames / sampleRate;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.SoundPool;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+import android.speech.tts.Voice;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Speaks a fixed vocabulary with low latency. Each utterance is synthesized to a WAV file once,
+ * in the background after the TTS engine starts, and preloaded into a SoundPool so that
+ * speaking is a matter of starting an already decoded sample. Files are kept in app storage
+ * under a key made of CACHE_VERSION and the engine and voice, so they are only synthesized again
+ * when one of those changes. Until an utterance is cached it is spoken through the TTS engine.
+ *
+ * Each utterance is rate limited on its own, and a new utterance doesn't start while another is
+ * still playing. speak() must be called from one thread; the TTS engine reports progress on its
+ * own binder thread and SoundPool on the main thread, so the fields they share with speak() are
+ * volatile.
+ */
+public class SpeechCache {
+    private static final String TAG = "SpeechCache";
+
+    // Bump when the way utterances are synthesized changes
+    private static final int CACHE_VERSION = 1;
+    private static final String CACHE_DIR = "speech";
+
+    private static final long MIN_REPEAT_INTERVAL_MS = 3000;  // per utterance
+    private static final int WAV_HEADER_SIZE = 44;
+    private static final String SYNTHESIZE_PREFIX = "synthesize:";
+    private static final String SPEAK_PREFIX = "speak:";
+    private static final long[] LATENCY_BUCKETS_NS = {50000000L, 100000000L, 200000000L,
+            500000000L, 1000000000L, 2000000000L};
+
+    private static class Utterance {
+        final String text;
+        volatile File file;
+        volatile int soundId;  // 0 until loaded into the SoundPool
+        volatile long durationMs;
+        long lastSpokenMs = -MIN_REPEAT_INTERVAL_MS;
+        volatile long requestedNs;  // detection time of a pending TTS fallback, for latency logging
+
+        Utterance(String text) {
+            this.text = text;
+        }
+    }
+
+    private final Context mContext;
+    private final HashMap<String, Utterance> mUtterances = new HashMap<String, Utterance>();
+    private final HashMap<Integer, Utterance> mLoading = new HashMap<Integer, Utterance>();
+    private final SoundPool mSoundPool;
+    private final TextToSpeech mTts;
+    private final Bundle mSpeakParams = new Bundle();
+    private volatile boolean mTtsReady;
+    private long mBusyUntilMs;
+    private volatile int mSpokenCount;
+    private final Metrics.Histogram mLatencyHistogram = new Metrics.Histogram(LATENCY_BUCKETS_NS);
+
+    /**
+     * @param vocabulary Every utterance that will be passed to speak().
+     */
+    public SpeechCache(Context context, String[] vocabulary) {
+        mContext = context;
+        for (String text : vocabulary) {
+            mUtterances.put(text, new Utterance(text));
+        }
+
+        mSoundPool = new SoundPool.Builder()
+                .setMaxStreams(1)
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_GAME)  // takes the low latency path
+                        .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                        .build())
+                .build();
+        mSoundPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
+            @Override
+            public void onLoadComplete(SoundPool soundPool, int sampleId, int status) {
+                Utterance utterance;
+                synchronized (mLoading) {
+                    utterance = mLoading.remove(sampleId);
+                }
+                if (utterance == null) return;
+                if (status == 0) {
+                    utterance.soundId = sampleId;
+                } else {
+                    Log.w(TAG, "Can't load " + utterance.file);
+                }
+            }
+        });
+
+        mTts = new TextToSpeech(context, new TextToSpeech.OnInitListener() {
+            @Override
+            public void onInit(int status) {
+                if (status == TextToSpeech.SUCCESS) {
+                    mTtsReady = true;
+                    prepare();
+                } else {
+                    Log.e(TAG, "TextToSpeech failed to initialize: " + status);
+                }
+            }
+        });
+        mTts.setOnUtteranceProgressListener(mProgressListener);
+    }
+
+    /**
+     * Speaks text unless it was spoken within the last MIN_REPEAT_INTERVAL_MS or another
+     * utterance is still playing.
+     *
+     * @param detectionNs SystemClock.elapsedRealtimeNanos() of what prompted the utterance, used
+     *                    to log the latency to playback.
+     */
+    public void speak(String text, long detectionNs) {
+        final Utterance utterance = mUtterances.get(text);
+        if (utterance == null) {
+            Log.w(TAG, "Not in vocabulary: " + text);
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        if (now < mBusyUntilMs || now - utterance.lastSpokenMs < MIN_REPEAT_INTERVAL_MS) return;
+        utterance.lastSpokenMs = now;
+        mSpokenCount++;
+
+        final int soundId = utterance.soundId;
+        if (soundId != 0) {
+            mSoundPool.play(soundId, 1.0f, 1.0f, 1, 0, 1.0f);
+            mBusyUntilMs = now + utterance.durationMs;
+            final long latencyNs = SystemClock.elapsedRealtimeNanos() - detectionNs;
+            mLatencyHistogram.observe(latencyNs);
+            Log.d(TAG, String.format(Locale.US, "Speech latency %.1f ms (cached '%s')",
+                    latencyNs / 1e6, text));
+        } else if (mTtsReady) {
+            utterance.requestedNs = detectionNs;
+            mTts.speak(text, TextToSpeech.QUEUE_FLUSH, mSpeakParams, SPEAK_PREFIX + text);
+            mBusyUntilMs = now + MIN_REPEAT_INTERVAL_MS;  // duration unknown
+        }
+    }
+
+    /**
+     * Exports the utterance count and the latency from detection to playback.
+     */
+    public void registerMetrics(Metrics metrics) {
+        metrics.addCounter("pixelbot_speech_utterances_total",
+                "Utterances started, whether cached or through TTS", new Metrics.Value() {
+                    @Override
+                    public long get() {
+                        return mSpokenCount;
+                    }
+                });
+        metrics.addHistogram("pixelbot_speech_latency_seconds",
+                "Time from the detection prompting an utterance to its playback",
+                mLatencyHistogram);
+    }
+
+    /** Number of utterances started, whether cached or through TTS. */
+    public int getSpokenCount() {
+        return mSpokenCount;
+    }
+
+    public void release() {
+        mTts.shutdown();
+        mSoundPool.release();
+    }
+
+    // Loads cached utterances and queues synthesis of the missing ones. Called once the TTS
+    // engine is up; the engine synthesizes on its own thread.
+    private void prepare() {
+        final File cacheDir = new File(mContext.getFilesDir(), CACHE_DIR);
+        final File keyDir = new File(cacheDir, cacheKey());
+        deleteStaleCaches(cacheDir, keyDir);
+        if (!keyDir.isDirectory() && !keyDir.mkdirs()) {
+            Log.e(TAG, "Can't create " + keyDir);
+            return;
+        }
+
+        int synthesizing = 0;
+        for (Utterance utterance : mUtterances.values()) {
+            utterance.file = new File(keyDir, fileName(utterance.text));
+            if (utterance.file.length() > WAV_HEADER_SIZE) {
+                load(utterance);
+            } else {
+                // Written to a temporary file so that an interrupted synthesis isn't cached
+                mTts.synthesizeToFile(utterance.text, null, temporaryFile(utterance),
+                        SYNTHESIZE_PREFIX + utterance.text);
+                synthesizing++;
+            }
+        }
+        Log.i(TAG, (mUtterances.size() - synthesizing) + " utterances cached, synthesizing "
+                + synthesizing + " in " + keyDir.getName());
+    }
+
+    private final UtteranceProgressListener mProgressListener = new UtteranceProgressListener() {
+        @Override
+        public void onStart(String utteranceId) {
+            if (!utteranceId.startsWith(SPEAK_PREFIX)) return;
+            final Utterance utterance =
+                    mUtterances.get(utteranceId.substring(SPEAK_PREFIX.length()));
+            if (utterance != null) {
+                final long latencyNs = SystemClock.elapsedRealtimeNanos() - utterance.requestedNs;
+                mLatencyHistogram.observe(latencyNs);
+                Log.d(TAG, String.format(Locale.US, "Speech latency %.1f ms (TTS '%s')",
+                        latencyNs / 1e6, utterance.text));
+            }
+        }
+
+        @Override
+        public void onDone(String utteranceId) {
+            if (!utteranceId.startsWith(SYNTHESIZE_PREFIX)) return;
+            final Utterance utterance =
+                    mUtterances.get(utteranceId.substring(SYNTHESIZE_PREFIX.length()));
+            if (utterance != null && temporaryFile(utterance).renameTo(utterance.file)) {
+                load(utterance);
+            }
+        }
+
+        @Override
+        public void onError(String utteranceId) {
+            Log.w(TAG, "TTS failed for " + utteranceId);
+        }
+    };
+
+    private void load(Utterance utterance) {
+        utterance.durationMs = wavDurationMs(utterance.file);
+        synchronized (mLoading) {
+            mLoading.put(mSoundPool.load(utterance.file.getPath(), 1), utterance);
+        }
+    }
+
+    private String cacheKey() {
+        String voice = "default";
+        final Voice currentVoice = mTts.getVoice();
+        if (currentVoice != null) {
+            voice = currentVoice.getName();
+        }
+        return ("v" + CACHE_VERSION + "-" + mTts.getDefaultEngine() + "-" + voice)
+                .replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private static void deleteStaleCaches(File cacheDir, File keep) {
+        final File[] dirs = cacheDir.listFiles();
+        if (dirs == null) return;
+        for (File dir : dirs) {
+            if (dir.equals(keep)) continue;
+            final File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    private static String fileName(String text) {
+        return text.replaceAll("[^A-Za-z0-9]", "_") + ".wav";
+    }
+
+    private static File temporaryFile(Utterance utterance) {
+        return new File(utterance.file.getPath() + ".tmp");
+    }
+
+    // Duration of a PCM WAV file from its canonical 44 byte header
+    private static long wavDurationMs(File file) {
+        final byte[] header = new byte[WAV_HEADER_SIZE];
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            if (in.read(header) != WAV_HEADER_SIZE) return 0;
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) { }
+            }
+        }
+        final int channels = (header[22] & 0xff) | (header[23] & 0xff) << 8;
+        final int sampleRate = (header[24] & 0xff) | (header[25] & 0xff) << 8
+                | (header[26] & 0xff) << 16 | (header[27] & 0xff) << 24;
+        final int bitsPerSample = (header[34] & 0xff) | (header[35] & 0xff) << 8;
+        final long bytesPerSecond = (long) sampleRate * channels * bitsPerSample / 8;
+        if (bytesPerSecond <= 0) return 0;
+        return (file.length() - WAV_HEADER_SIZE) * 1000 / bytesPerSecond;
+    }
+}
@@ -0,0 +1,263 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.pixelbotbrain.tensorflow.ModelLoader;
+import com.example.pixelbotbrain.tensorflow.StyleTransferModel;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Restyles the camera feed live with the TensorFlow demo's multi-style transfer network. Frames
+ * are taken from the detector's RGB conversion rather than a second camera stream, and only when
+ * the previous one is done and the target frame interval has passed, so at most one frame is in
+ * flight. Stylizing runs on a background priority thread and adapts its resolution tier to
+ * spend no more than a fixed share of each frame interval, leaving the rest to detection.
+ */
+public class StyleTransfer implements CameraObjectRecognizer.RgbFrameListener {
+    private static final String TAG = "StyleTransfer";
+
+    private static final String MODEL_FILE = "file:///android_asset/stylize_quantized.pb";
+
+    // Widths of the resolution tiers, heights follow the camera aspect ratio
+    private static final int[] TIER_WIDTHS = {128, 192, 256, 384, 512};
+    private static final int INITIAL_TIER = 1;
+
+    private static final int TARGET_FPS = 10;
+    private static final long FRAME_INTERVAL_NS = 1000000000L / TARGET_FPS;
+    // Share of the frame interval stylizing may take before stepping down a tier, and below
+    // which it steps up after TIER_UP_FRAMES frames in a row
+    private static final float MAX_DUTY = 0.6f;
+    private static final float MIN_DUTY = 0.25f;
+    private static final int TIER_UP_FRAMES = 10;
+    private static final float TIME_SMOOTHING = 0.3f;
+
+    /**
+     * Shows stylized frames. Called on the style thread; the frame is reused once it returns.
+     */
+    public interface Display {
+        void showStyledFrame(Bitmap frame, int style);
+    }
+
+    private final Context mContext;
+    private final Display mDisplay;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private volatile StyleTransferModel mModel;
+    private boolean mModelFailed;
+
+    // Per tier input and output, created when the tier is first used and kept
+    private final Bitmap[] mInputs = new Bitmap[TIER_WIDTHS.length];
+    private final Bitmap[] mOutputs = new Bitmap[TIER_WIDTHS.length];
+    private final Canvas[] mInputCanvases = new Canvas[TIER_WIDTHS.length];
+    private final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final RectF mScaleDest = new RectF();
+    private final AtomicBoolean mBusy = new AtomicBoolean();
+    private long mLastStart;
+    private volatile BufferPool.Buffer<FrameBuffer> mFrame;  // handed to the style thread
+
+    // Owned by the style thread
+    private volatile int mTier = INITIAL_TIER;
+    private volatile float mFrameTimeNs;
+    private int mFastFrames;
+    private final float[] mStyleWeights = new float[StyleTransferModel.NUM_STYLES];
+    private int mAppliedStyle = -1;
+    private volatile int mStyle;
+
+    // Stats
+    private volatile int mFrames;
+    private volatile int mTierChanges;
+
+    public StyleTransfer(Context context, Display display) {
+        mContext = context;
+        mDisplay = display;
+    }
+
+    public int getStyleCount() {
+        return StyleTransferModel.NUM_STYLES;
+    }
+
+    public void setStyle(int style) {
+        mStyle = Math.max(0, Math.min(style, StyleTransferModel.NUM_STYLES - 1));
+    }
+
+    public void nextStyle() {
+        mStyle = (mStyle + 1) % StyleTransferModel.NUM_STYLES;
+    }
+
+    public void start() {
+        mThread = new HandlerThread("StyleThread", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        synchronized (this) {
+            mHandler = new Handler(mThread.getLooper());
+        }
+        // Loaded on the style thread so TensorFlow's threads inherit its priority
+        mHandler.post(mOpenModel);
+    }
+
+    public void stop() {
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (final InterruptedException e) {
+            Log.e(TAG, e.getMessage());
+        }
+        synchronized (this) {
+            mThread = null;
+            mHandler = null;
+        }
+        mBusy.set(false);
+    }
+
+    public void close() {
+        final StyleTransferModel model = mModel;
+        mModel = null;
+        if (model != null) {
+            model.close();
+        }
+    }
+
+    /**
+     * Takes the frame if the style thread is idle and a frame is due. Called on the camera thread;
+     * the frame is held and scaled on the style thread.
+     */
+    @Override
+    public void onRgbFrame(BufferPool.Buffer<FrameBuffer> frame) {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        if (mModel == null || now - mLastStart < FRAME_INTERVAL_NS
+                || !mBusy.compareAndSet(false, true)) {
+            return;
+        }
+        mLastStart = now;
+
+        synchronized (this) {
+            if (mHandler == null) {
+                mBusy.set(false);
+                return;
+            }
+            frame.retain();
+            mFrame = frame;
+            mHandler.post(mStylize);
+        }
+    }
+
+    public String getStatString() {
+        final int tier = mTier;
+        return String.format("%d frames, tier %d (%d px wide), %.1f ms per frame, "
+                + "%d tier changes", mFrames, tier, TIER_WIDTHS[tier], mFrameTimeNs / 1e6,
+                mTierChanges);
+    }
+
+    private final Runnable mStylize = new Runnable() {
+        @Override
+        public void run() {
+            final int tier = mTier;
+            final Bitmap input = scaleFrame(tier);
+            final int style = mStyle;
+            if (style != mAppliedStyle) {
+                for (int i = 0; i < mStyleWeights.length; i++) {
+                    mStyleWeights[i] = i == style ? 1 : 0;
+                }
+                mAppliedStyle = style;
+            }
+
+            final long start = SystemClock.elapsedRealtimeNanos();
+            mModel.stylize(input, mOutputs[tier], mStyleWeights);
+            final long time = SystemClock.elapsedRealtimeNanos() - start;
+            mDisplay.showStyledFrame(mOutputs[tier], style);
+            mFrames++;
+            adaptTier(tier, time);
+            mBusy.set(false);
+        }
+    };
+
+    // Scales the held frame into the tier's input and lets the frame go
+    private Bitmap scaleFrame(int tier) {
+        final BufferPool.Buffer<FrameBuffer> frame = mFrame;
+        mFrame = null;
+        final Bitmap rgb = frame.get().getRgbBitmap();
+        Bitmap input = mInputs[tier];
+        if (input == null) {
+            final int width = TIER_WIDTHS[tier];
+            final int height = (width * rgb.getHeight() / rgb.getWidth()) & ~3;
+            input = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mInputs[tier] = input;
+            mInputCanvases[tier] = new Canvas(input);
+            mOutputs[tier] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        mScaleDest.set(0, 0, input.getWidth(), input.getHeight());
+        mInputCanvases[tier].drawBitmap(rgb, null, mScaleDest, mScalePaint);
+        frame.release();
+        return input;
+    }
+
+    // Steps the resolution down as soon as frames take too long, and up only after a run of
+    // fast ones, so the tier doesn't oscillate
+    private void adaptTier(int tier, long time) {
+        mFrameTimeNs = mFrameTimeNs == 0 ? time
+                : mFrameTimeNs + TIME_SMOOTHING * (time - mFrameTimeNs);
+        int newTier = tier;
+        if (mFrameTimeNs > MAX_DUTY * FRAME_INTERVAL_NS && tier > 0) {
+            newTier = tier - 1;
+        } else if (mFrameTimeNs < MIN_DUTY * FRAME_INTERVAL_NS
+                && tier < TIER_WIDTHS.length - 1) {
+            if (++mFastFrames >= TIER_UP_FRAMES) {
+                newTier = tier + 1;
+            }
+        } else {
+            mFastFrames = 0;
+        }
+        if (newTier == tier) return;
+
+        // Cost scales with the pixel count
+        final float scale = (float) TIER_WIDTHS[newTier] / TIER_WIDTHS[tier];
+        mFrameTimeNs *= scale * scale;
+        mFastFrames = 0;
+        mTier = newTier;
+        mTierChanges++;
+        Log.i(TAG, String.format("Tier %d (%d px wide) at %.1f ms per frame", newTier,
+                TIER_WIDTHS[newTier], time / 1e6));
+    }
+
+    private final Runnable mOpenModel = new Runnable() {
+        @Override
+        public void run() {
+            if (mModel != null || mModelFailed) return;
+            try {
+                final int maxWidth = TIER_WIDTHS[TIER_WIDTHS.length - 1];
+                mModel = StyleTransferModel.create(
+                        ModelLoader.map(mContext.getAssets(),
+                                ModelLoader.resolve(mContext.getFilesDir(), MODEL_FILE)),
+                        maxWidth * maxWidth);  // up to a square camera
+            } catch (final IOException e) {
+                Log.e(TAG, "Can't load " + MODEL_FILE + ": " + e.getMessage());
+                mModelFailed = true;
+            }
+        }
+    };
+}
@@ -0,0 +1,134 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.View;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Shows the stylized camera feed in place of the face, mirrored like a selfie, with the current
+ * style's thumbnail in the corner. Frames are drawn straight from the style thread.
+ */
+public class StyleTransferView extends SurfaceView implements StyleTransfer.Display,
+        SurfaceHolder.Callback {
+    private static final String TAG = "StyleTransferView";
+    private static final float THUMBNAIL_SIZE = 0.2f;  // of the view height
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final RectF mFrameRect = new RectF();
+    private final RectF mThumbnailRect = new RectF();
+    private boolean mSurfaceValid;  // guarded by this
+    private Bitmap mThumbnail;
+    private int mThumbnailStyle = -1;
+
+    public StyleTransferView(Context context) {
+        super(context);
+        getHolder().addCallback(this);
+    }
+
+    @Override
+    public void onWindowFocusChanged(boolean hasFocus) {
+        super.onWindowFocusChanged(hasFocus);
+        if (hasFocus) {
+            this.setSystemUiVisibility(
+                    View.SYSTEM_UI_FLAG_LAYOUT_STABLE
+                            | View.SYSTEM_UI_FLAG_LAYOUT_HIDE_NAVIGATION
+                            | View.SYSTEM_UI_FLAG_LAYOUT_FULLSCREEN
+                            | View.SYSTEM_UI_FLAG_HIDE_NAVIGATION
+                            | View.SYSTEM_UI_FLAG_FULLSCREEN
+                            | View.SYSTEM_UI_FLAG_IMMERSIVE_STICKY);
+        }
+    }
+
+    @Override
+    public synchronized void surfaceCreated(SurfaceHolder holder) {
+        mSurfaceValid = true;
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+    }
+
+    @Override
+    public synchronized void surfaceDestroyed(SurfaceHolder holder) {
+        // Waits for a frame being drawn
+        mSurfaceValid = false;
+    }
+
+    @Override
+    public synchronized void showStyledFrame(Bitmap frame, int style) {
+        if (!mSurfaceValid) return;
+        if (style != mThumbnailStyle) {
+            mThumbnail = loadThumbnail(style);
+            mThumbnailStyle = style;
+        }
+
+        final Canvas canvas = getHolder().lockCanvas();
+        if (canvas == null) return;
+        try {
+            final int width = canvas.getWidth();
+            final int height = canvas.getHeight();
+            canvas.drawColor(Color.BLACK);
+
+            // Fit the frame, mirrored horizontally
+            final float scale = Math.min((float) width / frame.getWidth(),
+                    (float) height / frame.getHeight());
+            final float frameWidth = frame.getWidth() * scale;
+            final float frameHeight = frame.getHeight() * scale;
+            mFrameRect.set((width - frameWidth) / 2, (height - frameHeight) / 2,
+                    (width + frameWidth) / 2, (height + frameHeight) / 2);
+            canvas.save();
+            canvas.scale(-1, 1, width / 2f, 0);
+            canvas.drawBitmap(frame, null, mFrameRect, mPaint);
+            canvas.restore();
+
+            if (mThumbnail != null) {
+                final float size = height * THUMBNAIL_SIZE;
+                mThumbnailRect.set(width - size, height - size, width, height);
+                canvas.drawBitmap(mThumbnail, null, mThumbnailRect, mPaint);
+            }
+        } finally {
+            getHolder().unlockCanvasAndPost(canvas);
+        }
+    }
+
+    private Bitmap loadThumbnail(int style) {
+        try {
+            final InputStream input = getContext().getAssets().open(
+                    "thumbnails/style" + style + ".jpg");
+            try {
+                return BitmapFactory.decodeStream(input);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "No thumbnail for style " + style);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.pixelbotbrain.tensorflow.ModelLoader;
+import com.example.pixelbotbrain.tensorflow.SpeechCommandModel;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streaming voice commands using the keyword model from the TensorFlow speech commands example.
+ * Audio is written into an AudioWindow as it arrives and the model scores the latest one second
+ * window every hop on a background thread, copying the window straight into the model's input. Successive windows
+ * overlap by all but a hop, and a hop is skipped rather than queued when inference falls behind,
+ * so memory stays fixed and results stay current.
+ *
+ * The model isn't bundled: push conv_actions_frozen.pb to the app's files directory (see
+ * ModelLoader.resolve) or add it to the assets. Without it voice commands are disabled.
+ */
+public class VoiceCommandRecognizer implements AudioSource.Listener {
+    private static final String TAG = "VoiceCommandRecognizer";
+
+    private static final String MODEL_FILE = "file:///android_asset/conv_actions_frozen.pb";
+    private static final String LABELS_FILE = "file:///android_asset/conv_actions_labels.txt";
+
+    // The model was trained on one second clips at 16 kHz
+    public static final int SAMPLE_RATE = 16000;
+    private static final int WINDOW_SIZE = SAMPLE_RATE;
+    private static final int CAPACITY = 2 * SAMPLE_RATE;
+    private static final int HOP_SIZE = SAMPLE_RATE * 40 / 1000;
+
+    // Averaging over a few hops keeps the command latency under 200 ms
+    private static final int SILENCE_LABEL = 0;
+    private static final long AVERAGE_WINDOW_MS = 160;
+    private static final float DETECTION_THRESHOLD = 0.70f;
+    private static final long SUPPRESSION_MS = 1000;
+    private static final int MINIMUM_COUNT = 3;
+
+    private static final int LATENCY_SAMPLES = 256;
+
+    public interface Listener {
+        /**
+         * Called on the recognition thread.
+         *
+         * @param command The label, e.g. "stop".
+         * @param timestamp Roughly when the command had been heard, in the clock audio is
+         *                  stamped with.
+         */
+        void onVoiceCommand(String command, long timestamp);
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+    private AudioSource mAudioSource = new MicrophoneAudioSource(SAMPLE_RATE);
+    private final AudioWindow mWindow = new AudioWindow(WINDOW_SIZE, CAPACITY);
+    private HandlerThread mRecognitionThread;
+    private Handler mRecognitionHandler;
+    private final AtomicBoolean mWakePending = new AtomicBoolean();
+
+    // Owned by the recognition thread
+    private SpeechCommandModel mModel;
+    private boolean mModelFailed;
+    private String[] mLabels;
+    private CommandRecognizer mCommandRecognizer;
+    private long mLastTimestamp;
+    private volatile long mResumeCount;
+    private volatile long mLastEnd;
+
+    // Stats, guarded by this
+    private final long[] mInferenceTimes = new long[LATENCY_SAMPLES];
+    private final long[] mCommandLatencies = new long[LATENCY_SAMPLES];
+    private final long[] mSortScratch = new long[LATENCY_SAMPLES];
+    private int mWindows;
+    private int mCommands;
+    private long mSkippedHops;
+    private int mTornWindows;
+
+    public VoiceCommandRecognizer(Context context, Listener listener) {
+        mContext = context;
+        mListener = listener;
+    }
+
+    /**
+     * Listens to another source, e.g. a WavAudioSource, instead of the microphone. Takes effect
+     * on the next resume.
+     */
+    public void setAudioSource(AudioSource audioSource) {
+        if (audioSource.getSampleRate() != SAMPLE_RATE) {
+            throw new IllegalArgumentException("Audio must be " + SAMPLE_RATE + " Hz, not "
+                    + audioSource.getSampleRate());
+        }
+        mAudioSource = audioSource;
+    }
+
+    public void onResume() {
+        mRecognitionThread = new HandlerThread("VoiceCommandThread");
+        mRecognitionThread.start();
+        synchronized (this) {
+            mRecognitionHandler = new Handler(mRecognitionThread.getLooper());
+            mRecognitionHandler.post(mOpenModel);
+        }
+        // Wait for a full window of new audio rather than recognizing across the pause
+        mResumeCount = mWindow.getWrittenCount();
+        mLastEnd = mResumeCount;
+        mAudioSource.start(this);
+    }
+
+    public void onPause() {
+        mAudioSource.stop();
+        mRecognitionThread.quitSafely();
+        try {
+            mRecognitionThread.join();
+        } catch (final InterruptedException e) {
+            Log.e(TAG, e.getMessage());
+        }
+        synchronized (this) {
+            mRecognitionThread = null;
+            mRecognitionHandler = null;
+        }
+        mWakePending.set(false);
+    }
+
+    public void onDestroy() {
+        if (mModel != null) {
+            mModel.close();
+            mModel = null;
+        }
+    }
+
+    @Override
+    public void onAudioAvailable(short[] samples, int count, long timestamp) {
+        mWindow.write(samples, count, timestamp);
+        if (mWindow.getWrittenCount() - mLastEnd >= HOP_SIZE
+                && mWakePending.compareAndSet(false, true)) {
+            synchronized (this) {
+                if (mRecognitionHandler != null) {
+                    mRecognitionHandler.post(mRecognize);
+                }
+            }
+        }
+    }
+
+    public synchronized String getStatString() {
+        return String.format("%d windows, inference %s, %d commands, latency %s, "
+                + "%d hops skipped, %d torn windows", mWindows,
+                latencyString(mInferenceTimes, Math.min(mWindows, LATENCY_SAMPLES)), mCommands,
+                latencyString(mCommandLatencies, Math.min(mCommands, LATENCY_SAMPLES)),
+                mSkippedHops, mTornWindows);
+    }
+
+    private final Runnable mOpenModel = new Runnable() {
+        @Override
+        public void run() {
+            if (mModel != null || mModelFailed) return;
+            try {
+                final String modelFile = ModelLoader.resolve(mContext.getFilesDir(), MODEL_FILE);
+                mModel = SpeechCommandModel.create(mContext.getAssets(),
+                        ModelLoader.map(mContext.getAssets(), modelFile), LABELS_FILE,
+                        mWindow.getSamples(), SAMPLE_RATE, WINDOW_SIZE);
+            } catch (final IOException e) {
+                Log.w(TAG, "Voice commands disabled, can't load " + MODEL_FILE + ": "
+                        + e.getMessage());
+                mModelFailed = true;
+                return;
+            }
+            final List<String> labels = mModel.getLabels();
+            mLabels = labels.toArray(new String[labels.size()]);
+            mCommandRecognizer = new CommandRecognizer(mLabels.length, SILENCE_LABEL,
+                    AVERAGE_WINDOW_MS, DETECTION_THRESHOLD, SUPPRESSION_MS, MINIMUM_COUNT);
+            Log.i(TAG, "Listening for " + Arrays.toString(mLabels));
+        }
+    };
+
+    private final Runnable mRecognize = new Runnable() {
+        @Override
+        public void run() {
+            mWakePending.set(false);
+            if (mModel == null) return;
+
+            final long end = mWindow.acquire();
+            final long lastEnd = mLastEnd;
+            if (end - mResumeCount < WINDOW_SIZE || end - lastEnd < HOP_SIZE) return;
+            final long timestamp = mWindow.getAcquiredTimestamp();
+            mLastEnd = end;
+
+            final long start = SystemClock.elapsedRealtimeNanos();
+            final boolean intact;
+            synchronized (mWindow) {
+                // The writer waits while the window is copied into the input tensor
+                intact = mWindow.isIntact(end);
+                if (intact) {
+                    mModel.feed(mWindow.getWindowOffset(end));
+                }
+            }
+            final float[] scores = intact ? mModel.recognize() : null;
+            final long inferenceTime = SystemClock.elapsedRealtimeNanos() - start;
+            synchronized (VoiceCommandRecognizer.this) {
+                if (lastEnd != mResumeCount) {
+                    mSkippedHops += (end - lastEnd) / HOP_SIZE - 1;
+                }
+                if (!intact) {
+                    mTornWindows++;  // overwritten since acquire(), the next hop replaces it
+                    return;
+                }
+                mInferenceTimes[mWindows % LATENCY_SAMPLES] = inferenceTime;
+                mWindows++;
+            }
+
+            if (timestamp < mLastTimestamp) {
+                mCommandRecognizer.reset();  // the source started over
+            }
+            mLastTimestamp = timestamp;
+            final int label = mCommandRecognizer.process(scores, timestamp);
+            if (label < 0 || mLabels[label].startsWith("_")) return;
+
+            final long onset = mCommandRecognizer.getOnsetTime();
+            final long latency = SystemClock.elapsedRealtimeNanos() - onset;
+            synchronized (VoiceCommandRecognizer.this) {
+                mCommandLatencies[mCommands % LATENCY_SAMPLES] = latency;
+                mCommands++;
+            }
+            Log.i(TAG, String.format("Heard \"%s\" (%.2f) in %.0f ms", mLabels[label],
+                    mCommandRecognizer.getScore(), latency / 1e6));
+            mListener.onVoiceCommand(mLabels[label], onset);
+        }
+    };
+
+    private String latencyString(final long[] latencies, final int n) {
+        if (n == 0) return "-";
+        System.arraycopy(latencies, 0, mSortScratch, 0, n);
+        Arrays.sort(mSortScratch, 0, n);
+        return String.format("p50 %.1f ms p90 %.1f ms", mSortScratch[n / 2] / 1e6,
+                mSortScratch[(n * 9) / 10] / 1e6);
+    }
+}
@@ -0,0 +1,251 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.tensorflow;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a Classifier asynchronously. At most one frame waits behind the one being inferred:
+ * submitting a newer frame cancels a queued older one, so results are never more than one
+ * inference stale. Results are delivered to a callback on a caller-chosen executor so that
+ * consumers don't run on (and serialize with) the inference thread.
+ */
+public class AsyncClassifier {
+  private static final String TAG = "AsyncClassifier";
+
+  /**
+   * Receives the results of a completed request.
+   */
+  public interface Callback {
+    void onRecognized(Request request, List<Classifier.Recognition> recognitions);
+  }
+
+  /**
+   * Handle for a submitted frame. The bitmap may be reused by the caller once isDone(), or from
+   * the onDone hook passed to submit().
+   */
+  public static class Request implements Future<List<Classifier.Recognition>> {
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int COMPLETED = 2;
+    private static final int CANCELLED = 3;
+
+    private final AtomicInteger state = new AtomicInteger(QUEUED);
+    private final Bitmap bitmap;
+    private final long timestamp;
+    private final Callback callback;
+    private final Executor callbackExecutor;
+    private final Runnable onDone;
+    private List<Classifier.Recognition> recognitions;
+    private RuntimeException failure;
+    private volatile long inferenceTimeNs;
+
+    private Request(final Bitmap bitmap, final long timestamp, final Callback callback,
+        final Executor callbackExecutor, final Runnable onDone) {
+      this.bitmap = bitmap;
+      this.timestamp = timestamp;
+      this.callback = callback;
+      this.callbackExecutor = callbackExecutor;
+      this.onDone = onDone;
+    }
+
+    /** The frame timestamp the request was submitted with. */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /** Time spent in the classifier, once the request has completed. */
+    public long getInferenceTimeNs() {
+      return inferenceTimeNs;
+    }
+
+    /**
+     * Cancels the request if inference hasn't started yet. A running inference can't be
+     * interrupted, so mayInterruptIfRunning is ignored.
+     */
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+      if (state.compareAndSet(QUEUED, CANCELLED)) {
+        synchronized (this) {
+          notifyAll();
+        }
+        if (onDone != null) {
+          onDone.run();
+        }
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return state.get() == CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+      final int s = state.get();
+      return s == COMPLETED || s == CANCELLED;
+    }
+
+    @Override
+    public synchronized List<Classifier.Recognition> get()
+        throws InterruptedException, ExecutionException {
+      while (!isDone()) {
+        wait();
+      }
+      return result();
+    }
+
+    @Override
+    public synchronized List<Classifier.Recognition> get(final long timeout, final TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      final long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (!isDone()) {
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          throw new TimeoutException();
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return result();
+    }
+
+    private List<Classifier.Recognition> result() throws ExecutionException {
+      if (isCancelled()) {
+        throw new CancellationException();
+      }
+      if (failure != null) {
+        throw new ExecutionException(failure);
+      }
+      return recognitions;
+    }
+
+    private boolean start() {
+      return state.compareAndSet(QUEUED, RUNNING);
+    }
+
+    private synchronized void complete(final List<Classifier.Recognition> recognitions,
+        final RuntimeException failure) {
+      this.recognitions = recognitions;
+      this.failure = failure;
+      state.set(COMPLETED);
+      notifyAll();
+    }
+  }
+
+  private final Classifier classifier;
+  private final Executor inferenceExecutor;
+  private final AtomicReference<Request> pending = new AtomicReference<Request>();
+
+  private final Runnable runPending = new Runnable() {
+    @Override
+    public void run() {
+      final Request request = pending.getAndSet(null);
+      if (request == null || !request.start()) return;
+
+      List<Classifier.Recognition> recognitions = null;
+      final long start = SystemClock.elapsedRealtimeNanos();
+      try {
+        recognitions = classifier.recognizeImage(request.bitmap);
+        request.inferenceTimeNs = SystemClock.elapsedRealtimeNanos() - start;
+        request.complete(recognitions, null);
+      } catch (final RuntimeException e) {
+        Log.e(TAG, "Inference failed", e);
+        request.complete(null, e);
+        return;
+      } finally {
+        if (request.onDone != null) {
+          request.onDone.run();
+        }
+      }
+
+      if (request.callback != null) {
+        final List<Classifier.Recognition> results = recognitions;
+        request.callbackExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            request.callback.onRecognized(request, results);
+          }
+        });
+      }
+    }
+  };
+
+  /**
+   * @param classifier The classifier to run. Only ever called from the inference executor.
+   * @param inferenceExecutor A serial executor on which inference runs.
+   */
+  public AsyncClassifier(final Classifier classifier, final Executor inferenceExecutor) {
+    this.classifier = classifier;
+    this.inferenceExecutor = inferenceExecutor;
+  }
+
+  public Classifier getClassifier() {
+    return classifier;
+  }
+
+  /**
+   * Queues a frame for inference, cancelling any older frame that is still queued.
+   *
+   * @param bitmap The input, which must not be modified until the request isDone().
+   * @param timestamp The frame timestamp, e.g. Image.getTimestamp().
+   * @param callback Receives the results, may be null if the caller uses the returned future.
+   * @param callbackExecutor Executor the callback is invoked on.
+   */
+  public Request submit(final Bitmap bitmap, final long timestamp, final Callback callback,
+      final Executor callbackExecutor) {
+    return submit(bitmap, timestamp, callback, callbackExecutor, null);
+  }
+
+  /**
+   * As submit() above, also running onDone once the bitmap is no longer needed: when inference
+   * on it finishes or the request is cancelled. Runs on the inference thread or the cancelling
+   * thread, before the callback is invoked.
+   */
+  public Request submit(final Bitmap bitmap, final long timestamp, final Callback callback,
+      final Executor callbackExecutor, final Runnable onDone) {
+    final Request request = new Request(bitmap, timestamp, callback, callbackExecutor, onDone);
+    final Request preempted = pending.getAndSet(request);
+    if (preempted != null) {
+      preempted.cancel(false);
+    }
+    inferenceExecutor.execute(runPending);
+    return request;
+  }
+
+  /**
+   * Cancels the queued frame, if any. An inference already running still completes.
+   */
+  public void cancelPending() {
+    final Request request = pending.getAndSet(null);
+    if (request != null) {
+      request.cancel(false);
+    }
+  }
+}
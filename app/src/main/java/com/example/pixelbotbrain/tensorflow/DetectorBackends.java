@@ -0,0 +1,133 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.tensorflow;
+
+import android.content.res.AssetManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of object detection backends, selectable at runtime by name. Every backend produces
+ * a Classifier that takes a square crop of getInputSize() pixels.
+ */
+public class DetectorBackends {
+  /** Frozen SSD graph on TensorFlow Mobile, loaded from a memory-mapped file. */
+  public static final String TENSORFLOW = "tensorflow";
+
+  /** Frozen SSD graph on TensorFlow Mobile, streamed from the asset (original loading path). */
+  public static final String TENSORFLOW_STREAM = "tensorflow-stream";
+
+  /** Quantized SSD on the TensorFlow Lite CPU interpreter. */
+  public static final String TFLITE_QUANTIZED = "tflite-quantized";
+
+  public static final String DEFAULT = TENSORFLOW;
+
+  private static final String TF_OD_API_MODEL_FILE =
+      "file:///android_asset/ssd_mobilenet_v1_android_export.pb";
+  private static final String TFLITE_OD_API_MODEL_FILE =
+      "file:///android_asset/ssd_mobilenet_v1_quantized_300x300_coco14.tflite";
+  private static final String OD_API_LABELS_FILE =
+      "file:///android_asset/coco_labels_list.txt";
+  private static final int OD_API_INPUT_SIZE = 300;
+
+  /**
+   * Creates Classifiers for one backend.
+   */
+  public abstract static class Backend {
+    private final String name;
+    private final int inputSize;
+
+    protected Backend(final String name, final int inputSize) {
+      this.name = name;
+      this.inputSize = inputSize;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getInputSize() {
+      return inputSize;
+    }
+
+    /**
+     * @param assetManager The asset manager to be used to load assets.
+     * @param filesDir App-private directory checked for model overrides before the assets.
+     * @param numThreads Number of inference threads, if the runtime supports setting it.
+     */
+    public abstract Classifier create(
+        AssetManager assetManager, File filesDir, int numThreads) throws IOException;
+  }
+
+  private static final Map<String, Backend> backends = new LinkedHashMap<String, Backend>();
+
+  static {
+    register(new Backend(TENSORFLOW, OD_API_INPUT_SIZE) {
+      @Override
+      public Classifier create(AssetManager assetManager, File filesDir, int numThreads)
+          throws IOException {
+        // TensorFlow Mobile doesn't expose its intra-op thread pool size; numThreads is ignored.
+        return TensorFlowObjectDetectionAPIModel.create(assetManager,
+            ModelLoader.map(assetManager, ModelLoader.resolve(filesDir, TF_OD_API_MODEL_FILE)),
+            OD_API_LABELS_FILE, getInputSize());
+      }
+    });
+    register(new Backend(TENSORFLOW_STREAM, OD_API_INPUT_SIZE) {
+      @Override
+      public Classifier create(AssetManager assetManager, File filesDir, int numThreads)
+          throws IOException {
+        return TensorFlowObjectDetectionAPIModel.create(assetManager, TF_OD_API_MODEL_FILE,
+            OD_API_LABELS_FILE, getInputSize());
+      }
+    });
+    register(new Backend(TFLITE_QUANTIZED, OD_API_INPUT_SIZE) {
+      @Override
+      public Classifier create(AssetManager assetManager, File filesDir, int numThreads)
+          throws IOException {
+        return TFLiteObjectDetectionAPIModel.create(assetManager,
+            ModelLoader.map(assetManager, ModelLoader.resolve(filesDir, TFLITE_OD_API_MODEL_FILE)),
+            OD_API_LABELS_FILE, getInputSize(), numThreads);
+      }
+    });
+  }
+
+  public static synchronized void register(final Backend backend) {
+    backends.put(backend.getName(), backend);
+  }
+
+  /**
+   * Returns the named backend.
+   *
+   * @throws IllegalArgumentException if no backend of that name is registered.
+   */
+  public static synchronized Backend get(final String name) {
+    final Backend backend = backends.get(name);
+    if (backend == null) {
+      throw new IllegalArgumentException("Unknown detector backend '" + name + "', expected one of "
+          + backends.keySet());
+    }
+    return backend;
+  }
+
+  public static synchronized List<String> getNames() {
+    return new ArrayList<String>(backends.keySet());
+  }
+}
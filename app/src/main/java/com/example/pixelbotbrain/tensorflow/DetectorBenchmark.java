@@ -0,0 +1,152 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.tensorflow;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs a candidate detector side by side with a reference detector on the same frames and
+ * tracks the latency of each and how often the candidate agrees with the reference. A reference
+ * detection counts as matched if the candidate has one with the same title and IoU >= 0.5.
+ */
+public class DetectorBenchmark implements Classifier {
+  private static final int LATENCY_SAMPLES = 256;
+  private static final float MATCH_IOU = 0.5f;
+
+  private final Classifier reference;
+  private final Classifier candidate;
+  private final float minConfidence;
+
+  private final long[] referenceLatencies = new long[LATENCY_SAMPLES];
+  private final long[] candidateLatencies = new long[LATENCY_SAMPLES];
+  private final long[] sortScratch = new long[LATENCY_SAMPLES];
+  private int frames;
+  private int referenceDetections;
+  private int candidateDetections;
+  private int matchedDetections;
+
+  /**
+   * @param reference The detector whose results are treated as ground truth and returned.
+   * @param candidate The detector being evaluated.
+   * @param minConfidence Detections below this score are ignored by both.
+   */
+  public DetectorBenchmark(
+      final Classifier reference, final Classifier candidate, final float minConfidence) {
+    this.reference = reference;
+    this.candidate = candidate;
+    this.minConfidence = minConfidence;
+  }
+
+  /**
+   * Runs both detectors on the bitmap, alternating which goes first so neither benefits from a
+   * warm cache, and returns the reference results.
+   */
+  @Override
+  public synchronized List<Classifier.Recognition> recognizeImage(final Bitmap bitmap) {
+    final List<Classifier.Recognition> referenceResults;
+    final List<Classifier.Recognition> candidateResults;
+    long referenceTime;
+    long candidateTime;
+    if ((frames & 1) == 0) {
+      referenceTime = SystemClock.elapsedRealtimeNanos();
+      referenceResults = reference.recognizeImage(bitmap);
+      candidateTime = SystemClock.elapsedRealtimeNanos();
+      referenceTime = candidateTime - referenceTime;
+      candidateResults = candidate.recognizeImage(bitmap);
+      candidateTime = SystemClock.elapsedRealtimeNanos() - candidateTime;
+    } else {
+      candidateTime = SystemClock.elapsedRealtimeNanos();
+      candidateResults = candidate.recognizeImage(bitmap);
+      referenceTime = SystemClock.elapsedRealtimeNanos();
+      candidateTime = referenceTime - candidateTime;
+      referenceResults = reference.recognizeImage(bitmap);
+      referenceTime = SystemClock.elapsedRealtimeNanos() - referenceTime;
+    }
+
+    referenceLatencies[frames % LATENCY_SAMPLES] = referenceTime;
+    candidateLatencies[frames % LATENCY_SAMPLES] = candidateTime;
+    frames++;
+
+    for (final Classifier.Recognition c : candidateResults) {
+      if (c.getConfidence() >= minConfidence) {
+        candidateDetections++;
+      }
+    }
+    for (final Classifier.Recognition r : referenceResults) {
+      if (r.getConfidence() < minConfidence) continue;
+      referenceDetections++;
+      final RectF location = r.getLocation();
+      for (final Classifier.Recognition c : candidateResults) {
+        if (c.getConfidence() >= minConfidence && c.getTitle().equals(r.getTitle())
+            && iou(location, c.getLocation()) >= MATCH_IOU) {
+          matchedDetections++;
+          break;
+        }
+      }
+    }
+    return referenceResults;
+  }
+
+  public Classifier getReference() {
+    return reference;
+  }
+
+  public synchronized int getFrameCount() {
+    return frames;
+  }
+
+  @Override
+  public void enableStatLogging(final boolean logStats) {
+    reference.enableStatLogging(logStats);
+    candidate.enableStatLogging(logStats);
+  }
+
+  @Override
+  public synchronized String getStatString() {
+    final int n = Math.min(frames, LATENCY_SAMPLES);
+    return String.format(
+        "%d frames | reference %s | candidate %s | recall %.1f%% (%d/%d), candidate extra %d",
+        frames, latencyString(referenceLatencies, n), latencyString(candidateLatencies, n),
+        referenceDetections == 0 ? 100.0f : 100.0f * matchedDetections / referenceDetections,
+        matchedDetections, referenceDetections, candidateDetections - matchedDetections);
+  }
+
+  @Override
+  public void close() {
+    // Both detectors are owned by the caller.
+  }
+
+  private String latencyString(final long[] latencies, final int n) {
+    if (n == 0) return "-";
+    System.arraycopy(latencies, 0, sortScratch, 0, n);
+    Arrays.sort(sortScratch, 0, n);
+    return String.format("p50 %.1f ms p90 %.1f ms", sortScratch[n / 2] / 1e6,
+        sortScratch[(n * 9) / 10] / 1e6);
+  }
+
+  private static float iou(final RectF a, final RectF b) {
+    final float intersectW = Math.min(a.right, b.right) - Math.max(a.left, b.left);
+    final float intersectH = Math.min(a.bottom, b.bottom) - Math.max(a.top, b.top);
+    if (intersectW <= 0 || intersectH <= 0) return 0;
+    final float intersection = intersectW * intersectH;
+    return intersection / (a.width() * a.height() + b.width() * b.height() - intersection);
+  }
+}
@@ -0,0 +1,103 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.tensorflow;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-maps model files so they don't have to be streamed through the Java heap. Assets must
+ * be stored uncompressed in the APK (see aaptOptions.noCompress in app/build.gradle), otherwise
+ * they can't be opened as a file descriptor.
+ */
+public class ModelLoader {
+  public static final String ASSET_PREFIX = "file:///android_asset/";
+
+  /**
+   * Returns the path of a model with the same name in filesDir if one exists (e.g. pushed via adb
+   * to try out a new model), otherwise the asset URI unchanged.
+   *
+   * @param filesDir App-private directory to look in, may be null.
+   * @param filename The asset URI of the model.
+   */
+  public static String resolve(final File filesDir, final String filename) {
+    if (filesDir != null && filename.startsWith(ASSET_PREFIX)) {
+      final File file = new File(filesDir, filename.substring(ASSET_PREFIX.length()));
+      if (file.exists()) {
+        return file.getAbsolutePath();
+      }
+    }
+    return filename;
+  }
+
+  /**
+   * Maps a model from either an uncompressed asset ("file:///android_asset/...") or a file path.
+   *
+   * @param assetManager The asset manager to be used to load assets.
+   * @param filename The asset URI or absolute path of the model.
+   */
+  public static MappedByteBuffer map(final AssetManager assetManager, final String filename)
+      throws IOException {
+    if (filename.startsWith(ASSET_PREFIX)) {
+      return mapAsset(assetManager, filename.substring(ASSET_PREFIX.length()));
+    }
+    return mapFile(new File(filename));
+  }
+
+  /**
+   * Maps an uncompressed asset.
+   *
+   * @param assetManager The asset manager to be used to load assets.
+   * @param assetName The asset name, relative to the assets directory.
+   */
+  public static MappedByteBuffer mapAsset(final AssetManager assetManager, final String assetName)
+      throws IOException {
+    final AssetFileDescriptor fd = assetManager.openFd(assetName);
+    try {
+      final FileInputStream inputStream = new FileInputStream(fd.getFileDescriptor());
+      try {
+        final FileChannel channel = inputStream.getChannel();
+        return channel.map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(),
+            fd.getDeclaredLength());
+      } finally {
+        inputStream.close();  // the mapping stays valid after the channel is closed
+      }
+    } finally {
+      fd.close();
+    }
+  }
+
+  /**
+   * Maps a file, e.g. a model pushed into app-private storage.
+   *
+   * @param file The model file.
+   */
+  public static MappedByteBuffer mapFile(final File file) throws IOException {
+    final FileInputStream inputStream = new FileInputStream(file);
+    try {
+      final FileChannel channel = inputStream.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      inputStream.close();
+    }
+  }
+}
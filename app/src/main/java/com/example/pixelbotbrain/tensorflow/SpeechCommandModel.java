@@ -0,0 +1,152 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.tensorflow;
+
+import android.content.res.AssetManager;
+import android.os.Trace;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.tensorflow.Graph;
+import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
+
+/**
+ * Wrapper for the frozen keyword spotting graph from the TensorFlow speech commands example
+ * (conv_actions_frozen.pb), which scores a window of 16-bit PCM scaled to [-1, 1) against the
+ * labels in conv_actions_labels.txt.
+ */
+public class SpeechCommandModel {
+  private static final String INPUT_DATA_NAME = "decoded_sample_data:0";
+  private static final String SAMPLE_RATE_NAME = "decoded_sample_data:1";
+  private static final String OUTPUT_SCORES_NAME = "labels_softmax";
+
+  private final List<String> labels = new ArrayList<String>();
+  private final String[] outputNames = new String[] {OUTPUT_SCORES_NAME};
+  private final int[] sampleRate;
+  private final int windowSize;
+  private final float[] outputScores;
+  private final FloatBuffer window;
+  private final TensorFlowInferenceInterface inferenceInterface;
+
+  /**
+   * Initializes a native TensorFlow session from a memory-mapped GraphDef (see ModelLoader).
+   *
+   * @param assetManager The asset manager to be used to load assets.
+   * @param model The mapped model GraphDef protocol buffer.
+   * @param labelFilename The asset URI of the label file.
+   * @param samples The array windows are read from, see AudioWindow.getSamples().
+   * @param sampleRate The sample rate the model was trained at.
+   * @param windowSize The number of samples the model was trained on.
+   */
+  public static SpeechCommandModel create(
+      final AssetManager assetManager,
+      final ByteBuffer model,
+      final String labelFilename,
+      final float[] samples,
+      final int sampleRate,
+      final int windowSize) throws IOException {
+    final List<String> labels = loadLabels(assetManager, labelFilename);
+
+    Trace.beginSection("importGraphDef");
+    final byte[] graphDef = new byte[model.remaining()];
+    model.duplicate().get(graphDef);
+    final Graph g = new Graph();
+    try {
+      g.importGraphDef(graphDef);
+    } catch (final IllegalArgumentException e) {
+      g.close();
+      throw new IOException("Not a valid TensorFlow Graph serialization: " + e.getMessage());
+    } finally {
+      Trace.endSection();
+    }
+    if (g.operation(OUTPUT_SCORES_NAME) == null) {
+      g.close();
+      throw new IOException("Failed to find output Node '" + OUTPUT_SCORES_NAME + "'");
+    }
+
+    return new SpeechCommandModel(
+        new TensorFlowInferenceInterface(g), labels, samples, sampleRate, windowSize);
+  }
+
+  private SpeechCommandModel(
+      final TensorFlowInferenceInterface inferenceInterface,
+      final List<String> labels,
+      final float[] samples,
+      final int sampleRate,
+      final int windowSize) {
+    this.inferenceInterface = inferenceInterface;
+    this.labels.addAll(labels);
+    this.sampleRate = new int[] {sampleRate};
+    this.windowSize = windowSize;
+    outputScores = new float[labels.size()];
+    // A view over the shared samples, positioned on each window in turn
+    window = FloatBuffer.wrap(samples);
+  }
+
+  private static List<String> loadLabels(final AssetManager assetManager,
+      final String labelFilename) throws IOException {
+    final List<String> labels = new ArrayList<String>();
+    final BufferedReader br = new BufferedReader(new InputStreamReader(
+        assetManager.open(labelFilename.split(ModelLoader.ASSET_PREFIX)[1])));
+    try {
+      String line;
+      while ((line = br.readLine()) != null) {
+        labels.add(line);
+      }
+    } finally {
+      br.close();
+    }
+    return labels;
+  }
+
+  public List<String> getLabels() {
+    return labels;
+  }
+
+  /**
+   * Copies the window starting at offset in the samples array passed to create() straight into
+   * the input tensor, without first assembling it into a window. The samples aren't read again
+   * after this returns.
+   */
+  public void feed(final int offset) {
+    window.limit(offset + windowSize);
+    window.position(offset);
+    inferenceInterface.feed(INPUT_DATA_NAME, window, windowSize, 1);
+  }
+
+  /**
+   * Scores the window given to the last feed().
+   *
+   * @return One score per label, valid until the next call.
+   */
+  public float[] recognize() {
+    Trace.beginSection("recognizeCommand");
+    inferenceInterface.feed(SAMPLE_RATE_NAME, sampleRate);
+    inferenceInterface.run(outputNames);
+    inferenceInterface.fetch(OUTPUT_SCORES_NAME, outputScores);
+    Trace.endSection();
+    return outputScores;
+  }
+
+  public void close() {
+    inferenceInterface.close();
+  }
+}
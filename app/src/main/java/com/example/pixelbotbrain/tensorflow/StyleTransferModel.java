@@ -0,0 +1,133 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.tensorflow;
+
+import android.graphics.Bitmap;
+import android.os.Trace;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import org.tensorflow.Graph;
+import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
+
+/**
+ * Wrapper for the quantized multi-style transfer network from the TensorFlow Android demo
+ * (stylize_quantized.pb). It restyles an image of any size that is a multiple of 4 in each
+ * dimension, blending the 26 styles it was trained on by the given weights. Input and output
+ * buffers are sized once for the largest image and reused for every smaller one.
+ */
+public class StyleTransferModel {
+  public static final int NUM_STYLES = 26;
+
+  private static final String INPUT_NODE = "input";
+  private static final String STYLE_NODE = "style_num";
+  private static final String OUTPUT_NODE = "transformer/expand/conv3/conv/Sigmoid";
+
+  private final String[] outputNames = new String[] {OUTPUT_NODE};
+  private final int maxPixels;
+  private final int[] intValues;
+  private final float[] floatValues;
+  private final FloatBuffer floatBuffer;
+  private final TensorFlowInferenceInterface inferenceInterface;
+
+  /**
+   * Initializes a native TensorFlow session from a memory-mapped GraphDef (see ModelLoader).
+   *
+   * @param model The mapped model GraphDef protocol buffer.
+   * @param maxPixels The largest image, in pixels, that will be stylized.
+   */
+  public static StyleTransferModel create(final ByteBuffer model, final int maxPixels)
+      throws IOException {
+    Trace.beginSection("importGraphDef");
+    final byte[] graphDef = new byte[model.remaining()];
+    model.duplicate().get(graphDef);
+    final Graph g = new Graph();
+    try {
+      g.importGraphDef(graphDef);
+    } catch (final IllegalArgumentException e) {
+      g.close();
+      throw new IOException("Not a valid TensorFlow Graph serialization: " + e.getMessage());
+    } finally {
+      Trace.endSection();
+    }
+    if (g.operation(OUTPUT_NODE) == null) {
+      g.close();
+      throw new IOException("Failed to find output Node '" + OUTPUT_NODE + "'");
+    }
+    return new StyleTransferModel(new TensorFlowInferenceInterface(g), maxPixels);
+  }
+
+  private StyleTransferModel(final TensorFlowInferenceInterface inferenceInterface,
+      final int maxPixels) {
+    this.inferenceInterface = inferenceInterface;
+    this.maxPixels = maxPixels;
+    intValues = new int[maxPixels];
+    floatValues = new float[maxPixels * 3];
+    floatBuffer = FloatBuffer.wrap(floatValues);
+  }
+
+  /**
+   * Restyles input into output, which must be the same size.
+   *
+   * @param styleWeights NUM_STYLES weights, normally summing to 1.
+   */
+  public void stylize(final Bitmap input, final Bitmap output, final float[] styleWeights) {
+    final int width = input.getWidth();
+    final int height = input.getHeight();
+    final int pixels = width * height;
+    if (pixels > maxPixels || (width & 3) != 0 || (height & 3) != 0) {
+      throw new IllegalArgumentException("Can't stylize " + width + "x" + height);
+    }
+    Trace.beginSection("stylizeImage");
+
+    Trace.beginSection("preprocessBitmap");
+    input.getPixels(intValues, 0, width, 0, 0, width, height);
+    TensorPacking.packRgb(intValues, 0, 255, floatValues);
+    Trace.endSection();
+
+    // Feed and fetch through a view of just the pixels in use
+    Trace.beginSection("feed");
+    floatBuffer.clear();
+    floatBuffer.limit(pixels * 3);
+    inferenceInterface.feed(INPUT_NODE, floatBuffer, 1, height, width, 3);
+    inferenceInterface.feed(STYLE_NODE, styleWeights, NUM_STYLES);
+    Trace.endSection();
+
+    Trace.beginSection("run");
+    inferenceInterface.run(outputNames);
+    Trace.endSection();
+
+    Trace.beginSection("fetch");
+    floatBuffer.clear();
+    floatBuffer.limit(pixels * 3);
+    inferenceInterface.fetch(OUTPUT_NODE, floatBuffer);
+    Trace.endSection();
+
+    for (int i = 0, j = 0; i < pixels; ++i, j += 3) {
+      intValues[i] = 0xFF000000
+          | (((int) (floatValues[j] * 255)) << 16)
+          | (((int) (floatValues[j + 1] * 255)) << 8)
+          | ((int) (floatValues[j + 2] * 255));
+    }
+    output.setPixels(intValues, 0, width, 0, 0, width, height);
+    Trace.endSection(); // "stylizeImage"
+  }
+
+  public void close() {
+    inferenceInterface.close();
+  }
+}
@@ -0,0 +1,179 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.tensorflow;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * Wrapper for quantized SSD detection models converted to TensorFlow Lite, run on the CPU with
+ * the TensorFlow Lite Java interpreter. The model takes uint8 RGB input, so pixels are packed
+ * straight from the bitmap without any float conversion.
+ */
+public class TFLiteObjectDetectionAPIModel implements Classifier {
+  private static final String TAG = "TFLiteObjectDetectionAPIModel";
+
+  // Number of detections emitted by the TFLite_Detection_PostProcess op.
+  private static final int NUM_DETECTIONS = 10;
+
+  // Output classes are 0-based, whereas the label file starts with the "???" background class.
+  private static final int LABEL_OFFSET = 1;
+
+  // Config values.
+  private int inputSize;
+  private int numThreads;
+
+  // Pre-allocated buffers.
+  private Vector<String> labels = new Vector<String>();
+  private int[] intValues;
+  private ByteBuffer imgData;
+  private float[][][] outputLocations;
+  private float[][] outputClasses;
+  private float[][] outputScores;
+  private float[] numDetections;
+  private Object[] inputArray;
+  private Map<Integer, Object> outputMap;
+
+  private boolean logStats = false;
+  private long lastInferenceTimeMs;
+
+  private Interpreter tfLite;
+
+  /**
+   * Initializes a TensorFlow Lite interpreter for detecting objects in images.
+   *
+   * @param assetManager The asset manager to be used to load assets.
+   * @param model The memory-mapped .tflite flatbuffer (see ModelLoader).
+   * @param labelFilename The filepath of label file for classes.
+   * @param inputSize The width and height of the (square) model input.
+   * @param numThreads The number of CPU threads the interpreter may use.
+   */
+  public static Classifier create(
+      final AssetManager assetManager,
+      final ByteBuffer model,
+      final String labelFilename,
+      final int inputSize,
+      final int numThreads) throws IOException {
+    final TFLiteObjectDetectionAPIModel d = new TFLiteObjectDetectionAPIModel();
+
+    String actualFilename = labelFilename.split("file:///android_asset/")[1];
+    BufferedReader br = new BufferedReader(new InputStreamReader(assetManager.open(actualFilename)));
+    String line;
+    while ((line = br.readLine()) != null) {
+      d.labels.add(line);
+    }
+    br.close();
+
+    d.inputSize = inputSize;
+    d.numThreads = numThreads;
+    d.tfLite = new Interpreter(model, new Interpreter.Options().setNumThreads(numThreads));
+
+    // Pre-allocate buffers.
+    d.intValues = new int[inputSize * inputSize];
+    d.imgData = ByteBuffer.allocateDirect(inputSize * inputSize * 3);
+    d.imgData.order(ByteOrder.nativeOrder());
+    d.outputLocations = new float[1][NUM_DETECTIONS][4];
+    d.outputClasses = new float[1][NUM_DETECTIONS];
+    d.outputScores = new float[1][NUM_DETECTIONS];
+    d.numDetections = new float[1];
+    d.inputArray = new Object[] {d.imgData};
+    d.outputMap = new HashMap<Integer, Object>();
+    d.outputMap.put(0, d.outputLocations);
+    d.outputMap.put(1, d.outputClasses);
+    d.outputMap.put(2, d.outputScores);
+    d.outputMap.put(3, d.numDetections);
+    return d;
+  }
+
+  private TFLiteObjectDetectionAPIModel() {}
+
+  @Override
+  public List<Recognition> recognizeImage(final Bitmap bitmap) {
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImage");
+
+    Trace.beginSection("preprocessBitmap");
+    // Repack ARGB ints into the uint8 RGB input tensor.
+    bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+
+    TensorPacking.packRgb(intValues, imgData);
+    Trace.endSection(); // preprocessBitmap
+
+    // Run the inference call.
+    Trace.beginSection("run");
+    final long startTime = SystemClock.uptimeMillis();
+    tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+    lastInferenceTimeMs = SystemClock.uptimeMillis() - startTime;
+    Trace.endSection();
+    if (logStats) {
+      // The interpreter's own time excludes the Java side of copying inputs and outputs.
+      final Long nativeTimeNs = tfLite.getLastNativeInferenceDurationNanoseconds();
+      Log.v(TAG, "Inference " + lastInferenceTimeMs + " ms, native "
+          + (nativeTimeNs != null ? nativeTimeNs / 1000000 + " ms" : "n/a"));
+    }
+
+    // Scale them back to the input size. Results are already sorted by score.
+    final int count = Math.min(NUM_DETECTIONS, (int) numDetections[0]);
+    final ArrayList<Recognition> recognitions = new ArrayList<Recognition>(count);
+    for (int i = 0; i < count; ++i) {
+      final int labelIndex = (int) outputClasses[0][i] + LABEL_OFFSET;
+      if (labelIndex < 0 || labelIndex >= labels.size()) {
+        continue;
+      }
+      final RectF detection =
+          new RectF(
+              outputLocations[0][i][1] * inputSize,
+              outputLocations[0][i][0] * inputSize,
+              outputLocations[0][i][3] * inputSize,
+              outputLocations[0][i][2] * inputSize);
+      recognitions.add(
+          new Recognition("" + i, labels.get(labelIndex), outputScores[0][i], detection));
+    }
+    Trace.endSection(); // "recognizeImage"
+    return recognitions;
+  }
+
+  @Override
+  public void enableStatLogging(final boolean logStats) {
+    this.logStats = logStats;
+  }
+
+  @Override
+  public String getStatString() {
+    return "TFLite (" + numThreads + " threads): " + lastInferenceTimeMs + " ms";
+  }
+
+  @Override
+  public void close() {
+    tfLite.close();
+  }
+}
@@ -0,0 +1,200 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.tensorflow;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.os.Trace;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.tensorflow.Graph;
+import org.tensorflow.Operation;
+import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
+
+/**
+ * A classifier specialized to label whole images using TensorFlow, e.g. the Inception graph
+ * trained on ImageNet from the TensorFlow Android demo.
+ */
+public class TensorFlowImageClassifier implements Classifier {
+  // Only return this many results with at least this confidence.
+  private static final int MAX_RESULTS = 3;
+  private static final float THRESHOLD = 0.1f;
+
+  // Config values.
+  private String inputName;
+  private String outputName;
+  private int inputSize;
+  private float imageMean;
+  private float imageStd;
+
+  // Pre-allocated buffers.
+  private final List<String> labels = new ArrayList<String>();
+  private int[] intValues;
+  private float[] floatValues;
+  private float[] outputs;
+  private String[] outputNames;
+  private final int[] top = new int[MAX_RESULTS];
+
+  private boolean logStats = false;
+
+  private TensorFlowInferenceInterface inferenceInterface;
+
+  /**
+   * Initializes a native TensorFlow session from a memory-mapped GraphDef (see ModelLoader).
+   *
+   * @param assetManager The asset manager to be used to load assets.
+   * @param model The mapped model GraphDef protocol buffer.
+   * @param labelFilename The asset URI of the label file.
+   * @param inputSize The input size. A square image of inputSize x inputSize is assumed.
+   * @param imageMean The assumed mean of the image values.
+   * @param imageStd The assumed std of the image values.
+   * @param inputName The label of the image input node.
+   * @param outputName The label of the output node.
+   */
+  public static Classifier create(
+      final AssetManager assetManager,
+      final ByteBuffer model,
+      final String labelFilename,
+      final int inputSize,
+      final float imageMean,
+      final float imageStd,
+      final String inputName,
+      final String outputName) throws IOException {
+    final TensorFlowImageClassifier c = new TensorFlowImageClassifier();
+    c.loadLabels(assetManager, labelFilename);
+
+    Trace.beginSection("importGraphDef");
+    final byte[] graphDef = new byte[model.remaining()];
+    model.duplicate().get(graphDef);
+    final Graph g = new Graph();
+    try {
+      g.importGraphDef(graphDef);
+    } catch (final IllegalArgumentException e) {
+      g.close();
+      throw new IOException("Not a valid TensorFlow Graph serialization: " + e.getMessage());
+    } finally {
+      Trace.endSection();
+    }
+
+    final Operation outputOp = g.operation(outputName);
+    if (g.operation(inputName) == null || outputOp == null) {
+      g.close();
+      throw new IOException("Failed to find input '" + inputName + "' or output '"
+          + outputName + "'");
+    }
+    c.inferenceInterface = new TensorFlowInferenceInterface(g);
+    c.inputName = inputName;
+    c.outputName = outputName;
+    c.inputSize = inputSize;
+    c.imageMean = imageMean;
+    c.imageStd = imageStd;
+
+    // The shape of the output is [N, NUM_CLASSES], where N is the batch size.
+    final int numClasses = (int) outputOp.output(0).shape().size(1);
+    c.outputNames = new String[] {outputName};
+    c.intValues = new int[inputSize * inputSize];
+    c.floatValues = new float[inputSize * inputSize * 3];
+    c.outputs = new float[numClasses];
+    return c;
+  }
+
+  private TensorFlowImageClassifier() {}
+
+  private void loadLabels(final AssetManager assetManager, final String labelFilename)
+      throws IOException {
+    final BufferedReader br = new BufferedReader(new InputStreamReader(
+        assetManager.open(labelFilename.split(ModelLoader.ASSET_PREFIX)[1])));
+    try {
+      String line;
+      while ((line = br.readLine()) != null) {
+        labels.add(line);
+      }
+    } finally {
+      br.close();
+    }
+  }
+
+  @Override
+  public List<Recognition> recognizeImage(final Bitmap bitmap) {
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("classifyImage");
+
+    Trace.beginSection("preprocessBitmap");
+    bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+    TensorPacking.packRgb(intValues, imageMean, imageStd, floatValues);
+    Trace.endSection();
+
+    // Copy the input data into TensorFlow.
+    Trace.beginSection("feed");
+    inferenceInterface.feed(inputName, floatValues, 1, inputSize, inputSize, 3);
+    Trace.endSection();
+
+    // Run the inference call.
+    Trace.beginSection("run");
+    inferenceInterface.run(outputNames, logStats);
+    Trace.endSection();
+
+    // Copy the output Tensor back into the output array.
+    Trace.beginSection("fetch");
+    inferenceInterface.fetch(outputName, outputs);
+    Trace.endSection();
+
+    // Find the best classifications without sorting all of them.
+    int count = 0;
+    for (int i = 0; i < outputs.length; ++i) {
+      if (outputs[i] < THRESHOLD) continue;
+      int j = Math.min(count, MAX_RESULTS - 1);
+      if (j == MAX_RESULTS - 1 && count == MAX_RESULTS && outputs[top[j]] >= outputs[i]) {
+        continue;
+      }
+      while (j > 0 && outputs[top[j - 1]] < outputs[i]) {
+        top[j] = top[j - 1];
+        --j;
+      }
+      top[j] = i;
+      count = Math.min(count + 1, MAX_RESULTS);
+    }
+
+    final ArrayList<Recognition> recognitions = new ArrayList<Recognition>(count);
+    for (int n = 0; n < count; ++n) {
+      final int i = top[n];
+      recognitions.add(new Recognition(
+          "" + i, i < labels.size() ? labels.get(i) : "unknown", outputs[i], null));
+    }
+    Trace.endSection(); // "classifyImage"
+    return recognitions;
+  }
+
+  @Override
+  public void enableStatLogging(final boolean logStats) {
+    this.logStats = logStats;
+  }
+
+  @Override
+  public String getStatString() {
+    return inferenceInterface.getStatString();
+  }
+
+  @Override
+  public void close() {
+    inferenceInterface.close();
+  }
+}
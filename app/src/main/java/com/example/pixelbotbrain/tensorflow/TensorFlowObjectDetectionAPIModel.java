@@ -25,10 +25,9 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.Vector;
 import org.tensorflow.Graph;
 import org.tensorflow.Operation;
@@ -57,6 +56,7 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
   private float[] outputClasses;
   private float[] outputNumDetections;
   private String[] outputNames;
+  private int[] order;
 
   private boolean logStats = false;
 
@@ -75,7 +75,50 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
       final String labelFilename,
       final int inputSize) throws IOException {
     final TensorFlowObjectDetectionAPIModel d = new TensorFlowObjectDetectionAPIModel();
+    d.loadLabels(assetManager, labelFilename);
+    d.inferenceInterface = new TensorFlowInferenceInterface(assetManager, modelFilename);
+    d.initialize(inputSize);
+    return d;
+  }
+
+  /**
+   * Initializes a native TensorFlow session from a memory-mapped GraphDef (see ModelLoader).
+   *
+   * @param assetManager The asset manager to be used to load assets.
+   * @param model The mapped model GraphDef protocol buffer.
+   * @param labelFilename The filepath of label file for classes.
+   */
+  public static Classifier create(
+      final AssetManager assetManager,
+      final ByteBuffer model,
+      final String labelFilename,
+      final int inputSize) throws IOException {
+    final TensorFlowObjectDetectionAPIModel d = new TensorFlowObjectDetectionAPIModel();
+    d.loadLabels(assetManager, labelFilename);
+
+    // Graph.importGraphDef() only takes a byte[], so copy once straight out of the mapping. Unlike
+    // the asset stream path there is no inflater or intermediate buffering, and the array is
+    // garbage as soon as the import returns.
+    Trace.beginSection("importGraphDef");
+    final byte[] graphDef = new byte[model.remaining()];
+    model.duplicate().get(graphDef);
+    final Graph g = new Graph();
+    try {
+      g.importGraphDef(graphDef);
+    } catch (final IllegalArgumentException e) {
+      g.close();
+      throw new IOException("Not a valid TensorFlow Graph serialization: " + e.getMessage());
+    } finally {
+      Trace.endSection();
+    }
 
+    d.inferenceInterface = new TensorFlowInferenceInterface(g);
+    d.initialize(inputSize);
+    return d;
+  }
+
+  private void loadLabels(final AssetManager assetManager, final String labelFilename)
+      throws IOException {
     InputStream labelsInput = null;
     String actualFilename = labelFilename.split("file:///android_asset/")[1];
     labelsInput = assetManager.open(actualFilename);
@@ -84,25 +127,24 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
     String line;
     while ((line = br.readLine()) != null) {
       Log.w(TAG, line);
-      d.labels.add(line);
+      labels.add(line);
     }
     br.close();
+  }
 
+  private void initialize(final int inputSize) {
+    final Graph g = inferenceInterface.graph();
 
-    d.inferenceInterface = new TensorFlowInferenceInterface(assetManager, modelFilename);
-
-    final Graph g = d.inferenceInterface.graph();
-
-    d.inputName = "image_tensor";
+    inputName = "image_tensor";
     // The inputName node has a shape of [N, H, W, C], where
     // N is the batch size
     // H = W are the height and width
     // C is the number of channels (3 for our purposes - RGB)
-    final Operation inputOp = g.operation(d.inputName);
+    final Operation inputOp = g.operation(inputName);
     if (inputOp == null) {
-      throw new RuntimeException("Failed to find input Node '" + d.inputName + "'");
+      throw new RuntimeException("Failed to find input Node '" + inputName + "'");
     }
-    d.inputSize = inputSize;
+    this.inputSize = inputSize;
     // The outputScoresName node has a shape of [N, NumLocations], where N
     // is the batch size.
     final Operation outputOp1 = g.operation("detection_scores");
@@ -119,15 +161,15 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
     }
 
     // Pre-allocate buffers.
-    d.outputNames = new String[] {"detection_boxes", "detection_scores",
-                                  "detection_classes", "num_detections"};
-    d.intValues = new int[d.inputSize * d.inputSize];
-    d.byteValues = new byte[d.inputSize * d.inputSize * 3];
-    d.outputScores = new float[MAX_RESULTS];
-    d.outputLocations = new float[MAX_RESULTS * 4];
-    d.outputClasses = new float[MAX_RESULTS];
-    d.outputNumDetections = new float[1];
-    return d;
+    outputNames = new String[] {"detection_boxes", "detection_scores",
+                                "detection_classes", "num_detections"};
+    intValues = new int[inputSize * inputSize];
+    byteValues = new byte[inputSize * inputSize * 3];
+    outputScores = new float[MAX_RESULTS];
+    outputLocations = new float[MAX_RESULTS * 4];
+    outputClasses = new float[MAX_RESULTS];
+    outputNumDetections = new float[1];
+    order = new int[MAX_RESULTS];
   }
 
   private TensorFlowObjectDetectionAPIModel() {}
@@ -142,11 +184,7 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
     // on the provided parameters.
     bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
 
-    for (int i = 0; i < intValues.length; ++i) {
-      byteValues[i * 3 + 2] = (byte) (intValues[i] & 0xFF);
-      byteValues[i * 3 + 1] = (byte) ((intValues[i] >> 8) & 0xFF);
-      byteValues[i * 3 + 0] = (byte) ((intValues[i] >> 16) & 0xFF);
-    }
+    TensorPacking.packRgb(intValues, byteValues);
     Trace.endSection(); // preprocessBitmap
 
     // Copy the input data into TensorFlow.
@@ -172,33 +210,21 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
     Trace.endSection();
 
     // Find the best detections.
-    final PriorityQueue<Recognition> pq =
-        new PriorityQueue<Recognition>(
-            1,
-            new Comparator<Recognition>() {
-              @Override
-              public int compare(final Recognition lhs, final Recognition rhs) {
-                // Intentionally reversed to put high confidence at the head of the queue.
-                return Float.compare(rhs.getConfidence(), lhs.getConfidence());
-              }
-            });
+    final int count = DetectionRanking.rankByScore(outputScores, outputScores.length, order);
 
     // Scale them back to the input size.
-    for (int i = 0; i < outputScores.length; ++i) {
+    final ArrayList<Recognition> recognitions = new ArrayList<Recognition>(count);
+    for (int n = 0; n < count; ++n) {
+      final int i = order[n];
       final RectF detection =
           new RectF(
               outputLocations[4 * i + 1] * inputSize,
               outputLocations[4 * i] * inputSize,
               outputLocations[4 * i + 3] * inputSize,
               outputLocations[4 * i + 2] * inputSize);
-      pq.add(
+      recognitions.add(
           new Recognition("" + i, labels.get((int) outputClasses[i]), outputScores[i], detection));
     }
-
-    final ArrayList<Recognition> recognitions = new ArrayList<Recognition>();
-    for (int i = 0; i < Math.min(pq.size(), MAX_RESULTS); ++i) {
-      recognitions.add(pq.poll());
-    }
     Trace.endSection(); // "recognizeImage"
     return recognitions;
   }
@@ -0,0 +1,69 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package com.example.pixelbotbrain.benchmark;
+
+import com.example.pixelbotbrain.SessionJournal;
+import com.example.pixelbotbrain.SessionJournalWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending a detection to the session journal, including the occasional segment rotation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JournalBenchmark {
+    private File mDir;
+    private SessionJournalWriter mWriter;
+    private long mTime;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("journal", "");
+        if (!mDir.delete() || !mDir.mkdir()) {
+            throw new IOException("Can't create " + mDir);
+        }
+        mWriter = new SessionJournalWriter(new File(mDir, "bench"), 8 << 20, 2);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mWriter.close();
+        for (File segment : SessionJournal.findSegments(new File(mDir, "bench"))) {
+            segment.delete();
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public void writeDetection() {
+        mTime += 1000;
+        mWriter.writeDetection(mTime, 3, 17, 0.8f, 0.25f, 0.3f, 0.5f, 0.7f);
+    }
+}
@@ -0,0 +1,79 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.benchmark;
+
+import com.example.pixelbotbrain.TrackableObjects;
+import com.example.pixelbotbrain.tensorflow.DetectionRanking;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ranking the raw outputs of the TensorFlow Mobile detector (100 candidates) and selecting the
+ * trackable detections from them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PostProcessingBenchmark {
+    private static final int NUM_CANDIDATES = 100;
+
+    // A mix of trackable and non-trackable COCO labels
+    private static final String[] LABELS = { "person", "chair", "cup", "dining table", "dog",
+            "tv", "bottle", "laptop", "cell phone", "book" };
+
+    private final float[] mScores = new float[NUM_CANDIDATES];
+    private final int[] mOrder = new int[NUM_CANDIDATES];
+    private final String[] mRankedLabels = new String[NUM_CANDIDATES];
+    private final float[] mRankedScores = new float[NUM_CANDIDATES];
+    private final int[] mSelected = new int[16];
+
+    @Setup
+    public void setUp() {
+        // Detector scores fall off steeply: a few confident detections and a long tail
+        final Random random = new Random(42);
+        for (int i = 0; i < NUM_CANDIDATES; i++) {
+            mScores[i] = (float) Math.pow(random.nextFloat(), 8);
+        }
+        final float[] sorted = mScores.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < NUM_CANDIDATES; i++) {
+            mRankedScores[i] = sorted[NUM_CANDIDATES - 1 - i];
+            mRankedLabels[i] = LABELS[random.nextInt(LABELS.length)];
+        }
+    }
+
+    @Benchmark
+    public int[] rankByScore() {
+        DetectionRanking.rankByScore(mScores, NUM_CANDIDATES, mOrder);
+        return mOrder;
+    }
+
+    @Benchmark
+    public int selectTrackable() {
+        return TrackableObjects.select(mRankedLabels, mRankedScores, NUM_CANDIDATES,
+                TrackableObjects.MIN_CONFIDENCE, mSelected);
+    }
+}
@@ -0,0 +1,46 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.benchmark;
+
+import com.example.pixelbotbrain.BodyProtocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a tracking command from a normalized target position.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProtocolBenchmark {
+    private final byte[] mFrame = new byte[BodyProtocol.MAX_FRAME_SIZE];
+    private float mX = 0.3f;
+    private float mY = 0.7f;
+    private float mArea = 0.1f;
+
+    @Benchmark
+    public int encodeTrackServo() {
+        return BodyProtocol.encodeTrackServo(mFrame, BodyProtocol.panError(mX),
+                BodyProtocol.tiltError(mY), true, BodyProtocol.objectSize(mArea));
+    }
+}
@@ -0,0 +1,72 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.benchmark;
+
+import com.example.pixelbotbrain.tensorflow.TensorPacking;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packing a detector input crop into the uint8 RGB tensor, for the TensorFlow Mobile (array)
+ * and TensorFlow Lite (direct buffer) backends.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TensorPackingBenchmark {
+    @Param({"300"})
+    public int inputSize;
+
+    private int[] mArgb;
+    private byte[] mRgbArray;
+    private ByteBuffer mRgbBuffer;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        mArgb = new int[inputSize * inputSize];
+        for (int i = 0; i < mArgb.length; i++) {
+            mArgb[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        mRgbArray = new byte[inputSize * inputSize * 3];
+        mRgbBuffer = ByteBuffer.allocateDirect(inputSize * inputSize * 3);
+        mRgbBuffer.order(ByteOrder.nativeOrder());
+    }
+
+    @Benchmark
+    public byte[] packArray() {
+        TensorPacking.packRgb(mArgb, mRgbArray);
+        return mRgbArray;
+    }
+
+    @Benchmark
+    public ByteBuffer packDirectBuffer() {
+        TensorPacking.packRgb(mArgb, mRgbBuffer);
+        return mRgbBuffer;
+    }
+}
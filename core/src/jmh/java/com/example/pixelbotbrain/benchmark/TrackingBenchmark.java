@@ -0,0 +1,62 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.benchmark;
+
+import com.example.pixelbotbrain.ServoMotionModel;
+import com.example.pixelbotbrain.TargetPredictor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency-compensated target prediction for one frame, with a full servo command history.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TrackingBenchmark {
+    private static final long FRAME_NS = 33000000L;
+
+    private ServoMotionModel mServoMotionModel;
+    private TargetPredictor mTargetPredictor;
+    private long mTime;
+
+    @Setup
+    public void setUp() {
+        mServoMotionModel = new ServoMotionModel();
+        mTargetPredictor = new TargetPredictor(mServoMotionModel, 60.0f, 45.0f);
+        for (int i = 0; i < 64; i++) {
+            mTime += FRAME_NS;
+            mServoMotionModel.onTrackCommand(mTime, (byte) 20, (byte) -10);
+        }
+    }
+
+    @Benchmark
+    public float predict() {
+        // A target drifting slowly to the right, so the predictor keeps its history
+        mTime += FRAME_NS;
+        final float x = 0.5f + 0.05f * (float) Math.sin(mTime / 1e9);
+        mTargetPredictor.predict(mTime - 2 * FRAME_NS, 0, x, 0.5f, mTime + 15000000L);
+        return mTargetPredictor.getPredictedX() + mTargetPredictor.getPredictedY();
+    }
+}
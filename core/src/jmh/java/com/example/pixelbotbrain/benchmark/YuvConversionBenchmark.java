@@ -0,0 +1,81 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.benchmark;
+
+import com.example.pixelbotbrain.tensorflow.YuvConversions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Java YUV to ARGB conversion of a camera preview frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class YuvConversionBenchmark {
+    @Param({"640x480"})
+    public String size;
+
+    private int mWidth;
+    private int mHeight;
+    private byte[] mY;
+    private byte[] mU;
+    private byte[] mV;
+    private byte[] mNv21;
+    private int[] mArgb;
+
+    @Setup
+    public void setUp() {
+        final String[] dimensions = size.split("x");
+        mWidth = Integer.parseInt(dimensions[0]);
+        mHeight = Integer.parseInt(dimensions[1]);
+
+        // Chroma planes as the Pixel delivers them: interleaved, pixel stride 2
+        final Random random = new Random(42);
+        mY = new byte[mWidth * mHeight];
+        mU = new byte[mWidth * mHeight / 2 - 1];
+        mV = new byte[mWidth * mHeight / 2 - 1];
+        mNv21 = new byte[YuvConversions.getYUVByteSize(mWidth, mHeight)];
+        random.nextBytes(mY);
+        random.nextBytes(mU);
+        random.nextBytes(mV);
+        random.nextBytes(mNv21);
+        mArgb = new int[mWidth * mHeight];
+    }
+
+    @Benchmark
+    public int[] yuv420ToArgb() {
+        YuvConversions.convertYUV420ToARGB8888(mY, mU, mV, mWidth, mHeight, mWidth, mWidth, 2,
+                mArgb);
+        return mArgb;
+    }
+
+    @Benchmark
+    public int[] nv21ToArgb() {
+        YuvConversions.convertYUV420SPToARGB8888(mNv21, mWidth, mHeight, mArgb);
+        return mArgb;
+    }
+}
@@ -0,0 +1,41 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+/**
+ * Delivers 16-bit mono PCM to the voice command recognizer, e.g. from the microphone or a WAV
+ * file.
+ */
+public interface AudioSource {
+    interface Listener {
+        /**
+         * Called on the source's thread for each block of samples. The buffer must not be used
+         * after returning.
+         *
+         * @param timestamp Capture time of the last sample, in the clock frames are stamped with.
+         */
+        void onAudioAvailable(short[] samples, int count, long timestamp);
+    }
+
+    void start(Listener listener);
+
+    /**
+     * Stops delivering audio. Blocks until any listener call in progress has returned.
+     */
+    void stop();
+
+    int getSampleRate();
+}
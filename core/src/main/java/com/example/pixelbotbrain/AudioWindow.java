@@ -0,0 +1,124 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+/**
+ * Fixed-size ring of recent audio from which the most recent window can be read as one
+ * contiguous run of floats, so successive overlapping windows share their samples instead of
+ * each being assembled by copying. Every sample is stored twice, at its ring position and one
+ * capacity further on, which makes any window up to the capacity contiguous.
+ *
+ * One thread writes and another reads. write() holds the window's monitor, so the reader copies
+ * a window out while holding it too, after checking with isIntact() that the writer hasn't
+ * wrapped over it since acquire():
+ *
+ *     synchronized (window) {
+ *         if (window.isIntact(end)) copy(window.getSamples(), window.getWindowOffset(end));
+ *     }
+ *
+ * A window is a few tens of kilobytes, so the writer waits microseconds at most.
+ */
+public class AudioWindow {
+    private static final float SCALE = 1.0f / 32768;
+
+    private final int mWindowSize;
+    private final int mCapacity;
+    private final float[] mSamples;
+    private volatile long mWritten;  // changed under this
+    private long mTimestamp;
+    private long mAcquiredTimestamp;
+
+    /**
+     * @param windowSize Number of samples in a window.
+     * @param capacity Number of samples held, at least windowSize. The slack is how far the
+     *                 writer can get ahead while a window is being read.
+     */
+    public AudioWindow(int windowSize, int capacity) {
+        if (capacity < windowSize) {
+            throw new IllegalArgumentException("Capacity " + capacity + " < window " + windowSize);
+        }
+        mWindowSize = windowSize;
+        mCapacity = capacity;
+        mSamples = new float[2 * capacity];
+    }
+
+    public int getWindowSize() {
+        return mWindowSize;
+    }
+
+    /**
+     * Appends samples scaled to [-1, 1). Must only be called from the writer thread.
+     *
+     * @param timestamp Capture time of the last sample.
+     */
+    public synchronized void write(short[] samples, int count, long timestamp) {
+        final long written = mWritten;
+        int position = (int) (written % mCapacity);
+        for (int i = 0; i < count; i++) {
+            final float sample = samples[i] * SCALE;
+            mSamples[position] = sample;
+            mSamples[position + mCapacity] = sample;
+            if (++position == mCapacity) {
+                position = 0;
+            }
+        }
+        mTimestamp = timestamp;
+        mWritten = written + count;
+    }
+
+    /** Total number of samples written. */
+    public long getWrittenCount() {
+        return mWritten;
+    }
+
+    /**
+     * Returns the number of samples written so far and records the capture time of the last of
+     * them for getAcquiredTimestamp(). Reader side.
+     */
+    public synchronized long acquire() {
+        mAcquiredTimestamp = mTimestamp;
+        return mWritten;
+    }
+
+    /** Capture time of the last sample counted by the latest acquire(). */
+    public long getAcquiredTimestamp() {
+        return mAcquiredTimestamp;
+    }
+
+    /**
+     * The array windows are read from. Only the range given by getWindowOffset() is meaningful.
+     */
+    public float[] getSamples() {
+        return mSamples;
+    }
+
+    /**
+     * Offset into getSamples() of the window that ends after sample number end.
+     *
+     * @param end A sample count of at least the window size, e.g. from acquire().
+     */
+    public int getWindowOffset(long end) {
+        return (int) ((end - mWindowSize) % mCapacity);
+    }
+
+    /**
+     * Whether the window ending at end is still unmodified. Must be called, and the window read,
+     * while holding this window's monitor.
+     */
+    public boolean isIntact(long end) {
+        return mWritten - mCapacity <= end - mWindowSize;
+    }
+}
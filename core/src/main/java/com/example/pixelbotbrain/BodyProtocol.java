@@ -0,0 +1,99 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+/**
+ * Wire format of the commands sent to PixelbotBody.ino. Each command is framed as
+ * <cmd> <length> <values...>. Encoders write into a caller-supplied buffer so that sending a
+ * command doesn't allocate.
+ */
+public class BodyProtocol {
+    // Move servo protocol: SERVO_MOVE_CMD <pan-postion-degrees>  <tilt-position-degrees>
+    public static final byte SERVO_MOVE_CMD = 0;
+
+    // Track servo protocol: SERVO_TRACK_CMD <pan-error> <tilt-error> <drive-enable> <object-size>
+    public static final byte SERVO_TRACK_CMD = 1;
+
+    /** Size of the largest command frame. */
+    public static final int MAX_FRAME_SIZE = 6;
+
+    private BodyProtocol() {}
+
+    /**
+     * Frames an arbitrary command.
+     *
+     * @return The number of bytes written to out.
+     */
+    public static int encode(byte cmd, byte[] vals, byte[] out) {
+        out[0] = cmd;
+        out[1] = (byte) vals.length;
+        System.arraycopy(vals, 0, out, 2, vals.length);
+        return 2 + vals.length;
+    }
+
+    public static int encodeMoveServo(byte[] out, byte panPos, byte tiltPos) {
+        out[0] = SERVO_MOVE_CMD;
+        out[1] = 2;
+        out[2] = panPos;
+        out[3] = tiltPos;
+        return 4;
+    }
+
+    public static int encodeTrackServo(byte[] out, byte panError, byte tiltError, boolean drive,
+                                       byte objectSize) {
+        out[0] = SERVO_TRACK_CMD;
+        out[1] = 4;
+        out[2] = panError;
+        out[3] = tiltError;
+        out[4] = drive ? (byte) 1 : (byte) 0;
+        out[5] = objectSize;
+        return 6;
+    }
+
+    /**
+     * Whether a frame can be sent late without moving the body somewhere stale: absolute servo
+     * moves, and a track command that only holds the head and stops driving. Other track
+     * commands steer relative to where the target was when they were sent.
+     */
+    public static boolean isReplayable(byte[] frame, int length) {
+        if (length < 2) return false;
+        if (frame[0] == SERVO_MOVE_CMD) return true;
+        return frame[0] == SERVO_TRACK_CMD && length >= 5
+                && frame[2] == 0 && frame[3] == 0 && frame[4] == 0;
+    }
+
+    /**
+     * Pan error for a target at normalized horizontal position x, scaled to (-128, 127). Inverted
+     * because of the front-facing camera.
+     */
+    public static byte panError(float x) {
+        return (byte) clampError(-255 * (x - 0.5f));
+    }
+
+    /** Tilt error for a target at normalized vertical position y, scaled to (-128, 127). */
+    public static byte tiltError(float y) {
+        return (byte) clampError(255 * (y - 0.5f));
+    }
+
+    /** Object size for a target covering the given fraction of the frame. */
+    public static byte objectSize(float area) {
+        return (byte) (255 * area);
+    }
+
+    private static float clampError(float error) {
+        return Math.max(-128, Math.min(127, error));
+    }
+}
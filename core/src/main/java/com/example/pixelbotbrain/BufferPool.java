@@ -0,0 +1,210 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package com.example.pixelbotbrain;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of reusable buffers shared between pipeline stages by reference counting. The
+ * producer acquires a buffer holding one reference, each consumer that keeps it past the call
+ * that handed it over retains another, and every holder releases its own. The buffer returns to
+ * the pool when the last reference is released, so no stage can overwrite data another is still
+ * reading.
+ *
+ * When every buffer is in use, DROP_NEWEST fails the acquire, dropping the incoming frame, and
+ * DROP_OLDEST first asks the reclaimer to give up references to the buffers in use, oldest
+ * first, e.g. by cancelling work that hasn't started on them.
+ *
+ * Acquire from one producer thread; retain and release from any.
+ */
+public class BufferPool<T> {
+    public enum Policy { DROP_NEWEST, DROP_OLDEST }
+
+    public interface Factory<T> {
+        T create();
+    }
+
+    /**
+     * Gives up what references it can to a buffer in use, so a newer frame can take it.
+     */
+    public interface Reclaimer<T> {
+        void reclaim(Buffer<T> buffer);
+    }
+
+    /**
+     * A pooled buffer and its reference count.
+     */
+    public static class Buffer<T> {
+        private final BufferPool<T> mPool;
+        private final T mData;
+        private final AtomicInteger mReferences = new AtomicInteger();
+        private long mSequence;
+
+        private Buffer(BufferPool<T> pool, T data) {
+            mPool = pool;
+            mData = data;
+        }
+
+        public T get() {
+            return mData;
+        }
+
+        /** Order of the acquire that handed the buffer out, increasing. */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * Adds a reference. Only a current holder may retain a buffer.
+         */
+        public void retain() {
+            if (mReferences.getAndIncrement() <= 0) {
+                throw new IllegalStateException("Buffer retained after release");
+            }
+        }
+
+        public void release() {
+            final int references = mReferences.decrementAndGet();
+            if (references == 0) {
+                mPool.recycle(this);
+            } else if (references < 0) {
+                throw new IllegalStateException("Buffer released too often");
+            }
+        }
+    }
+
+    private final Buffer<T>[] mBuffers;
+    private final Buffer<T>[] mFree;
+    private int mFreeCount;
+    private volatile Policy mPolicy;
+    private volatile Reclaimer<T> mReclaimer;
+    private long mNextSequence;
+
+    // Metrics, updated under this; the counts are volatile so they can be read without it
+    private volatile long mAcquired;
+    private volatile long mDroppedNewest;
+    private volatile long mDroppedOldest;
+    private int mPeakInUse;
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int capacity, Factory<T> factory, Policy policy) {
+        mBuffers = (Buffer<T>[]) new Buffer<?>[capacity];
+        mFree = (Buffer<T>[]) new Buffer<?>[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mBuffers[i] = new Buffer<T>(this, factory.create());
+            mFree[i] = mBuffers[i];
+        }
+        mFreeCount = capacity;
+        mPolicy = policy;
+    }
+
+    public void setPolicy(Policy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * Called by DROP_OLDEST to free buffers when the pool is exhausted.
+     */
+    public void setReclaimer(Reclaimer<T> reclaimer) {
+        mReclaimer = reclaimer;
+    }
+
+    /**
+     * @return A buffer holding one reference for the caller, or null if none could be freed.
+     */
+    public Buffer<T> acquire() {
+        Buffer<T> buffer = take();
+        final Reclaimer<T> reclaimer = mReclaimer;
+        if (buffer == null && mPolicy == Policy.DROP_OLDEST && reclaimer != null) {
+            // Oldest first; reclaim outside the lock since it may release synchronously
+            long after = Long.MIN_VALUE;
+            Buffer<T> oldest;
+            while (buffer == null && (oldest = oldestInUse(after)) != null) {
+                after = oldest.mSequence;
+                reclaimer.reclaim(oldest);
+                buffer = take();
+            }
+            if (buffer != null) {
+                synchronized (this) {
+                    mDroppedOldest++;
+                }
+            }
+        }
+        synchronized (this) {
+            if (buffer == null) {
+                mDroppedNewest++;
+                return null;
+            }
+            buffer.mSequence = mNextSequence++;
+            mAcquired++;
+            mPeakInUse = Math.max(mPeakInUse, mBuffers.length - mFreeCount);
+        }
+        return buffer;
+    }
+
+    public int getCapacity() {
+        return mBuffers.length;
+    }
+
+    public long getAcquiredCount() {
+        return mAcquired;
+    }
+
+    /** Acquires that failed because every buffer was in use. */
+    public long getDroppedNewestCount() {
+        return mDroppedNewest;
+    }
+
+    /** Acquires that succeeded by reclaiming a buffer in use. */
+    public long getDroppedOldestCount() {
+        return mDroppedOldest;
+    }
+
+    public synchronized int getInUseCount() {
+        return mBuffers.length - mFreeCount;
+    }
+
+    public synchronized String getStatString() {
+        return String.format("%d/%d buffers in use (peak %d), %d acquired, dropped %d newest "
+                        + "%d oldest", mBuffers.length - mFreeCount, mBuffers.length, mPeakInUse,
+                mAcquired, mDroppedNewest, mDroppedOldest);
+    }
+
+    private synchronized Buffer<T> take() {
+        if (mFreeCount == 0) return null;
+        final Buffer<T> buffer = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        buffer.mReferences.set(1);
+        return buffer;
+    }
+
+    private synchronized void recycle(Buffer<T> buffer) {
+        mFree[mFreeCount++] = buffer;
+    }
+
+    // The in-use buffer acquired earliest after the given sequence number
+    private synchronized Buffer<T> oldestInUse(long after) {
+        Buffer<T> oldest = null;
+        for (Buffer<T> buffer : mBuffers) {
+            if (buffer.mReferences.get() > 0 && buffer.mSequence > after
+                    && (oldest == null || buffer.mSequence < oldest.mSequence)) {
+                oldest = buffer;
+            }
+        }
+        return oldest;
+    }
+}
@@ -0,0 +1,155 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+/**
+ * Turns the keyword model's per-window scores into discrete commands, as in the TensorFlow
+ * speech commands demo: scores are averaged over a short time window, and a label is reported
+ * once its average passes a threshold and no other command was reported within the
+ * suppression time. Results are kept in preallocated arrays, so processing doesn't allocate.
+ */
+public class CommandRecognizer {
+    private static final int MAX_RESULTS = 64;
+
+    private final int mLabelCount;
+    private final int mSilenceLabel;
+    private final long mAverageWindowNs;
+    private final float mDetectionThreshold;
+    private final long mSuppressionNs;
+    private final int mMinimumCount;
+
+    // Ring of recent results, oldest at mFirst
+    private final float[][] mScores;
+    private final long[] mTimes;
+    private int mFirst;
+    private int mCount;
+
+    private final float[] mAverage;
+    private int mPreviousLabel = -1;
+    private long mPreviousTime;
+    private float mScore;
+    private long mOnsetTime;
+
+    /**
+     * @param labelCount Number of scores per result.
+     * @param silenceLabel Index of the silence label, which doesn't suppress the next command.
+     * @param averageWindowMs Results older than this are dropped from the average.
+     * @param detectionThreshold Minimum average score to report a label.
+     * @param suppressionMs Minimum time after a command before the next is reported.
+     * @param minimumCount Minimum number of results in the window to report anything.
+     */
+    public CommandRecognizer(int labelCount, int silenceLabel, long averageWindowMs,
+                             float detectionThreshold, long suppressionMs, int minimumCount) {
+        mLabelCount = labelCount;
+        mSilenceLabel = silenceLabel;
+        mAverageWindowNs = averageWindowMs * 1000000L;
+        mDetectionThreshold = detectionThreshold;
+        mSuppressionNs = suppressionMs * 1000000L;
+        mMinimumCount = minimumCount;
+        mScores = new float[MAX_RESULTS][labelCount];
+        mTimes = new long[MAX_RESULTS];
+        mAverage = new float[labelCount];
+    }
+
+    /**
+     * Adds the model's scores for the window ending at time.
+     *
+     * @param scores One score per label.
+     * @param time End of the window, increasing between calls.
+     * @return The index of a newly recognized label, or -1.
+     */
+    public int process(float[] scores, long time) {
+        if (mCount > 0 && time < mTimes[(mFirst + mCount - 1) % MAX_RESULTS]) {
+            throw new IllegalArgumentException("Results must be added in time order");
+        }
+
+        // Append, dropping the oldest if full, then expire results outside the window
+        if (mCount == MAX_RESULTS) {
+            mFirst = (mFirst + 1) % MAX_RESULTS;
+            mCount--;
+        }
+        final int slot = (mFirst + mCount) % MAX_RESULTS;
+        System.arraycopy(scores, 0, mScores[slot], 0, mLabelCount);
+        mTimes[slot] = time;
+        mCount++;
+        while (mCount > 0 && time - mTimes[mFirst] > mAverageWindowNs) {
+            mFirst = (mFirst + 1) % MAX_RESULTS;
+            mCount--;
+        }
+        if (mCount < mMinimumCount) return -1;
+
+        for (int label = 0; label < mLabelCount; label++) {
+            mAverage[label] = 0;
+        }
+        for (int i = 0; i < mCount; i++) {
+            final float[] result = mScores[(mFirst + i) % MAX_RESULTS];
+            for (int label = 0; label < mLabelCount; label++) {
+                mAverage[label] += result[label];
+            }
+        }
+        int top = 0;
+        for (int label = 0; label < mLabelCount; label++) {
+            mAverage[label] /= mCount;
+            if (mAverage[label] > mAverage[top]) {
+                top = label;
+            }
+        }
+
+        final boolean suppressed = mPreviousLabel >= 0 && mPreviousLabel != mSilenceLabel
+                && time - mPreviousTime <= mSuppressionNs;
+        if (mAverage[top] < mDetectionThreshold || suppressed) return -1;
+
+        mPreviousLabel = top;
+        mPreviousTime = time;
+        mScore = mAverage[top];
+        mOnsetTime = time;
+        for (int i = 0; i < mCount; i++) {
+            final int index = (mFirst + i) % MAX_RESULTS;
+            if (isTop(mScores[index], top)) {
+                mOnsetTime = mTimes[index];
+                break;
+            }
+        }
+        return top;
+    }
+
+    /** Average score of the last recognized label. */
+    public float getScore() {
+        return mScore;
+    }
+
+    /**
+     * End of the earliest window in which the last recognized label scored highest, i.e. roughly
+     * when the command had been heard.
+     */
+    public long getOnsetTime() {
+        return mOnsetTime;
+    }
+
+    /** Forgets all results, e.g. after a gap in the audio. */
+    public void reset() {
+        mFirst = 0;
+        mCount = 0;
+        mPreviousLabel = -1;
+    }
+
+    private boolean isTop(float[] scores, int label) {
+        for (int i = 0; i < mLabelCount; i++) {
+            if (scores[i] > scores[label]) return false;
+        }
+        return true;
+    }
+}
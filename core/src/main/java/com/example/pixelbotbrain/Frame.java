@@ -0,0 +1,73 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A YUV_420_888 frame: three planes with their strides, and the exposure timestamp in
+ * SystemClock.elapsedRealtimeNanos() time. Frame sources reuse one instance, so a frame is only
+ * valid for the duration of the FrameSource.Listener call.
+ */
+public class Frame {
+    public static final int NUM_PLANES = 3;
+
+    private final ByteBuffer[] mPlanes = new ByteBuffer[NUM_PLANES];
+    private final int[] mRowStrides = new int[NUM_PLANES];
+    private final int[] mPixelStrides = new int[NUM_PLANES];
+    private int mWidth;
+    private int mHeight;
+    private long mTimestamp;
+
+    public void set(int width, int height, long timestamp) {
+        mWidth = width;
+        mHeight = height;
+        mTimestamp = timestamp;
+    }
+
+    /**
+     * @param buffer Plane data from position to limit.
+     */
+    public void setPlane(int plane, ByteBuffer buffer, int rowStride, int pixelStride) {
+        mPlanes[plane] = buffer;
+        mRowStrides[plane] = rowStride;
+        mPixelStrides[plane] = pixelStride;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public ByteBuffer getPlane(int plane) {
+        return mPlanes[plane];
+    }
+
+    public int getRowStride(int plane) {
+        return mRowStrides[plane];
+    }
+
+    public int getPixelStride(int plane) {
+        return mPixelStrides[plane];
+    }
+}
@@ -0,0 +1,131 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides which camera frames are worth a detector inference. Frames taken while the head is
+ * slewing are mostly motion blurred, and the detector's confidence collapses on them, so a
+ * frame is skipped when it is much less sharp than the scene has recently been, with a stricter
+ * bar while the head is commanded to move. At least one frame per maxSkipNs passes regardless,
+ * so detection never stalls for long.
+ *
+ * Sharpness is the variance of the Laplacian over a grid sampled from the Y plane, which drops
+ * as edges smear. Its scale depends on the scene, so frames are judged against a running
+ * baseline taken from frames while the head is still.
+ *
+ * Call accept() for frames in order from one thread.
+ */
+public class FrameQualityGate {
+    // Frames are sampled about this many pixels wide
+    private static final int SAMPLE_WIDTH = 160;
+    // Head speed, in degrees per second over MOTION_WINDOW_NS, above which frames blur
+    public static final float MOVING_SPEED = 30.0f;
+    public static final long MOTION_WINDOW_NS = 66000000L;
+    // Fraction of the baseline sharpness a frame needs while moving, and while still
+    private static final float MOVING_MIN_RATIO = 0.6f;
+    private static final float STILL_MIN_RATIO = 0.3f;
+    private static final float BASELINE_RATE = 0.05f;
+
+    private final long mMaxSkipNs;
+    private float mBaseline;
+    private long mLastAcceptedNs = Long.MIN_VALUE;
+    private volatile long mFrames;
+    private volatile long mSkipped;
+    private long mSkippedMoving;
+    private long mForced;
+
+    /**
+     * @param maxSkipNs Longest time without an accepted frame, so the detector runs at least
+     *                  1e9 / maxSkipNs times a second.
+     */
+    public FrameQualityGate(long maxSkipNs) {
+        mMaxSkipNs = maxSkipNs;
+    }
+
+    /**
+     * Variance of the Laplacian of the Y plane, sampled on a grid about SAMPLE_WIDTH points
+     * wide. Reads with absolute gets, so the buffer is left as it was.
+     */
+    public static float sharpness(ByteBuffer y, int width, int height, int rowStride) {
+        final int step = Math.max(1, width / SAMPLE_WIDTH);
+        final int base = y.position();
+        long sum = 0;
+        long sumSquares = 0;
+        int count = 0;
+        for (int row = step; row < height - step; row += step) {
+            final int center = base + row * rowStride;
+            for (int col = step; col < width - step; col += step) {
+                final int i = center + col;
+                final int laplacian = 4 * (y.get(i) & 0xff)
+                        - (y.get(i - step) & 0xff) - (y.get(i + step) & 0xff)
+                        - (y.get(i - step * rowStride) & 0xff)
+                        - (y.get(i + step * rowStride) & 0xff);
+                sum += laplacian;
+                sumSquares += laplacian * laplacian;
+                count++;
+            }
+        }
+        if (count == 0) return 0;
+        final double mean = (double) sum / count;
+        return (float) ((double) sumSquares / count - mean * mean);
+    }
+
+    /**
+     * @param timestampNs Exposure time of the frame.
+     * @param sharpness See sharpness().
+     * @param headSpeed Commanded head speed at the time, see ServoMotionModel.getSpeed().
+     * @return Whether to run the detector on the frame.
+     */
+    public boolean accept(long timestampNs, float sharpness, float headSpeed) {
+        mFrames++;
+        final boolean moving = headSpeed >= MOVING_SPEED;
+        if (!moving) {
+            mBaseline = mBaseline == 0 ? sharpness
+                    : mBaseline + BASELINE_RATE * (sharpness - mBaseline);
+        }
+        final boolean sharp = mBaseline == 0
+                || sharpness >= mBaseline * (moving ? MOVING_MIN_RATIO : STILL_MIN_RATIO);
+        if (!sharp && timestampNs - mLastAcceptedNs < mMaxSkipNs) {
+            mSkipped++;
+            if (moving) mSkippedMoving++;
+            return false;
+        }
+        if (!sharp) mForced++;
+        mLastAcceptedNs = timestampNs;
+        return true;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    public long getSkippedCount() {
+        return mSkipped;
+    }
+
+    public float getBaseline() {
+        return mBaseline;
+    }
+
+    public String getStatString() {
+        return String.format("%d frames, %d skipped (%.1f%%, %d while moving), %d blurred "
+                        + "frames passed for the minimum rate, baseline sharpness %.0f", mFrames,
+                mSkipped, mFrames == 0 ? 0 : 100.0f * mSkipped / mFrames, mSkippedMoving,
+                mForced, mBaseline);
+    }
+}
@@ -0,0 +1,176 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes frames to a FrameRecording file. record() copies the frame into a pooled buffer and
+ * queues it for a writer thread, so the caller never waits on storage; if the writer falls
+ * behind and the pool is exhausted, frames are dropped and counted.
+ */
+public class FrameRecorder {
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+    private final FileChannel mChannel;
+    private final int mCapacity;
+    private final long mMaxBytes;
+    private final BlockingQueue<ByteBuffer> mFree;
+    private final BlockingQueue<ByteBuffer> mFilled;
+    private final Thread mWriterThread;
+    private int mAllocated;
+    private long mQueuedBytes;
+    private volatile long mRecordedCount;
+    private volatile long mDroppedCount;
+    private volatile IOException mError;
+
+    /**
+     * @param queueCapacity Maximum number of frames waiting to be written.
+     * @param maxBytes Recording stops (and frames count as dropped) beyond this size. At most
+     *                 2 GB so that the recording can be memory-mapped.
+     */
+    public FrameRecorder(File file, int width, int height, float horizontalFov,
+                         float verticalFov, int queueCapacity, long maxBytes) throws IOException {
+        mChannel = new FileOutputStream(file).getChannel();
+        mCapacity = queueCapacity;
+        mMaxBytes = Math.min(maxBytes, Integer.MAX_VALUE);
+        mFree = new ArrayBlockingQueue<ByteBuffer>(queueCapacity);
+        mFilled = new ArrayBlockingQueue<ByteBuffer>(queueCapacity + 1);
+
+        final ByteBuffer header = ByteBuffer.allocate(FrameRecording.HEADER_SIZE);
+        header.order(FrameRecording.BYTE_ORDER);
+        header.putInt(FrameRecording.MAGIC);
+        header.putInt(FrameRecording.VERSION);
+        header.putInt(width);
+        header.putInt(height);
+        header.putFloat(horizontalFov);
+        header.putFloat(verticalFov);
+        header.rewind();  // the reserved bytes stay zero
+        while (header.hasRemaining()) {
+            mChannel.write(header);
+        }
+        mQueuedBytes = FrameRecording.HEADER_SIZE;
+
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "FrameRecorder");
+        mWriterThread.start();
+    }
+
+    /**
+     * Queues a copy of the frame. Must be called from one thread at a time.
+     *
+     * @return false if the frame was dropped.
+     */
+    public boolean record(Frame frame) {
+        int size = FrameRecording.FRAME_HEADER_SIZE;
+        for (int i = 0; i < Frame.NUM_PLANES; i++) {
+            size += frame.getPlane(i).remaining();
+        }
+        if (mError != null || mQueuedBytes + size > mMaxBytes) {
+            mDroppedCount++;
+            return false;
+        }
+
+        ByteBuffer buffer = mFree.poll();
+        if (buffer == null) {
+            if (mAllocated == mCapacity) {
+                mDroppedCount++;
+                return false;
+            }
+            mAllocated++;
+        }
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size);
+            buffer.order(FrameRecording.BYTE_ORDER);
+        }
+
+        buffer.clear();
+        buffer.putLong(frame.getTimestamp());
+        for (int i = 0; i < Frame.NUM_PLANES; i++) {
+            buffer.putInt(frame.getRowStride(i));
+            buffer.putInt(frame.getPixelStride(i));
+            buffer.putInt(frame.getPlane(i).remaining());
+        }
+        for (int i = 0; i < Frame.NUM_PLANES; i++) {
+            final ByteBuffer plane = frame.getPlane(i);
+            final int position = plane.position();
+            buffer.put(plane);
+            plane.position(position);
+        }
+        buffer.flip();
+        mQueuedBytes += size;
+        mFilled.add(buffer);
+        return true;
+    }
+
+    /**
+     * Writes out the queued frames and closes the file.
+     */
+    public void close() throws IOException {
+        try {
+            mFilled.put(END_OF_STREAM);
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mChannel.close();
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    public long getRecordedCount() {
+        return mRecordedCount;
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            final ByteBuffer buffer;
+            try {
+                buffer = mFilled.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (buffer == END_OF_STREAM) return;
+
+            if (mError == null) {
+                try {
+                    while (buffer.hasRemaining()) {
+                        mChannel.write(buffer);
+                    }
+                    mRecordedCount++;
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+            mFree.offer(buffer);
+        }
+    }
+}
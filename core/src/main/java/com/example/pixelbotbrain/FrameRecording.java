@@ -0,0 +1,154 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary recording of raw YUV_420_888 frames, written by FrameRecorder and read back through a
+ * memory mapping. All values are little-endian.
+ *
+ * Header (32 bytes): magic "PBFR", version, width, height, horizontal FOV (float), vertical FOV
+ * (float), 8 reserved bytes.
+ * Each frame: timestamp (long), then rowStride, pixelStride and length (ints) for each of the
+ * three planes, then the three planes' bytes.
+ */
+public class FrameRecording {
+    public static final int MAGIC = 0x52464250;  // "PBFR" in little-endian
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int FRAME_HEADER_SIZE = 8 + Frame.NUM_PLANES * 12;
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private final MappedByteBuffer mBuffer;
+    private final ByteBuffer[] mPlanes = new ByteBuffer[Frame.NUM_PLANES];
+    private final int mWidth;
+    private final int mHeight;
+    private final float mHorizontalFov;
+    private final float mVerticalFov;
+    private int mFrameCount = -1;
+
+    /**
+     * Maps a recording. Recordings are limited to 2 GB, see FrameRecorder.
+     */
+    public FrameRecording(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Recording too large to map: " + file);
+            }
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();  // the mapping stays valid
+        }
+        mBuffer.order(BYTE_ORDER);
+        if (mBuffer.remaining() < HEADER_SIZE || mBuffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a frame recording: " + file);
+        }
+        if (mBuffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported frame recording version " + mBuffer.getInt(4));
+        }
+        mWidth = mBuffer.getInt(8);
+        mHeight = mBuffer.getInt(12);
+        mHorizontalFov = mBuffer.getFloat(16);
+        mVerticalFov = mBuffer.getFloat(20);
+        for (int i = 0; i < Frame.NUM_PLANES; i++) {
+            mPlanes[i] = mBuffer.duplicate();
+        }
+        rewind();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public float getHorizontalFov() {
+        return mHorizontalFov;
+    }
+
+    public float getVerticalFov() {
+        return mVerticalFov;
+    }
+
+    /**
+     * Number of complete frames in the recording (scans the frame headers once).
+     */
+    public synchronized int getFrameCount() {
+        if (mFrameCount < 0) {
+            int count = 0;
+            int position = HEADER_SIZE;
+            int length;
+            while ((length = frameLength(position)) > 0) {
+                position += length;
+                count++;
+            }
+            mFrameCount = count;
+        }
+        return mFrameCount;
+    }
+
+    /** Goes back to the first frame. */
+    public synchronized void rewind() {
+        mBuffer.position(HEADER_SIZE);
+    }
+
+    /**
+     * Points frame at the next recorded frame without copying. The plane buffers are reused, so
+     * the frame is only valid until the next call.
+     *
+     * @return false at the end of the recording (a truncated last frame is ignored).
+     */
+    public synchronized boolean next(Frame frame) {
+        final int position = mBuffer.position();
+        final int length = frameLength(position);
+        if (length <= 0) return false;
+
+        frame.set(mWidth, mHeight, mBuffer.getLong(position));
+        int planeStart = position + FRAME_HEADER_SIZE;
+        for (int i = 0; i < Frame.NUM_PLANES; i++) {
+            final int header = position + 8 + i * 12;
+            final int planeLength = mBuffer.getInt(header + 8);
+            final ByteBuffer plane = mPlanes[i];
+            plane.limit(planeStart + planeLength);
+            plane.position(planeStart);
+            frame.setPlane(i, plane, mBuffer.getInt(header), mBuffer.getInt(header + 4));
+            planeStart += planeLength;
+        }
+        mBuffer.position(position + length);
+        return true;
+    }
+
+    // Size of the frame at position including its header, or 0 if there isn't a complete one
+    private int frameLength(int position) {
+        if (mBuffer.limit() - position < FRAME_HEADER_SIZE) return 0;
+        long length = FRAME_HEADER_SIZE;
+        for (int i = 0; i < Frame.NUM_PLANES; i++) {
+            length += mBuffer.getInt(position + 8 + i * 12 + 8);
+        }
+        return length <= mBuffer.limit() - position ? (int) length : 0;
+    }
+}
@@ -0,0 +1,46 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+/**
+ * Delivers YUV_420_888 frames to the recognition pipeline, e.g. from the camera or a recording.
+ */
+public interface FrameSource {
+    interface Listener {
+        /**
+         * Called on the source's thread for each frame. The frame must not be used after
+         * returning.
+         */
+        void onFrameAvailable(Frame frame);
+    }
+
+    void start(Listener listener);
+
+    /**
+     * Stops delivering frames. Blocks until any listener call in progress has returned.
+     */
+    void stop();
+
+    int getWidth();
+
+    int getHeight();
+
+    /** Horizontal field of view in degrees. */
+    float getHorizontalFov();
+
+    /** Vertical field of view in degrees. */
+    float getVerticalFov();
+}
@@ -0,0 +1,183 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package com.example.pixelbotbrain;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Named counters, gauges and histograms, rendered in the Prometheus text exposition format
+ * (version 0.0.4) for MetricsServer.
+ *
+ * Components keep counting in their own fields and register a Value that reads them, or own a
+ * Histogram they observe into. Updates are single atomic operations and a scrape only reads
+ * them, so scraping never takes a lock the pipeline holds. Metrics are registered once at
+ * startup; registration copies the list so a scrape in progress is unaffected.
+ */
+public class Metrics {
+    private static final String TYPE_COUNTER = "counter";
+    private static final String TYPE_GAUGE = "gauge";
+    private static final String TYPE_HISTOGRAM = "histogram";
+
+    /**
+     * Reads the current value of a counter or gauge. Must not block.
+     */
+    public interface Value {
+        long get();
+    }
+
+    /**
+     * A distribution of durations in nanoseconds, exported in seconds as Prometheus expects.
+     * Observing is two atomic increments, from any thread.
+     */
+    public static class Histogram {
+        private final long[] mBoundsNs;
+        private final AtomicLongArray mCounts;  // per bucket, the last one unbounded
+        private final AtomicLong mSumNs = new AtomicLong();
+
+        /**
+         * @param boundsNs Upper bounds of the buckets, ascending.
+         */
+        public Histogram(long... boundsNs) {
+            for (int i = 1; i < boundsNs.length; i++) {
+                if (boundsNs[i] <= boundsNs[i - 1]) {
+                    throw new IllegalArgumentException("Bucket bounds must be ascending");
+                }
+            }
+            mBoundsNs = Arrays.copyOf(boundsNs, boundsNs.length);
+            mCounts = new AtomicLongArray(boundsNs.length + 1);
+        }
+
+        public void observe(long durationNs) {
+            int bucket = 0;
+            while (bucket < mBoundsNs.length && durationNs > mBoundsNs[bucket]) {
+                bucket++;
+            }
+            mCounts.incrementAndGet(bucket);
+            mSumNs.addAndGet(durationNs);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < mCounts.length(); i++) {
+                count += mCounts.get(i);
+            }
+            return count;
+        }
+    }
+
+    private static class Entry {
+        final String name;
+        final String help;
+        final String type;
+        final Value value;
+        final Histogram histogram;
+
+        Entry(String name, String help, String type, Value value, Histogram histogram) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+            this.histogram = histogram;
+        }
+    }
+
+    private volatile Entry[] mEntries = new Entry[0];
+
+    /**
+     * @param name Metric name, by convention ending in _total.
+     */
+    public void addCounter(String name, String help, Value value) {
+        add(new Entry(name, help, TYPE_COUNTER, value, null));
+    }
+
+    public void addGauge(String name, String help, Value value) {
+        add(new Entry(name, help, TYPE_GAUGE, value, null));
+    }
+
+    /**
+     * @param name Metric name, by convention ending in _seconds.
+     */
+    public void addHistogram(String name, String help, Histogram histogram) {
+        add(new Entry(name, help, TYPE_HISTOGRAM, null, histogram));
+    }
+
+    private synchronized void add(Entry entry) {
+        if (!entry.name.matches("[a-zA-Z_:][a-zA-Z0-9_:]*")) {
+            throw new IllegalArgumentException("Invalid metric name " + entry.name);
+        }
+        for (Entry existing : mEntries) {
+            if (existing.name.equals(entry.name)) {
+                throw new IllegalArgumentException("Metric " + entry.name + " already added");
+            }
+        }
+        final Entry[] entries = Arrays.copyOf(mEntries, mEntries.length + 1);
+        entries[mEntries.length] = entry;
+        mEntries = entries;
+    }
+
+    /**
+     * Renders every metric in the text exposition format.
+     */
+    public String scrape() {
+        final StringBuilder out = new StringBuilder(4096);
+        for (Entry entry : mEntries) {
+            out.append("# HELP ").append(entry.name).append(' ');
+            appendHelp(out, entry.help);
+            out.append('\n');
+            out.append("# TYPE ").append(entry.name).append(' ').append(entry.type).append('\n');
+            if (entry.histogram != null) {
+                appendHistogram(out, entry.name, entry.histogram);
+            } else {
+                out.append(entry.name).append(' ').append(entry.value.get()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static void appendHistogram(StringBuilder out, String name, Histogram histogram) {
+        // Read each bucket once, so the cumulative counts and the total agree
+        long cumulative = 0;
+        for (int i = 0; i < histogram.mCounts.length(); i++) {
+            cumulative += histogram.mCounts.get(i);
+            out.append(name).append("_bucket{le=\"");
+            if (i < histogram.mBoundsNs.length) {
+                out.append(histogram.mBoundsNs[i] / 1e9);
+            } else {
+                out.append("+Inf");
+            }
+            out.append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(name).append("_sum ").append(histogram.mSumNs.get() / 1e9).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    // HELP text escapes only backslash and newline
+    private static void appendHelp(StringBuilder out, String help) {
+        for (int i = 0; i < help.length(); i++) {
+            final char c = help.charAt(i);
+            if (c == '\\') {
+                out.append("\\\\");
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+}
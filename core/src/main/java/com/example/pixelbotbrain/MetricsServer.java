@@ -0,0 +1,180 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package com.example.pixelbotbrain;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+
+/**
+ * A minimal HTTP server answering GET /metrics with Metrics.scrape(), for Prometheus to poll.
+ * Scrapes are served one at a time on the server's own thread and each connection is closed
+ * after its response, which is all a scraper needs.
+ */
+public class MetricsServer {
+    public static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int READ_TIMEOUT_MS = 2000;
+    private static final int MAX_REQUEST_HEADER = 8192;
+
+    private final Metrics mMetrics;
+    private final ServerSocket mServerSocket;
+    private final Thread mServerThread;
+    private volatile long mScrapeCount;
+    private volatile long mErrorCount;
+
+    /**
+     * Binds and starts serving.
+     *
+     * @param address Interface to listen on, typically the loopback address so that only
+     *                processes on the device (or adb forward) can scrape.
+     * @param port Port to listen on, or 0 for any free port (see getPort()).
+     */
+    public MetricsServer(Metrics metrics, InetAddress address, int port) throws IOException {
+        mMetrics = metrics;
+        mServerSocket = new ServerSocket();
+        mServerSocket.setReuseAddress(true);
+        mServerSocket.bind(new InetSocketAddress(address, port));
+        mServerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serveLoop();
+            }
+        }, "MetricsServer");
+        mServerThread.start();
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    public long getScrapeCount() {
+        return mScrapeCount;
+    }
+
+    /** Connections dropped for a malformed request or an I/O error. */
+    public long getErrorCount() {
+        return mErrorCount;
+    }
+
+    /**
+     * Stops accepting and waits for a scrape in progress to finish.
+     */
+    public void close() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        try {
+            mServerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serveLoop() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (SocketException e) {
+                return;  // closed
+            } catch (IOException e) {
+                mErrorCount++;
+                continue;
+            }
+            try {
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                serve(socket);
+            } catch (IOException e) {
+                mErrorCount++;
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Nothing more to send
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        final String requestLine = readRequestHeader(
+                new BufferedInputStream(socket.getInputStream()));
+        final OutputStream out = socket.getOutputStream();
+        if (requestLine == null) {
+            mErrorCount++;
+            respond(out, "400 Bad Request", "Bad request\n", true);
+            return;
+        }
+
+        final String[] parts = requestLine.split(" ");
+        final String method = parts[0];
+        final String path = parts.length > 1 ? parts[1] : "";
+        final int query = path.indexOf('?');
+        if (!PATH.equals(query < 0 ? path : path.substring(0, query))) {
+            respond(out, "404 Not Found", "Metrics are at " + PATH + "\n", true);
+        } else if (!method.equals("GET") && !method.equals("HEAD")) {
+            respond(out, "405 Method Not Allowed", "Use GET\n", true);
+        } else {
+            respond(out, "200 OK", mMetrics.scrape(), method.equals("GET"));
+            mScrapeCount++;
+        }
+    }
+
+    // Returns the request line after reading up to the blank line ending the header, or null if
+    // the header is malformed or too long
+    private static String readRequestHeader(InputStream in) throws IOException {
+        final StringBuilder header = new StringBuilder();
+        while (header.length() < MAX_REQUEST_HEADER) {
+            final int c = in.read();
+            if (c < 0) return null;
+            header.append((char) c);
+            final int length = header.length();
+            if (length >= 4 && header.charAt(length - 1) == '\n'
+                    && header.charAt(length - 2) == '\r' && header.charAt(length - 3) == '\n'
+                    && header.charAt(length - 4) == '\r') {
+                final int end = header.indexOf("\r\n");
+                return end > 0 ? header.substring(0, end) : null;
+            }
+        }
+        return null;
+    }
+
+    private static void respond(OutputStream out, String status, String body, boolean sendBody)
+            throws IOException {
+        final byte[] bytes = body.getBytes(UTF_8);
+        final String header = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + CONTENT_TYPE + "\r\n"
+                + "Content-Length: " + bytes.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(header.getBytes(UTF_8));
+        if (sendBody) {
+            out.write(bytes);
+        }
+        out.flush();
+    }
+}
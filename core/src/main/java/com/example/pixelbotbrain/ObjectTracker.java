@@ -0,0 +1,210 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+/**
+ * Associates detections across frames so each object keeps a track id while it stays in view.
+ * A detection continues the live track whose last box overlaps it most, if the IoU is at least
+ * the match threshold, or else the one whose center is nearest within the maximum distance;
+ * otherwise it starts a new track. Tracks not seen for longer than the maximum age end. When all
+ * MAX_TRACKS slots hold tracks already matched in this frame, further detections are left
+ * untracked rather than taking over a track that was just assigned.
+ *
+ * Detectors flicker between similar labels for the same object, so association ignores the
+ * label and each track instead keeps a vote over its detections' classes, weighted by score and
+ * decaying with age. The voted class is the track's label. State is held in fixed arrays, so
+ * updating doesn't allocate.
+ *
+ * Boxes are normalized to [0, 1] of the camera frame. Not thread safe.
+ */
+public class ObjectTracker {
+    public static final int MAX_TRACKS = 16;
+
+    // Weight kept by earlier votes at each new detection of a track
+    private static final float VOTE_DECAY = 0.9f;
+
+    private final float mMatchIou;
+    private final float mMaxCenterDistance;
+    private final long mMaxAgeNs;
+    private final int mNumClasses;
+
+    private final int[] mTrackIds = new int[MAX_TRACKS];  // 0 for a free slot
+    private final int[] mClassIds = new int[MAX_TRACKS];  // voted class
+    private final float[] mVotes;
+    private final float[] mBoxes = new float[MAX_TRACKS * 4];
+    private final long[] mLastSeen = new long[MAX_TRACKS];
+    private final boolean[] mMatched = new boolean[MAX_TRACKS];
+    private int mNextTrackId = 1;
+    private long mTimestamp;
+    private boolean mNewTrack;
+    private int mLastSlot;  // -1 if the last detection was left untracked
+    private int mUntrackedClassId;
+
+    /**
+     * @param matchIou Minimum IoU for a detection to continue a track.
+     * @param maxCenterDistance Furthest, in frame widths and heights, the center of a detection
+     *                          that doesn't overlap enough may be from a track to continue it.
+     * @param maxAgeMs How long a track survives without being detected.
+     * @param numClasses Class ids are in [0, numClasses).
+     */
+    public ObjectTracker(float matchIou, float maxCenterDistance, long maxAgeMs,
+                         int numClasses) {
+        mMatchIou = matchIou;
+        mMaxCenterDistance = maxCenterDistance;
+        mMaxAgeNs = maxAgeMs * 1000000L;
+        mNumClasses = numClasses;
+        mVotes = new float[MAX_TRACKS * numClasses];
+    }
+
+    /**
+     * Starts associating the detections of a new frame and ends tracks that have aged out.
+     */
+    public void beginFrame(long timestamp) {
+        mTimestamp = timestamp;
+        for (int i = 0; i < MAX_TRACKS; i++) {
+            mMatched[i] = false;
+            if (mTrackIds[i] != 0 && timestamp - mLastSeen[i] > mMaxAgeNs) {
+                mTrackIds[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Assigns one detection of the current frame to a track. Call in descending order of
+     * confidence, since each track takes at most one detection per frame.
+     *
+     * @return The track id, or 0 if every slot already has a track matched in this frame.
+     *         getVotedClassId() then gives the track's label.
+     */
+    public int update(int classId, float score, float left, float top, float right,
+                      float bottom) {
+        int best = -1;
+        float bestIou = mMatchIou;
+        for (int i = 0; i < MAX_TRACKS; i++) {
+            if (mTrackIds[i] == 0 || mMatched[i]) continue;
+            final float iou = iou(mBoxes, i * 4, left, top, right, bottom);
+            if (iou >= bestIou) {
+                best = i;
+                bestIou = iou;
+            }
+        }
+        if (best < 0) {
+            final float centerX = (left + right) / 2;
+            final float centerY = (top + bottom) / 2;
+            float bestDistance = mMaxCenterDistance;
+            for (int i = 0; i < MAX_TRACKS; i++) {
+                if (mTrackIds[i] == 0 || mMatched[i]) continue;
+                final float dx = (mBoxes[i * 4] + mBoxes[i * 4 + 2]) / 2 - centerX;
+                final float dy = (mBoxes[i * 4 + 1] + mBoxes[i * 4 + 3]) / 2 - centerY;
+                final float distance = (float) Math.sqrt(dx * dx + dy * dy);
+                if (distance <= bestDistance) {
+                    best = i;
+                    bestDistance = distance;
+                }
+            }
+        }
+
+        mNewTrack = best < 0;
+        if (mNewTrack) {
+            best = freeSlot();
+            if (best < 0) {
+                mNewTrack = false;
+                mLastSlot = -1;
+                mUntrackedClassId = classId;
+                return 0;
+            }
+            mTrackIds[best] = mNextTrackId++;
+            if (mNextTrackId == 0) mNextTrackId = 1;
+            for (int c = 0; c < mNumClasses; c++) {
+                mVotes[best * mNumClasses + c] = 0;
+            }
+        }
+        vote(best, classId, score);
+        mLastSlot = best;
+        mMatched[best] = true;
+        mLastSeen[best] = mTimestamp;
+        mBoxes[best * 4] = left;
+        mBoxes[best * 4 + 1] = top;
+        mBoxes[best * 4 + 2] = right;
+        mBoxes[best * 4 + 3] = bottom;
+        return mTrackIds[best];
+    }
+
+    /**
+     * Label of the track the last update() assigned, by vote over its detections, or the
+     * detection's own label if it was left untracked.
+     */
+    public int getVotedClassId() {
+        return mLastSlot >= 0 ? mClassIds[mLastSlot] : mUntrackedClassId;
+    }
+
+    /** Whether the last update() started a new track. */
+    public boolean isNewTrack() {
+        return mNewTrack;
+    }
+
+    /** Whether the track with this id is still live. */
+    public boolean isLive(int trackId) {
+        for (int i = 0; i < MAX_TRACKS; i++) {
+            if (mTrackIds[i] == trackId) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Intersection over union of two boxes, the first stored at offset in boxes as left, top,
+     * right, bottom.
+     */
+    public static float iou(float[] boxes, int offset, float left, float top, float right,
+                            float bottom) {
+        final float intersectW = Math.min(boxes[offset + 2], right)
+                - Math.max(boxes[offset], left);
+        final float intersectH = Math.min(boxes[offset + 3], bottom)
+                - Math.max(boxes[offset + 1], top);
+        if (intersectW <= 0 || intersectH <= 0) return 0;
+        final float intersection = intersectW * intersectH;
+        final float areaA =
+                (boxes[offset + 2] - boxes[offset]) * (boxes[offset + 3] - boxes[offset + 1]);
+        final float areaB = (right - left) * (bottom - top);
+        return intersection / (areaA + areaB - intersection);
+    }
+
+    private void vote(int slot, int classId, float score) {
+        final int base = slot * mNumClasses;
+        for (int c = 0; c < mNumClasses; c++) {
+            mVotes[base + c] *= VOTE_DECAY;
+        }
+        mVotes[base + classId] += score;
+        int voted = classId;
+        for (int c = 0; c < mNumClasses; c++) {
+            if (mVotes[base + c] > mVotes[base + voted]) voted = c;
+        }
+        mClassIds[slot] = voted;
+    }
+
+    // A free slot, or the unmatched one seen longest ago if all are live, or -1 if every track
+    // has already been matched in this frame
+    private int freeSlot() {
+        int oldest = -1;
+        for (int i = 0; i < MAX_TRACKS; i++) {
+            if (mTrackIds[i] == 0) return i;
+            if (!mMatched[i] && (oldest < 0 || mLastSeen[i] < mLastSeen[oldest])) {
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+}
@@ -0,0 +1,155 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+/**
+ * Phone-side pan/tilt controller producing absolute servo angles. Each axis is a PID on the
+ * angle the head still has to turn to center the target, plus feed-forward of the rate the
+ * target is moving at, integrated into an angle command at a fixed period. Gains can be changed
+ * at any time.
+ *
+ * Errors are in degrees, positive meaning the angle must increase; rates are in degrees per
+ * second. Angles are clamped to the servo range, and the integrator doesn't wind up against
+ * the end stops.
+ */
+public class PanTiltController {
+    public static final float MIN_ANGLE = 0;
+    public static final float MAX_ANGLE = 180;
+    public static final float CENTER_ANGLE = 90;
+
+    private float mKp;
+    private float mKi;
+    private float mKd;
+    private float mKff;
+    private float mMaxRate;
+
+    private final Axis mPan = new Axis();
+    private final Axis mTilt = new Axis();
+
+    private static class Axis {
+        float angle = CENTER_ANGLE;
+        float integral;
+        float previousError;
+        boolean hasPrevious;
+    }
+
+    /**
+     * @param kp Proportional gain, degrees per second per degree of error.
+     * @param ki Integral gain, degrees per second per degree-second of error.
+     * @param kd Derivative gain, degrees per second per degree per second.
+     * @param kff Feed-forward gain on the target's rate, 1 to match it exactly.
+     * @param maxRate Fastest the head is commanded to turn, in degrees per second.
+     */
+    public PanTiltController(float kp, float ki, float kd, float kff, float maxRate) {
+        setGains(kp, ki, kd, kff, maxRate);
+    }
+
+    public synchronized void setGains(float kp, float ki, float kd, float kff, float maxRate) {
+        mKp = kp;
+        mKi = ki;
+        mKd = kd;
+        mKff = kff;
+        mMaxRate = maxRate;
+    }
+
+    public synchronized float getKp() {
+        return mKp;
+    }
+
+    public synchronized float getKi() {
+        return mKi;
+    }
+
+    public synchronized float getKd() {
+        return mKd;
+    }
+
+    public synchronized float getKff() {
+        return mKff;
+    }
+
+    public synchronized float getMaxRate() {
+        return mMaxRate;
+    }
+
+    public synchronized String getGainString() {
+        return String.format("kp %.2f ki %.2f kd %.3f kff %.2f max %.0f deg/s", mKp, mKi, mKd,
+                mKff, mMaxRate);
+    }
+
+    /**
+     * Advances both axes by one period.
+     *
+     * @param dt Seconds since the last update.
+     * @return Whether either commanded angle changed by at least one whole degree.
+     */
+    public synchronized boolean update(float dt, float panError, float tiltError,
+                                       float panRate, float tiltRate) {
+        final int pan = Math.round(mPan.angle);
+        final int tilt = Math.round(mTilt.angle);
+        step(mPan, dt, panError, panRate);
+        step(mTilt, dt, tiltError, tiltRate);
+        return Math.round(mPan.angle) != pan || Math.round(mTilt.angle) != tilt;
+    }
+
+    /**
+     * Forgets the integral and derivative history, e.g. when the target is lost. The angles are
+     * held.
+     */
+    public synchronized void reset() {
+        resetAxis(mPan);
+        resetAxis(mTilt);
+    }
+
+    /**
+     * Turns the commanded angles by the given amounts, within the servo range.
+     */
+    public synchronized void moveBy(float panDegrees, float tiltDegrees) {
+        mPan.angle = Math.max(MIN_ANGLE, Math.min(MAX_ANGLE, mPan.angle + panDegrees));
+        mTilt.angle = Math.max(MIN_ANGLE, Math.min(MAX_ANGLE, mTilt.angle + tiltDegrees));
+    }
+
+    public synchronized float getPanAngle() {
+        return mPan.angle;
+    }
+
+    public synchronized float getTiltAngle() {
+        return mTilt.angle;
+    }
+
+    private void step(Axis axis, float dt, float error, float targetRate) {
+        if (dt <= 0) return;
+        final float derivative = axis.hasPrevious ? (error - axis.previousError) / dt : 0;
+        axis.previousError = error;
+        axis.hasPrevious = true;
+
+        final float integral = axis.integral + error * dt;
+        float rate = mKff * targetRate + mKp * error + mKi * integral + mKd * derivative;
+        rate = Math.max(-mMaxRate, Math.min(mMaxRate, rate));
+        final float angle = axis.angle + rate * dt;
+        if (angle < MIN_ANGLE || angle > MAX_ANGLE) {
+            axis.angle = Math.max(MIN_ANGLE, Math.min(MAX_ANGLE, angle));  // keep the integral
+        } else {
+            axis.angle = angle;
+            axis.integral = integral;
+        }
+    }
+
+    private static void resetAxis(Axis axis) {
+        axis.integral = 0;
+        axis.hasPrevious = false;
+    }
+}
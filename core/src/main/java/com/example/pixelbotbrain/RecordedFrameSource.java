@@ -0,0 +1,146 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+/**
+ * Replays a FrameRecording, either as fast as the listener consumes frames (for benchmarking)
+ * or paced by the recorded timestamps.
+ */
+public class RecordedFrameSource implements FrameSource {
+    private final FrameRecording mRecording;
+    private final boolean mRealtime;
+    private final boolean mLoop;
+    private final Frame mFrame = new Frame();
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private volatile long mDeliveredCount;
+
+    /**
+     * @param realtime Pace frames by their recorded timestamps, and rebase the timestamps onto
+     *                 the current clock so that latency-sensitive consumers behave as live.
+     *                 Otherwise frames are delivered back to back with their recorded times.
+     * @param loop Start over at the end of the recording instead of stopping.
+     */
+    public RecordedFrameSource(FrameRecording recording, boolean realtime, boolean loop) {
+        mRecording = recording;
+        mRealtime = realtime;
+        mLoop = loop;
+    }
+
+    @Override
+    public synchronized void start(final Listener listener) {
+        if (mThread != null) return;
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay(listener);
+            }
+        }, "RecordedFrameSource");
+        mThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mThread == null) return;
+        mRunning = false;
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    /**
+     * Blocks until a non-looping replay has delivered every frame.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        final Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    public long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    @Override
+    public int getWidth() {
+        return mRecording.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mRecording.getHeight();
+    }
+
+    @Override
+    public float getHorizontalFov() {
+        return mRecording.getHorizontalFov();
+    }
+
+    @Override
+    public float getVerticalFov() {
+        return mRecording.getVerticalFov();
+    }
+
+    private void replay(Listener listener) {
+        mRecording.rewind();
+        long firstTimestamp = -1;
+        long startTime = 0;
+        while (mRunning) {
+            if (!mRecording.next(mFrame)) {
+                if (!mLoop) break;
+                mRecording.rewind();
+                firstTimestamp = -1;
+                continue;
+            }
+
+            if (mRealtime) {
+                final long now = System.nanoTime();
+                if (firstTimestamp < 0) {
+                    firstTimestamp = mFrame.getTimestamp();
+                    startTime = now;
+                }
+                final long offset = mFrame.getTimestamp() - firstTimestamp;
+                final long delay = startTime + offset - now;
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                mFrame.set(mFrame.getWidth(), mFrame.getHeight(), rebase(startTime + offset));
+            }
+            listener.onFrameAvailable(mFrame);
+            mDeliveredCount++;
+        }
+    }
+
+    /**
+     * Maps a System.nanoTime() onto the clock live frames are stamped with. Replays on a device
+     * override this to use SystemClock.elapsedRealtimeNanos().
+     */
+    protected long rebase(long nanoTime) {
+        return nanoTime;
+    }
+}
@@ -0,0 +1,106 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package com.example.pixelbotbrain;
+
+/**
+ * Timestamped ring of camera rotation samples, so a detection can be corrected for how the
+ * camera turned between its exposure and now. Angles between samples are interpolated; times
+ * a little past the newest sample read the newest, since the sensor is sampled much faster than
+ * the error this introduces matters.
+ *
+ * Written by the RotationSource's thread and read from any, without allocating.
+ */
+public class RotationHistory implements RotationSource.Listener {
+    // How far past the newest sample a time is still considered covered
+    private static final long MAX_EXTRAPOLATION_NS = 50000000L;
+
+    private final long[] mTimes;
+    private final float[] mPans;
+    private final float[] mTilts;
+    private int mCount;
+    private int mNext;
+
+    /**
+     * @param capacity Samples kept, enough to cover the oldest detection still being used at the
+     *                 sensor rate.
+     */
+    public RotationHistory(int capacity) {
+        mTimes = new long[capacity];
+        mPans = new float[capacity];
+        mTilts = new float[capacity];
+    }
+
+    @Override
+    public synchronized void onRotation(long timestamp, float pan, float tilt) {
+        if (mCount > 0 && timestamp <= mTimes[index(0)]) return;
+        mTimes[mNext] = timestamp;
+        mPans[mNext] = pan;
+        mTilts[mNext] = tilt;
+        mNext = (mNext + 1) % mTimes.length;
+        mCount = Math.min(mCount + 1, mTimes.length);
+    }
+
+    /**
+     * Forgets all samples, e.g. when the source stops.
+     */
+    public synchronized void clear() {
+        mCount = 0;
+    }
+
+    /** Whether angles at this time come from samples. */
+    public synchronized boolean covers(long timestamp) {
+        return mCount >= 2 && timestamp >= mTimes[index(mCount - 1)]
+                && timestamp - mTimes[index(0)] <= MAX_EXTRAPOLATION_NS;
+    }
+
+    /** Time of the newest sample, or 0 if there is none. */
+    public synchronized long getLatestTime() {
+        return mCount == 0 ? 0 : mTimes[index(0)];
+    }
+
+    /** Pan angle at a covered time. */
+    public synchronized float getPanAngle(long timestamp) {
+        return interpolate(mPans, timestamp);
+    }
+
+    /** Tilt angle at a covered time. */
+    public synchronized float getTiltAngle(long timestamp) {
+        return interpolate(mTilts, timestamp);
+    }
+
+    // Ring index of the sample age samples before the newest
+    private int index(int age) {
+        return (mNext - 1 - age + 2 * mTimes.length) % mTimes.length;
+    }
+
+    private float interpolate(float[] angles, long timestamp) {
+        if (mCount == 0) return 0;
+        int newer = index(0);
+        if (timestamp >= mTimes[newer]) return angles[newer];
+        // Detections are recent, so search back from the newest sample
+        for (int age = 1; age < mCount; age++) {
+            final int older = index(age);
+            if (mTimes[older] <= timestamp) {
+                final float f = (float) (timestamp - mTimes[older])
+                        / (mTimes[newer] - mTimes[older]);
+                return angles[older] + f * (angles[newer] - angles[older]);
+            }
+            newer = older;
+        }
+        return angles[newer];
+    }
+}
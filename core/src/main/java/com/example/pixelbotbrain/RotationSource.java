@@ -0,0 +1,45 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package com.example.pixelbotbrain;
+
+/**
+ * Delivers how the camera has turned, e.g. from the phone's gyroscope or a recorded trace.
+ * Angles are in degrees on the head's axes, signed like the servo angles in ServoMotionModel:
+ * positive pan moves the image content towards larger x and positive tilt towards smaller y.
+ */
+public interface RotationSource {
+    interface Listener {
+        /**
+         * Called on the source's thread for each sample.
+         *
+         * @param timestamp SystemClock.elapsedRealtimeNanos() of the sample.
+         * @param pan Pan angle turned since the source started.
+         * @param tilt Tilt angle turned since the source started.
+         */
+        void onRotation(long timestamp, float pan, float tilt);
+    }
+
+    /**
+     * @return false if there is no sensor to start.
+     */
+    boolean start(Listener listener);
+
+    /**
+     * Stops delivering samples. No listener call is made after this returns.
+     */
+    void stop();
+}
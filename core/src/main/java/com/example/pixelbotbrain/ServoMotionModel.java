@@ -0,0 +1,191 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+/**
+ * Phone-side replica of the pan/tilt PD loop in PixelbotBody.ino, used to estimate how far the
+ * head has been commanded to move between two points in time. Each SERVO_TRACK_CMD makes the
+ * Arduino step the servos by (error * P + delta-error * D) >> 12 degrees once per loop cycle,
+ * for up to MAX_CYCLES_BEFORE_UPDATE cycles or until the next command arrives.
+ *
+ * When the head is instead driven by absolute SERVO_MOVE_CMD positions (see PanTiltController),
+ * the angle at a time is simply the last position commanded by then; a body is driven one way
+ * or the other, and once move commands arrive they take over.
+ *
+ * Angles from track commands are relative to when the model was created; servo end stops are
+ * not modelled.
+ * Times are SystemClock.elapsedRealtimeNanos().
+ */
+public class ServoMotionModel {
+    // Must match PanTiltServos and loop() in PixelbotBody.ino
+    private static final int PROPORTIONAL = 100;
+    private static final int DERIVATIVE = 100;
+    private static final int MAX_CYCLES_BEFORE_UPDATE = 10;
+    private static final long CYCLE_NS = 22000000L;  // delay(20) plus loop overhead
+
+    private static final int HISTORY = 32;
+    // Track errors smaller than this are centering noise and don't count as reversing the head
+    private static final int REVERSAL_DEADBAND = 8;
+
+    private final long[] mTimes = new long[HISTORY];
+    private final int[] mPanErrors = new int[HISTORY];
+    private final int[] mTiltErrors = new int[HISTORY];
+    private final int[] mPrevPanErrors = new int[HISTORY];
+    private final int[] mPrevTiltErrors = new int[HISTORY];
+    private int mCount;
+    private int mHead;  // index of the oldest retained command
+    private float mBasePan;  // contribution of commands dropped from the history
+    private float mBaseTilt;
+    private int mLastPanError;
+    private int mLastTiltError;
+
+    // Absolute move commands, oldest at mMoveHead
+    private final long[] mMoveTimes = new long[HISTORY];
+    private final float[] mMovePans = new float[HISTORY];
+    private final float[] mMoveTilts = new float[HISTORY];
+    private int mMoveCount;
+    private int mMoveHead;
+
+    // Direction each axis was last commanded to turn, -1, 0 or 1, and how often it reversed
+    private int mPanDirection;
+    private int mTiltDirection;
+    private long mReversals;
+
+    /**
+     * Records a track command as it is written to the body.
+     */
+    public synchronized void onTrackCommand(long timeNs, byte panError, byte tiltError) {
+        if (mCount == HISTORY) {
+            // Retire the oldest command, which has long finished given the newer ones
+            mBasePan += displacement(mHead, Long.MAX_VALUE, true);
+            mBaseTilt += displacement(mHead, Long.MAX_VALUE, false);
+            mHead = (mHead + 1) % HISTORY;
+            mCount--;
+        }
+        final int i = (mHead + mCount) % HISTORY;
+        mTimes[i] = timeNs;
+        mPanErrors[i] = panError;
+        mTiltErrors[i] = tiltError;
+        mPrevPanErrors[i] = mLastPanError;
+        mPrevTiltErrors[i] = mLastTiltError;
+        mCount++;
+        mLastPanError = panError;
+        mLastTiltError = tiltError;
+
+        if (Math.abs(panError) >= REVERSAL_DEADBAND) {
+            mPanDirection = turn(mPanDirection, panError);
+        }
+        if (Math.abs(tiltError) >= REVERSAL_DEADBAND) {
+            mTiltDirection = turn(mTiltDirection, tiltError);
+        }
+    }
+
+    /**
+     * Records an absolute move command as it is written to the body.
+     */
+    public synchronized void onMoveCommand(long timeNs, float panAngle, float tiltAngle) {
+        if (mMoveCount == HISTORY) {
+            mMoveHead = (mMoveHead + 1) % HISTORY;
+            mMoveCount--;
+        }
+        if (mMoveCount > 0) {
+            final int last = (mMoveHead + mMoveCount - 1) % HISTORY;
+            mPanDirection = turn(mPanDirection, panAngle - mMovePans[last]);
+            mTiltDirection = turn(mTiltDirection, tiltAngle - mMoveTilts[last]);
+        }
+        final int i = (mMoveHead + mMoveCount) % HISTORY;
+        mMoveTimes[i] = timeNs;
+        mMovePans[i] = panAngle;
+        mMoveTilts[i] = tiltAngle;
+        mMoveCount++;
+    }
+
+    /** Commanded pan angle in degrees at the given time. */
+    public synchronized float getPanAngle(long timeNs) {
+        if (mMoveCount > 0) return mMovePans[moveAt(timeNs)];
+        float angle = mBasePan;
+        for (int n = 0; n < mCount; n++) {
+            angle += displacement((mHead + n) % HISTORY, timeNs, true);
+        }
+        return angle;
+    }
+
+    /** Commanded tilt angle in degrees at the given time. */
+    public synchronized float getTiltAngle(long timeNs) {
+        if (mMoveCount > 0) return mMoveTilts[moveAt(timeNs)];
+        float angle = mBaseTilt;
+        for (int n = 0; n < mCount; n++) {
+            angle += displacement((mHead + n) % HISTORY, timeNs, false);
+        }
+        return angle;
+    }
+
+    /**
+     * Average commanded angular speed of the head, in degrees per second, over the window
+     * ending at timeNs.
+     */
+    public synchronized float getSpeed(long timeNs, long windowNs) {
+        final float pan = getPanAngle(timeNs) - getPanAngle(timeNs - windowNs);
+        final float tilt = getTiltAngle(timeNs) - getTiltAngle(timeNs - windowNs);
+        return (float) (Math.sqrt(pan * pan + tilt * tilt) * 1e9 / windowNs);
+    }
+
+    /**
+     * Number of times the pan or tilt servo was commanded to turn the opposite way to its
+     * previous command, a measure of how much the head dithers between targets.
+     */
+    public synchronized long getReversalCount() {
+        return mReversals;
+    }
+
+    // New direction of an axis commanded to move by delta, counting a reversal
+    private int turn(int direction, float delta) {
+        final int newDirection = delta > 0 ? 1 : delta < 0 ? -1 : direction;
+        if (direction != 0 && newDirection != direction) mReversals++;
+        return newDirection;
+    }
+
+    // Index of the last move command at or before timeNs, or the oldest retained one
+    private int moveAt(long timeNs) {
+        for (int n = mMoveCount - 1; n > 0; n--) {
+            final int i = (mMoveHead + n) % HISTORY;
+            if (mMoveTimes[i] <= timeNs) return i;
+        }
+        return mMoveHead;
+    }
+
+    // Degrees moved due to the command at index i up to timeNs
+    private float displacement(int i, long timeNs, boolean pan) {
+        final long start = mTimes[i];
+        if (timeNs < start) return 0;
+
+        int cycles = MAX_CYCLES_BEFORE_UPDATE;
+        final int next = (i + 1) % HISTORY;
+        if (next != (mHead + mCount) % HISTORY) {
+            // Superseded by the next command
+            cycles = (int) Math.min(cycles, (mTimes[next] - start + CYCLE_NS - 1) / CYCLE_NS);
+        }
+        // The first update happens in the loop iteration that receives the command
+        cycles = (int) Math.min(cycles, (timeNs - start) / CYCLE_NS + 1);
+        if (cycles <= 0) return 0;
+
+        final int error = pan ? mPanErrors[i] : mTiltErrors[i];
+        final int prevError = pan ? mPrevPanErrors[i] : mPrevTiltErrors[i];
+        final int first = (error * PROPORTIONAL + (error - prevError) * DERIVATIVE) >> 12;
+        final int rest = (error * PROPORTIONAL) >> 12;
+        return first + rest * (cycles - 1);
+    }
+}
@@ -0,0 +1,211 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package com.example.pixelbotbrain;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Binary journal of a session's detections, body commands and link events, written by
+ * SessionJournalWriter into size-limited segment files named <prefix>-<index>.pbj, and streamed
+ * back here a buffer at a time so that a journal of any length can be read. All values are
+ * little-endian.
+ *
+ * Segment header (32 bytes): magic "PBJL", version, record size, segment index, wall clock time
+ * the segment was started (long, ms), 8 reserved bytes.
+ * Each record (32 bytes): timestamp (long, SystemClock.elapsedRealtimeNanos()), type (int), then
+ * ints a, b and c, and a box as four unsigned shorts of 1/65535 of the frame:
+ *   TYPE_FRAME      a detections in the frame, b inference time in microseconds
+ *   TYPE_DETECTION  a class id, b track id, c score (float bits), box
+ *   TYPE_COMMAND    a command byte, b up to four payload bytes, the first in the low byte,
+ *                   c payload length, plus FLAG_HELD if the link was down and it was held
+ *   TYPE_LINK       a new BluetoothArduinoBridge state
+ * The type is written last, so a record of type 0 marks the end of a segment.
+ */
+public class SessionJournal {
+    public static final int MAGIC = 0x4c4a4250;  // "PBJL" in little-endian
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 32;
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+    public static final String EXTENSION = ".pbj";
+
+    public static final int TYPE_FRAME = 1;
+    public static final int TYPE_DETECTION = 2;
+    public static final int TYPE_COMMAND = 3;
+    public static final int TYPE_LINK = 4;
+
+    public static final int FLAG_HELD = 0x100;
+
+    static final int OFFSET_TYPE = 8;
+    static final int OFFSET_A = 12;
+    static final int OFFSET_B = 16;
+    static final int OFFSET_C = 20;
+    static final int OFFSET_BOX = 24;
+    static final float BOX_SCALE = 65535.0f;
+
+    private static final int RECORDS_PER_READ = 2048;
+
+    private final File[] mSegments;
+    private final ByteBuffer mBuffer =
+            ByteBuffer.allocateDirect(RECORDS_PER_READ * RECORD_SIZE).order(BYTE_ORDER);
+    private int mSegment = -1;
+    private FileChannel mChannel;
+    private boolean mSegmentEnded;
+
+    /**
+     * A journal record, filled in place by next().
+     */
+    public static class Record {
+        public long timestamp;
+        public int type;
+        public int a;
+        public int b;
+        public int c;
+        public float left;
+        public float top;
+        public float right;
+        public float bottom;
+
+        /** Score of a TYPE_DETECTION record. */
+        public float score() {
+            return Float.intBitsToFloat(c);
+        }
+
+        /** Payload byte i of a TYPE_COMMAND record. */
+        public byte payload(int i) {
+            return (byte) (b >> (8 * i));
+        }
+
+        public int payloadLength() {
+            return c & 0xff;
+        }
+
+        public boolean isHeld() {
+            return (c & FLAG_HELD) != 0;
+        }
+    }
+
+    /**
+     * @param segments Segment files in the order they were written, see findSegments().
+     */
+    public SessionJournal(File... segments) {
+        mSegments = Arrays.copyOf(segments, segments.length);
+        mBuffer.limit(0);
+    }
+
+    /**
+     * The segments of the journal written with prefix, in order.
+     *
+     * @param prefix Path and name prefix given to SessionJournalWriter, e.g. dir/session.
+     */
+    public static File[] findSegments(File prefix) {
+        final File dir = prefix.getAbsoluteFile().getParentFile();
+        final String name = prefix.getName();
+        final File[] segments = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File directory, String file) {
+                return isSegmentName(name, file);
+            }
+        });
+        if (segments == null) return new File[0];
+        // The index is zero padded, so names sort in the order written
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    static String segmentName(String prefix, int index) {
+        return String.format(Locale.US, "%s-%04d%s", prefix, index, EXTENSION);
+    }
+
+    static boolean isSegmentName(String prefix, String file) {
+        return file.startsWith(prefix + "-") && file.endsWith(EXTENSION)
+                && file.length() == prefix.length() + 5 + EXTENSION.length()
+                && file.substring(prefix.length() + 1, prefix.length() + 5).matches("[0-9]{4}");
+    }
+
+    /**
+     * Copies the next record into out.
+     *
+     * @return false after the last record of the last segment.
+     */
+    public boolean next(Record out) throws IOException {
+        while (mBuffer.remaining() < RECORD_SIZE
+                || mBuffer.getInt(mBuffer.position() + OFFSET_TYPE) == 0) {
+            if (mBuffer.remaining() >= RECORD_SIZE) {
+                mSegmentEnded = true;  // the unwritten tail of a segment left by a crash
+            }
+            if (!fill()) return false;
+        }
+        final int position = mBuffer.position();
+        out.type = mBuffer.getInt(position + OFFSET_TYPE);
+        out.timestamp = mBuffer.getLong(position);
+        out.a = mBuffer.getInt(position + OFFSET_A);
+        out.b = mBuffer.getInt(position + OFFSET_B);
+        out.c = mBuffer.getInt(position + OFFSET_C);
+        out.left = (mBuffer.getShort(position + OFFSET_BOX) & 0xffff) / BOX_SCALE;
+        out.top = (mBuffer.getShort(position + OFFSET_BOX + 2) & 0xffff) / BOX_SCALE;
+        out.right = (mBuffer.getShort(position + OFFSET_BOX + 4) & 0xffff) / BOX_SCALE;
+        out.bottom = (mBuffer.getShort(position + OFFSET_BOX + 6) & 0xffff) / BOX_SCALE;
+        mBuffer.position(position + RECORD_SIZE);
+        return true;
+    }
+
+    public void close() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    // Reads more of the current segment, or moves on to the next when it has ended. A partial
+    // record at the end of a segment is dropped.
+    private boolean fill() throws IOException {
+        if (mChannel != null && !mSegmentEnded) {
+            mBuffer.compact();
+            final int read = mChannel.read(mBuffer);
+            mBuffer.flip();
+            if (read > 0) return true;
+        }
+        close();
+        if (++mSegment >= mSegments.length) return false;
+
+        final File file = mSegments[mSegment];
+        mChannel = new FileInputStream(file).getChannel();
+        mSegmentEnded = false;
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(BYTE_ORDER);
+        while (header.hasRemaining() && mChannel.read(header) > 0) {
+            // Header is read whole
+        }
+        if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+            throw new IOException("Not a session journal: " + file);
+        }
+        if (header.getInt(4) != VERSION || header.getInt(8) != RECORD_SIZE) {
+            throw new IOException("Unsupported session journal version " + header.getInt(4));
+        }
+        mBuffer.clear();
+        mBuffer.flip();
+        return true;
+    }
+}
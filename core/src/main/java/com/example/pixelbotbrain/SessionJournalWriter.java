@@ -0,0 +1,315 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package com.example.pixelbotbrain;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends fixed-width records to a SessionJournal through a memory mapping, so a record costs a
+ * few stores into the page cache and no system call. Once a segment is half full the next one is
+ * created and mapped on the journal's own thread, so when the segment fills up an append only
+ * switches buffers; that thread also deletes the oldest segments beyond maxSegments.
+ *
+ * Every append is allocation free and safe from any thread, and never waits for file I/O. If
+ * the next segment isn't ready in time its records are counted as dropped. After an I/O error
+ * the journal stops at the end of its current segment and further records are dropped.
+ */
+public class SessionJournalWriter {
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    private final File mDir;
+    private final String mPrefix;
+    private final int mSegmentBytes;
+    private final int mMaxSegments;
+    private final ExecutorService mExecutor;
+
+    // Guarded by this
+    private MappedByteBuffer mBuffer;
+    private File mFile;
+    private int mSegmentIndex;
+    private int mPosition;
+    private MappedByteBuffer mNextBuffer;  // mapped ahead by the journal thread
+    private File mNextFile;
+    private boolean mPreparing;
+    private boolean mClosing;
+    private long mRecordCount;
+    private long mDroppedCount;
+    private IOException mError;
+
+    /**
+     * Starts the first segment, replacing any journal previously written with the prefix.
+     *
+     * @param prefix Path and name prefix of the segments, e.g. dir/session for
+     *               dir/session-0000.pbj, dir/session-0001.pbj, ...
+     * @param segmentBytes Size of each segment, at most 2 GB so it can be mapped.
+     * @param maxSegments Segments kept, the oldest are deleted as new ones start.
+     */
+    public SessionJournalWriter(File prefix, long segmentBytes, int maxSegments)
+            throws IOException {
+        mDir = prefix.getAbsoluteFile().getParentFile();
+        mPrefix = prefix.getName();
+        final long records = (Math.min(segmentBytes, Integer.MAX_VALUE)
+                - SessionJournal.HEADER_SIZE) / SessionJournal.RECORD_SIZE;
+        if (records < 1 || maxSegments < 1) {
+            throw new IllegalArgumentException("Journal too small");
+        }
+        mSegmentBytes = SessionJournal.HEADER_SIZE + (int) records * SessionJournal.RECORD_SIZE;
+        mMaxSegments = maxSegments;
+        for (File stale : SessionJournal.findSegments(prefix)) {
+            if (!stale.delete()) {
+                throw new IOException("Can't replace " + stale);
+            }
+        }
+        final File file = new File(mDir, SessionJournal.segmentName(mPrefix, 0));
+        final MappedByteBuffer buffer = mapSegment(file, 0);
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "SessionJournal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        synchronized (this) {
+            mFile = file;
+            mBuffer = buffer;
+            mPosition = SessionJournal.HEADER_SIZE;
+        }
+    }
+
+    /**
+     * A frame the detector finished.
+     */
+    public void writeFrame(long timestampNs, int detections, long inferenceTimeNs) {
+        append(SessionJournal.TYPE_FRAME, timestampNs, detections,
+                (int) Math.min(inferenceTimeNs / 1000, Integer.MAX_VALUE), 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * A detection, with the box normalized to the frame.
+     */
+    public void writeDetection(long timestampNs, int classId, int trackId, float score,
+                               float left, float top, float right, float bottom) {
+        append(SessionJournal.TYPE_DETECTION, timestampNs, classId, trackId,
+                Float.floatToRawIntBits(score), boxValue(left), boxValue(top), boxValue(right),
+                boxValue(bottom));
+    }
+
+    /**
+     * A command framed with BodyProtocol, as sent to the body or held while the link was down.
+     */
+    public void writeCommand(long timestampNs, byte[] frame, int length, boolean held) {
+        int payload = 0;
+        final int payloadLength = Math.min(length - 2, 4);
+        for (int i = 0; i < payloadLength; i++) {
+            payload |= (frame[2 + i] & 0xff) << (8 * i);
+        }
+        append(SessionJournal.TYPE_COMMAND, timestampNs, frame[0], payload,
+                (length - 2) | (held ? SessionJournal.FLAG_HELD : 0), 0, 0, 0, 0);
+    }
+
+    /**
+     * The body link changed state.
+     */
+    public void writeLinkEvent(long timestampNs, int state) {
+        append(SessionJournal.TYPE_LINK, timestampNs, state, 0, 0, 0, 0, 0, 0);
+    }
+
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Waits for the journal thread, trims the last segment to the records written and deletes
+     * any segment mapped ahead. Later records are dropped.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            mClosing = true;
+        }
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (mBuffer != null) {
+                mBuffer.force();
+                finishSegment();
+            }
+            if (mNextBuffer != null) {
+                mNextBuffer = null;
+                mNextFile.delete();
+            }
+            if (mError != null) {
+                throw mError;
+            }
+        }
+    }
+
+    private synchronized void append(int type, long timestampNs, int a, int b, int c,
+                                     int left, int top, int right, int bottom) {
+        if (mBuffer != null && mPosition >= mBuffer.capacity() / 2 && mNextBuffer == null
+                && !mPreparing && !mClosing && mError == null) {
+            mPreparing = true;
+            mExecutor.execute(new PrepareSegment(mSegmentIndex + 1));
+        }
+        if (mBuffer != null && mPosition == mBuffer.capacity()) {
+            nextSegment();
+        }
+        if (mBuffer == null || mPosition == mBuffer.capacity()) {
+            mDroppedCount++;
+            return;
+        }
+
+        final MappedByteBuffer buffer = mBuffer;
+        final int position = mPosition;
+        buffer.putLong(position, timestampNs);
+        buffer.putInt(position + SessionJournal.OFFSET_A, a);
+        buffer.putInt(position + SessionJournal.OFFSET_B, b);
+        buffer.putInt(position + SessionJournal.OFFSET_C, c);
+        buffer.putShort(position + SessionJournal.OFFSET_BOX, (short) left);
+        buffer.putShort(position + SessionJournal.OFFSET_BOX + 2, (short) top);
+        buffer.putShort(position + SessionJournal.OFFSET_BOX + 4, (short) right);
+        buffer.putShort(position + SessionJournal.OFFSET_BOX + 6, (short) bottom);
+        // Last, so a reader never sees a record half written
+        buffer.putInt(position + SessionJournal.OFFSET_TYPE, type);
+        mPosition = position + SessionJournal.RECORD_SIZE;
+        mRecordCount++;
+    }
+
+    private static int boxValue(float value) {
+        return Math.round(Math.max(0, Math.min(1, value)) * SessionJournal.BOX_SCALE);
+    }
+
+    // Switches to the segment mapped ahead, leaving the full one for the kernel to write back,
+    // which it does even if the app crashes, rather than stalling the caller on a sync. Until
+    // the next segment is ready the current one stays full and records are dropped. Guarded by
+    // this.
+    private void nextSegment() {
+        if (mError != null) {
+            mBuffer = null;
+            return;
+        }
+        if (mNextBuffer == null) return;
+        mBuffer = mNextBuffer;
+        mNextBuffer = null;
+        mFile = mNextFile;
+        mSegmentIndex++;
+        mPosition = SessionJournal.HEADER_SIZE;
+        mBuffer.putLong(16, System.currentTimeMillis());
+        if (mSegmentIndex >= mMaxSegments && !mClosing) {
+            mExecutor.execute(new DeleteSegment(mSegmentIndex - mMaxSegments));
+        }
+    }
+
+    // Creates and maps a segment on the journal thread
+    private class PrepareSegment implements Runnable {
+        private final int mIndex;
+
+        PrepareSegment(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void run() {
+            final File file = new File(mDir, SessionJournal.segmentName(mPrefix, mIndex));
+            MappedByteBuffer buffer = null;
+            IOException error = null;
+            try {
+                buffer = mapSegment(file, mIndex);
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (SessionJournalWriter.this) {
+                mPreparing = false;
+                if (error != null) {
+                    mError = error;
+                } else if (mClosing) {
+                    file.delete();
+                } else {
+                    mNextBuffer = buffer;
+                    mNextFile = file;
+                }
+            }
+        }
+    }
+
+    // Deletes a segment beyond maxSegments on the journal thread
+    private class DeleteSegment implements Runnable {
+        private final int mIndex;
+
+        DeleteSegment(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void run() {
+            final File file = new File(mDir, SessionJournal.segmentName(mPrefix, mIndex));
+            if (!file.delete()) {
+                synchronized (SessionJournalWriter.this) {
+                    mError = new IOException("Can't delete " + file);
+                }
+            }
+        }
+    }
+
+    private MappedByteBuffer mapSegment(File file, int index) throws IOException {
+        final MappedByteBuffer buffer;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(mSegmentBytes);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentBytes);
+        } finally {
+            raf.close();  // the mapping stays valid
+        }
+        buffer.order(SessionJournal.BYTE_ORDER);
+        buffer.putInt(0, SessionJournal.MAGIC);
+        buffer.putInt(4, SessionJournal.VERSION);
+        buffer.putInt(8, SessionJournal.RECORD_SIZE);
+        buffer.putInt(12, index);
+        buffer.putLong(16, System.currentTimeMillis());
+        return buffer;
+    }
+
+    // Trims an unfilled segment to its records. Guarded by this.
+    private void finishSegment() throws IOException {
+        final int used = mPosition;
+        mBuffer = null;
+        if (used < mSegmentBytes) {
+            final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.setLength(used);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package com.example.pixelbotbrain;
+
+/**
+ * Chooses which track to follow with switching hysteresis, so the head commits to one target
+ * rather than flipping whenever another object's score edges ahead. The followed track is kept
+ * while it is detected unless a challenger outranks it by the switch margin for the given number
+ * of frames in a row. If it goes undetected it is waited for up to the hold time before the best
+ * track present takes over.
+ *
+ * Per frame, call beginFrame(), offer() each detection and then endFrame(). Not thread safe,
+ * apart from reading the switch count.
+ */
+public class TargetLock {
+    private final float mSwitchMargin;
+    private final int mSwitchFrames;
+    private final long mHoldNs;
+
+    private int mTrackId;  // 0 for none
+    private long mLastSeen;
+    private boolean mCurrentSeen;
+    private float mCurrentPriority;
+    private int mBestTrackId;
+    private float mBestPriority;
+    private int mChallengerId;
+    private int mChallengeFrames;
+    private volatile int mSwitchCount;
+
+    /**
+     * @param switchMargin How much higher a challenger's priority must be to count against the
+     *                     followed track.
+     * @param switchFrames Consecutive frames a challenger must win to take over.
+     * @param holdMs How long an undetected track is still followed.
+     */
+    public TargetLock(float switchMargin, int switchFrames, long holdMs) {
+        mSwitchMargin = switchMargin;
+        mSwitchFrames = switchFrames;
+        mHoldNs = holdMs * 1000000L;
+    }
+
+    public void beginFrame() {
+        mCurrentSeen = false;
+        mBestTrackId = 0;
+    }
+
+    /**
+     * Offers a detection of the current frame, higher priorities being better targets. Untracked
+     * detections, with track id 0, are ignored.
+     */
+    public void offer(int trackId, float priority) {
+        if (trackId == 0) return;
+        if (trackId == mTrackId) {
+            mCurrentSeen = true;
+            mCurrentPriority = priority;
+        }
+        if (mBestTrackId == 0 || priority > mBestPriority) {
+            mBestTrackId = trackId;
+            mBestPriority = priority;
+        }
+    }
+
+    /**
+     * @return The track to follow in this frame, or 0 to hold while the followed one is missing.
+     */
+    public int endFrame(long timestamp) {
+        if (mCurrentSeen) {
+            mLastSeen = timestamp;
+            if (mBestTrackId != mTrackId && mBestPriority > mCurrentPriority + mSwitchMargin) {
+                if (mBestTrackId != mChallengerId) {
+                    mChallengerId = mBestTrackId;
+                    mChallengeFrames = 0;
+                }
+                if (++mChallengeFrames >= mSwitchFrames) {
+                    follow(mBestTrackId, timestamp);
+                }
+            } else {
+                mChallengerId = 0;
+                mChallengeFrames = 0;
+            }
+            return mTrackId;
+        }
+
+        if (mTrackId != 0 && timestamp - mLastSeen <= mHoldNs) return 0;
+        if (mBestTrackId == 0) {
+            mTrackId = 0;
+            return 0;
+        }
+        follow(mBestTrackId, timestamp);
+        return mTrackId;
+    }
+
+    /** The followed track, or 0 for none. */
+    public int getTrackId() {
+        return mTrackId;
+    }
+
+    /** Number of times the followed target changed from one track to another. */
+    public int getSwitchCount() {
+        return mSwitchCount;
+    }
+
+    public void reset() {
+        mTrackId = 0;
+        mChallengerId = 0;
+        mChallengeFrames = 0;
+    }
+
+    private void follow(int trackId, long timestamp) {
+        if (mTrackId != 0) mSwitchCount++;
+        mTrackId = trackId;
+        mLastSeen = timestamp;
+        mChallengerId = 0;
+        mChallengeFrames = 0;
+    }
+}
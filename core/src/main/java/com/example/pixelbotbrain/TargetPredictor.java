@@ -0,0 +1,213 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+/**
+ * Compensates tracking for detector and link latency. A detection says where the target was at
+ * exposure time; by the time a command reaches the Arduino the target has moved on and the head
+ * has kept turning under the commands already sent. Observations are converted into a
+ * head-independent frame using the commanded head angles from ServoMotionModel, the target's
+ * velocity is fitted over recent observations, and the target is projected back into the image
+ * at the time the command will arrive.
+ *
+ * When a RotationHistory is set, head motion is measured rather than assumed from the commands
+ * for the times it covers, which also catches the body turning on its tracks and the servos
+ * lagging their commands.
+ *
+ * Positions are normalized to [0, 1] of the camera frame. Times are
+ * SystemClock.elapsedRealtimeNanos(), the camera timestamp base.
+ */
+public class TargetPredictor {
+    private static final int HISTORY = 6;
+    private static final long MAX_OBSERVATION_AGE_NS = 600000000L;
+    private static final long MAX_HORIZON_NS = 400000000L;  // don't extrapolate further than this
+    private static final float MAX_JUMP = 0.25f;  // larger jumps are treated as a new target
+    private static final float MAX_SPEED = 2.0f;  // frame widths per second
+
+    private final ServoMotionModel mServoMotionModel;
+    private volatile RotationHistory mRotationHistory;
+    private float mHorizontalFov;
+    private float mVerticalFov;
+
+    private final long[] mTimes = new long[HISTORY];
+    private final float[] mWorldX = new float[HISTORY];
+    private final float[] mWorldY = new float[HISTORY];
+    private int mCount;
+    private int mNext;
+    private int mClassId = -1;
+
+    private float mVelocityX;
+    private float mVelocityY;
+    private float mPredictedX;
+    private float mPredictedY;
+
+    /**
+     * @param horizontalFov Camera horizontal field of view in degrees.
+     * @param verticalFov Camera vertical field of view in degrees.
+     */
+    public TargetPredictor(ServoMotionModel servoMotionModel, float horizontalFov,
+                           float verticalFov) {
+        mServoMotionModel = servoMotionModel;
+        setFieldOfView(horizontalFov, verticalFov);
+    }
+
+    public void setFieldOfView(float horizontalFov, float verticalFov) {
+        mHorizontalFov = horizontalFov;
+        mVerticalFov = verticalFov;
+    }
+
+    /**
+     * Measures head motion with the camera's sampled rotation, or null to go by the commands.
+     */
+    public void setRotationHistory(RotationHistory rotationHistory) {
+        mRotationHistory = rotationHistory;
+    }
+
+    public void reset() {
+        mCount = 0;
+        mClassId = -1;
+        mVelocityX = 0;
+        mVelocityY = 0;
+    }
+
+    /**
+     * Adds an observation and predicts where the target will appear in the image at arrivalNs.
+     * Read the result with getPredictedX() and getPredictedY().
+     */
+    public void predict(long timestampNs, int classId, float x, float y, long arrivalNs) {
+        observe(timestampNs, classId, x, y);
+        project(arrivalNs);
+    }
+
+    /**
+     * Adds an observation and updates the target's velocity estimate.
+     */
+    public void observe(long timestampNs, int classId, float x, float y) {
+        // Where the target is with the head's motion taken out. Turning the head by
+        // +pan degrees moves the image content by +pan / fov (see the error signs in
+        // MainActivity), tilt moves it the opposite way.
+        final float panAtExposure = panAngle(timestampNs);
+        final float tiltAtExposure = tiltAngle(timestampNs);
+        final float worldX = x - panAtExposure / mHorizontalFov;
+        final float worldY = y + tiltAtExposure / mVerticalFov;
+
+        final int last = (mNext + HISTORY - 1) % HISTORY;
+        if (classId != mClassId || (mCount > 0 && (timestampNs <= mTimes[last]
+                || Math.abs(worldX - mWorldX[last]) > MAX_JUMP
+                || Math.abs(worldY - mWorldY[last]) > MAX_JUMP))) {
+            reset();
+            mClassId = classId;
+        }
+        mTimes[mNext] = timestampNs;
+        mWorldX[mNext] = worldX;
+        mWorldY[mNext] = worldY;
+        mNext = (mNext + 1) % HISTORY;
+        mCount = Math.min(mCount + 1, HISTORY);
+
+        // Least squares velocity over the recent observations
+        float velocityX = 0;
+        float velocityY = 0;
+        double sumT = 0, sumX = 0, sumY = 0, sumTT = 0, sumTX = 0, sumTY = 0;
+        int n = 0;
+        for (int k = 0; k < mCount; k++) {
+            final int i = (mNext + HISTORY - 1 - k) % HISTORY;
+            if (timestampNs - mTimes[i] > MAX_OBSERVATION_AGE_NS) break;
+            final double t = (mTimes[i] - timestampNs) / 1e9;
+            sumT += t;
+            sumX += mWorldX[i];
+            sumY += mWorldY[i];
+            sumTT += t * t;
+            sumTX += t * mWorldX[i];
+            sumTY += t * mWorldY[i];
+            n++;
+        }
+        final double denominator = n * sumTT - sumT * sumT;
+        if (n >= 2 && denominator > 1e-9) {
+            velocityX = clamp((float) ((n * sumTX - sumT * sumX) / denominator));
+            velocityY = clamp((float) ((n * sumTY - sumT * sumY) / denominator));
+        }
+        mVelocityX = velocityX;
+        mVelocityY = velocityY;
+    }
+
+    /**
+     * Predicts where the last observed target will appear in the image at arrivalNs. Read the
+     * result with getPredictedX() and getPredictedY().
+     */
+    public void project(long arrivalNs) {
+        if (mCount == 0) return;
+        final int last = (mNext + HISTORY - 1) % HISTORY;
+
+        // Project to arrival time and put the head motion commanded since then back in
+        final float horizon =
+                Math.max(0, Math.min(arrivalNs - mTimes[last], MAX_HORIZON_NS)) / 1e9f;
+        mPredictedX = mWorldX[last] + mVelocityX * horizon
+                + panAngle(arrivalNs) / mHorizontalFov;
+        mPredictedY = mWorldY[last] + mVelocityY * horizon
+                - tiltAngle(arrivalNs) / mVerticalFov;
+    }
+
+    /** Time of the last observation, or 0 if there is none. */
+    public long getLastObservationTime() {
+        return mCount == 0 ? 0 : mTimes[(mNext + HISTORY - 1) % HISTORY];
+    }
+
+    /** Estimated horizontal target speed in frame widths per second, head motion removed. */
+    public float getVelocityX() {
+        return mVelocityX;
+    }
+
+    /** Estimated vertical target speed in frame heights per second, head motion removed. */
+    public float getVelocityY() {
+        return mVelocityY;
+    }
+
+    public float getPredictedX() {
+        return mPredictedX;
+    }
+
+    public float getPredictedY() {
+        return mPredictedY;
+    }
+
+    // Head angles, measured where the rotation history covers the time and otherwise as
+    // commanded. Past the newest sample, motion commanded since is added to the measured angle.
+    private float panAngle(long timeNs) {
+        final RotationHistory history = mRotationHistory;
+        if (history == null || !history.covers(timeNs)) {
+            return mServoMotionModel.getPanAngle(timeNs);
+        }
+        final long latest = history.getLatestTime();
+        if (timeNs <= latest) return history.getPanAngle(timeNs);
+        return history.getPanAngle(latest) + mServoMotionModel.getPanAngle(timeNs)
+                - mServoMotionModel.getPanAngle(latest);
+    }
+
+    private float tiltAngle(long timeNs) {
+        final RotationHistory history = mRotationHistory;
+        if (history == null || !history.covers(timeNs)) {
+            return mServoMotionModel.getTiltAngle(timeNs);
+        }
+        final long latest = history.getLatestTime();
+        if (timeNs <= latest) return history.getTiltAngle(timeNs);
+        return history.getTiltAngle(latest) + mServoMotionModel.getTiltAngle(timeNs)
+                - mServoMotionModel.getTiltAngle(latest);
+    }
+
+    private static float clamp(float speed) {
+        return Math.max(-MAX_SPEED, Math.min(MAX_SPEED, speed));
+    }
+}
@@ -0,0 +1,84 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import java.util.HashMap;
+
+/**
+ * The COCO classes Pixelbot reacts to. A trackable object's class id is its index in this list.
+ */
+public class TrackableObjects {
+    private static final String NAMES [] = { "person", "airplane", "car", "bus",
+            "train", "truck", "boat", "bird", "cat", "dog", "horse", "sheep", "cow", "elephant",
+            "bear", "zebra", "giraffe", "umbrella", "handbag", "tennis racket", "bottle",
+            "wine glass", "cup", "fork", "knife", "spoon", "bowl", "banana", "apple", "sandwich",
+            "orange", "broccoli", "carrot", "hot dog", "pizza", "donut", "cake", "cell phone",
+            "teddy bear", "toothbrush" };
+
+    public static final int PERSON = 0;
+
+    /** Detections scoring below this are neither published nor tracked. */
+    public static final float MIN_CONFIDENCE = 0.6f;
+
+    private static final HashMap<String, Integer> sClassIds = new HashMap<String, Integer>();
+    static {
+        for (int i = 0; i < NAMES.length; i++) {
+            sClassIds.put(NAMES[i], i);
+        }
+    }
+
+    private TrackableObjects() {}
+
+    public static int getCount() {
+        return NAMES.length;
+    }
+
+    public static String getName(int classId) {
+        return NAMES[classId];
+    }
+
+    /**
+     * @return The class id of the detector label, or -1 if it isn't trackable.
+     */
+    public static int getClassId(String label) {
+        final Integer classId = sClassIds.get(label);
+        return classId != null ? classId : -1;
+    }
+
+    /**
+     * Selects the trackable detections from a detector's results, in the order given.
+     *
+     * @param labels Detector labels of the results.
+     * @param scores Detector confidences of the results.
+     * @param count Number of results.
+     * @param out Receives (result index << 8) | class id for each selected result; its length
+     *            caps the number selected.
+     * @return The number of results selected.
+     */
+    public static int select(String[] labels, float[] scores, int count, float minConfidence,
+                             int[] out) {
+        int selected = 0;
+        for (int r = 0; r < count && selected < out.length; r++) {
+            if (scores[r] >= minConfidence) {
+                final int classId = getClassId(labels[r]);
+                if (classId >= 0) {
+                    out[selected++] = (r << 8) | classId;
+                }
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,197 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays a 16-bit mono PCM WAV file through an AudioSource in place of the microphone, in 10 ms
+ * blocks like live capture. The file is memory-mapped, so long recordings don't use heap.
+ */
+public class WavAudioSource implements AudioSource {
+    private static final int RIFF = 0x46464952;  // "RIFF" in little-endian
+    private static final int WAVE = 0x45564157;
+    private static final int FMT = 0x20746d66;
+    private static final int DATA = 0x61746164;
+    private static final int PCM = 1;
+    private static final int BLOCKS_PER_SECOND = 100;
+
+    private final ShortBuffer mData;
+    private final int mSampleRate;
+    private final boolean mRealtime;
+    private final boolean mLoop;
+    private final short[] mBlock;
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private volatile long mDeliveredCount;
+
+    /**
+     * @param realtime Deliver blocks at the rate they would be captured, with timestamps on the
+     *                 current clock. Otherwise blocks are delivered back to back, stamped from 0.
+     * @param loop Start over at the end of the file instead of stopping.
+     */
+    public WavAudioSource(File file, boolean realtime, boolean loop) throws IOException {
+        final MappedByteBuffer buffer;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("WAV file too large to map: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();  // the mapping stays valid
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < 12 || buffer.getInt(0) != RIFF || buffer.getInt(8) != WAVE) {
+            throw new IOException("Not a WAV file: " + file);
+        }
+
+        // Walk the chunks for the format and the samples
+        int sampleRate = 0;
+        ByteBuffer data = null;
+        int position = 12;
+        while (position + 8 <= buffer.limit() && data == null) {
+            final int id = buffer.getInt(position);
+            final int size = buffer.getInt(position + 4);
+            final int body = position + 8;
+            if (size < 0 || body + size > buffer.limit()) break;
+            if (id == FMT) {
+                final int format = buffer.getShort(body);
+                final int channels = buffer.getShort(body + 2);
+                final int bits = buffer.getShort(body + 14);
+                if (format != PCM || channels != 1 || bits != 16) {
+                    throw new IOException("Only 16-bit mono PCM is supported, got format "
+                            + format + ", " + channels + " channels, " + bits + " bits");
+                }
+                sampleRate = buffer.getInt(body + 4);
+            } else if (id == DATA) {
+                buffer.position(body);
+                buffer.limit(body + size);
+                data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+            position = body + size + (size & 1);  // chunks are padded to even sizes
+        }
+        if (sampleRate == 0 || data == null) {
+            throw new IOException("No PCM format or data chunk in " + file);
+        }
+
+        mData = data.asShortBuffer();
+        mSampleRate = sampleRate;
+        mRealtime = realtime;
+        mLoop = loop;
+        mBlock = new short[Math.max(1, sampleRate / BLOCKS_PER_SECOND)];
+    }
+
+    @Override
+    public synchronized void start(final Listener listener) {
+        if (mThread != null) return;
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay(listener);
+            }
+        }, "WavAudioSource");
+        mThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mThread == null) return;
+        mRunning = false;
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    /**
+     * Blocks until a non-looping replay has delivered every sample.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        final Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /** Length of the file in samples. */
+    public int getSampleCount() {
+        return mData.limit();
+    }
+
+    public long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    private void replay(Listener listener) {
+        mData.rewind();
+        final long startTime = System.nanoTime();
+        long delivered = 0;
+        while (mRunning) {
+            if (!mData.hasRemaining()) {
+                if (!mLoop || mData.limit() == 0) break;
+                mData.rewind();
+            }
+            final int count = Math.min(mBlock.length, mData.remaining());
+            mData.get(mBlock, 0, count);
+            delivered += count;
+
+            // Stamp the block with when its last sample would have been captured
+            final long offset = delivered * 1000000000L / mSampleRate;
+            if (mRealtime) {
+                final long delay = startTime + offset - System.nanoTime();
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                listener.onAudioAvailable(mBlock, count, rebase(startTime + offset));
+            } else {
+                listener.onAudioAvailable(mBlock, count, offset);
+            }
+            mDeliveredCount = delivered;
+        }
+    }
+
+    /**
+     * Maps a System.nanoTime() onto the clock live audio is stamped with. Replays on a device
+     * override this to use SystemClock.elapsedRealtimeNanos().
+     */
+    protected long rebase(long nanoTime) {
+        return nanoTime;
+    }
+}
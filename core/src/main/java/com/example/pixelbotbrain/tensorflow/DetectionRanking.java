@@ -0,0 +1,47 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.tensorflow;
+
+/**
+ * Orders raw detector outputs by confidence without creating a result object per candidate, so
+ * that only detections that are actually returned get allocated.
+ */
+public class DetectionRanking {
+  private DetectionRanking() {}
+
+  /**
+   * Writes the indices of the count highest scores, best first, into order.
+   *
+   * @param scores Per-detection confidences.
+   * @param count Number of valid entries in scores.
+   * @param order Receives the indices, at least count long.
+   * @return The number of indices written, which is count.
+   */
+  public static int rankByScore(final float[] scores, final int count, final int[] order) {
+    // Insertion sort: detectors emit at most a hundred candidates, usually already close to
+    // score order, so this beats a heap of boxed entries.
+    for (int i = 0; i < count; ++i) {
+      final float score = scores[i];
+      int j = i - 1;
+      while (j >= 0 && scores[order[j]] < score) {
+        order[j + 1] = order[j];
+        --j;
+      }
+      order[j + 1] = i;
+    }
+    return count;
+  }
+}
@@ -0,0 +1,67 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.tensorflow;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs ARGB pixels, as returned by Bitmap.getPixels(), into the interleaved RGB input tensors
+ * the models take: uint8 for the detectors, normalized float for the image classifier.
+ */
+public class TensorPacking {
+  private TensorPacking() {}
+
+  /**
+   * Packs argb into rgb, which must hold at least 3 * argb.length bytes.
+   */
+  public static void packRgb(final int[] argb, final byte[] rgb) {
+    for (int i = 0, j = 0; i < argb.length; ++i, j += 3) {
+      final int pixelValue = argb[i];
+      rgb[j] = (byte) ((pixelValue >> 16) & 0xFF);
+      rgb[j + 1] = (byte) ((pixelValue >> 8) & 0xFF);
+      rgb[j + 2] = (byte) (pixelValue & 0xFF);
+    }
+  }
+
+  /**
+   * Packs argb into rgb starting at position 0, leaving the buffer's position after the last
+   * byte written.
+   */
+  public static void packRgb(final int[] argb, final ByteBuffer rgb) {
+    rgb.rewind();
+    for (int i = 0; i < argb.length; ++i) {
+      final int pixelValue = argb[i];
+      rgb.put((byte) ((pixelValue >> 16) & 0xFF));
+      rgb.put((byte) ((pixelValue >> 8) & 0xFF));
+      rgb.put((byte) (pixelValue & 0xFF));
+    }
+  }
+
+  /**
+   * Packs argb into rgb as (value - mean) / std, which must hold at least 3 * argb.length
+   * floats.
+   */
+  public static void packRgb(final int[] argb, final float mean, final float std,
+      final float[] rgb) {
+    final float scale = 1.0f / std;
+    for (int i = 0, j = 0; i < argb.length; ++i, j += 3) {
+      final int pixelValue = argb[i];
+      rgb[j] = (((pixelValue >> 16) & 0xFF) - mean) * scale;
+      rgb[j + 1] = (((pixelValue >> 8) & 0xFF) - mean) * scale;
+      rgb[j + 2] = ((pixelValue & 0xFF) - mean) * scale;
+    }
+  }
+}
@@ -0,0 +1,444 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.evaluator;
+
+import com.example.pixelbotbrain.FrameQualityGate;
+import com.example.pixelbotbrain.TrackableObjects;
+import com.example.pixelbotbrain.tensorflow.DetectionRanking;
+import com.example.pixelbotbrain.tensorflow.TensorPacking;
+
+import org.tensorflow.Graph;
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+import org.tensorflow.types.UInt8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs the phone's detection graph over recorded frames or a directory of images on a desktop
+ * JVM, using every core. Frames are preprocessed exactly as CameraObjectRecognizer does (full
+ * frame scaled to the input size without filtering, packed as uint8 RGB), so scores are
+ * comparable with what the phone sees.
+ *
+ * Writes one CSV row per detection above --min-score:
+ *   frame,name,timestamp,label,class_id,score,left,top,right,bottom
+ * where class_id is the TrackableObjects id (-1 if not trackable) and boxes are normalized to
+ * the frame. Prints throughput, mean per-stage time and the number of trackable detections at
+ * a range of confidence thresholds.
+ *
+ * With --quality-gate, also replays a recording through FrameQualityGate and prints how many
+ * inferences it would have saved and how many trackable detections it would have lost. The
+ * recordings carry no head motion, so the gate is run once as if the head were still and once
+ * as if it were always moving, which bound what it does on the phone.
+ */
+public class BatchEvaluator {
+    private static final String USAGE = "Usage: BatchEvaluator --model <graph.pb> "
+            + "--input <image dir | recording> [--labels <labels.txt>] [--output <detections.csv>] "
+            + "[--threads <n>] [--intra-op-threads <n>] [--input-size <px>] [--min-score <s>] "
+            + "[--quality-gate <max skip ms>]";
+
+    private static final String DEFAULT_LABELS = "app/src/main/assets/coco_labels_list.txt";
+    private static final String INPUT_NAME = "image_tensor";
+    private static final String[] OUTPUT_NAMES = { "detection_boxes", "detection_scores",
+            "detection_classes", "num_detections" };
+    private static final int MAX_RESULTS = 100;
+    private static final float[] THRESHOLDS = { 0.3f, 0.4f, 0.5f, 0.6f, 0.7f, 0.8f, 0.9f };
+
+    // Pipeline stages timed per frame
+    private static final int STAGE_DECODE = 0;
+    private static final int STAGE_PREPROCESS = 1;
+    private static final int STAGE_INFERENCE = 2;
+    private static final int STAGE_POSTPROCESS = 3;
+    private static final String[] STAGE_NAMES = { "decode", "preprocess", "inference",
+            "postprocess" };
+
+    private final Session mSession;
+    private final List<String> mLabels;
+    private final int mInputSize;
+    private final float mMinScore;
+    private final Writer mOutput;
+    private final long mQualityGateNs;
+
+    // Per frame index, for the quality gate replay
+    private float[] mSharpness;
+    private long[] mTimestamps;
+    private int[] mGateDetections;
+
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLongArray mStageNanos = new AtomicLongArray(STAGE_NAMES.length);
+    private final AtomicLongArray mTrackableAtThreshold = new AtomicLongArray(THRESHOLDS.length);
+    private final AtomicLongArray mFramesWithTrackable = new AtomicLongArray(THRESHOLDS.length);
+    private volatile Exception mError;
+
+    BatchEvaluator(Session session, List<String> labels, int inputSize, float minScore,
+                   Writer output, long qualityGateNs) {
+        mSession = session;
+        mLabels = labels;
+        mInputSize = inputSize;
+        mMinScore = minScore;
+        mOutput = output;
+        mQualityGateNs = qualityGateNs;
+    }
+
+    /**
+     * One worker thread's pipeline. Every buffer is allocated once per worker.
+     */
+    private class Worker implements Runnable {
+        private final EvaluationInput mInput;
+        private final InputFrame mFrame = new InputFrame();
+        private final int[] mScaled = new int[mInputSize * mInputSize];
+        private final ByteBuffer mTensorData;
+        private final FloatBuffer mBoxes = FloatBuffer.allocate(MAX_RESULTS * 4);
+        private final FloatBuffer mScores = FloatBuffer.allocate(MAX_RESULTS);
+        private final FloatBuffer mClasses = FloatBuffer.allocate(MAX_RESULTS);
+        private final FloatBuffer mNumDetections = FloatBuffer.allocate(1);
+        private final int[] mOrder = new int[MAX_RESULTS];
+        private final boolean[] mFrameHasTrackable = new boolean[THRESHOLDS.length];
+        private final StringBuilder mRows = new StringBuilder();
+
+        Worker(EvaluationInput input) {
+            mInput = input;
+            mTensorData = ByteBuffer.allocateDirect(mInputSize * mInputSize * 3);
+            mTensorData.order(ByteOrder.nativeOrder());
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (mError == null) {
+                    long time = System.nanoTime();
+                    if (!mInput.next(mFrame)) break;
+                    if (mSharpness != null) {
+                        mSharpness[mFrame.index] = FrameQualityGate.sharpness(
+                                ByteBuffer.wrap(mFrame.planes[0]), mFrame.width, mFrame.height,
+                                mFrame.rowStrides[0]);
+                        mTimestamps[mFrame.index] = mFrame.timestamp;
+                    }
+                    time = lap(STAGE_DECODE, time);
+
+                    scale(mFrame, mScaled, mInputSize);
+                    TensorPacking.packRgb(mScaled, mTensorData);
+                    mTensorData.rewind();
+                    time = lap(STAGE_PREPROCESS, time);
+
+                    infer();
+                    time = lap(STAGE_INFERENCE, time);
+
+                    postprocess();
+                    lap(STAGE_POSTPROCESS, time);
+                    mFrames.incrementAndGet();
+                }
+            } catch (Exception e) {
+                mError = e;
+            }
+        }
+
+        private long lap(int stage, long start) {
+            final long now = System.nanoTime();
+            mStageNanos.addAndGet(stage, now - start);
+            return now;
+        }
+
+        private void infer() {
+            final Tensor<UInt8> input = Tensor.create(UInt8.class,
+                    new long[] { 1, mInputSize, mInputSize, 3 }, mTensorData);
+            try {
+                final List<Tensor<?>> outputs = mSession.runner()
+                        .feed(INPUT_NAME, input)
+                        .fetch(OUTPUT_NAMES[0]).fetch(OUTPUT_NAMES[1])
+                        .fetch(OUTPUT_NAMES[2]).fetch(OUTPUT_NAMES[3])
+                        .run();
+                mBoxes.clear();
+                mScores.clear();
+                mClasses.clear();
+                mNumDetections.clear();
+                outputs.get(0).writeTo(mBoxes);
+                outputs.get(1).writeTo(mScores);
+                outputs.get(2).writeTo(mClasses);
+                outputs.get(3).writeTo(mNumDetections);
+                for (Tensor<?> output : outputs) {
+                    output.close();
+                }
+            } finally {
+                input.close();
+            }
+        }
+
+        private void postprocess() throws IOException {
+            final float[] scores = mScores.array();
+            final float[] boxes = mBoxes.array();
+            final float[] classes = mClasses.array();
+            final int count = DetectionRanking.rankByScore(scores,
+                    Math.min(MAX_RESULTS, (int) mNumDetections.get(0)), mOrder);
+
+            Arrays.fill(mFrameHasTrackable, false);
+            int gateDetections = 0;
+            mRows.setLength(0);
+            for (int n = 0; n < count; n++) {
+                final int i = mOrder[n];
+                if (scores[i] < mMinScore) break;
+                final int labelIndex = (int) classes[i];
+                final String label = labelIndex >= 0 && labelIndex < mLabels.size()
+                        ? mLabels.get(labelIndex) : "???";
+                final int classId = TrackableObjects.getClassId(label);
+                if (classId >= 0) {
+                    if (scores[i] >= TrackableObjects.MIN_CONFIDENCE) {
+                        gateDetections++;
+                    }
+                    for (int t = 0; t < THRESHOLDS.length; t++) {
+                        if (scores[i] >= THRESHOLDS[t]) {
+                            mTrackableAtThreshold.incrementAndGet(t);
+                            mFrameHasTrackable[t] = true;
+                        }
+                    }
+                }
+                // Boxes are [ymin, xmin, ymax, xmax], already normalized to the frame
+                mRows.append(mFrame.index).append(',').append(mFrame.name).append(',')
+                        .append(mFrame.timestamp).append(',').append(label).append(',')
+                        .append(classId).append(',')
+                        .append(String.format(Locale.US, "%.4f,%.4f,%.4f,%.4f,%.4f", scores[i],
+                                boxes[4 * i + 1], boxes[4 * i], boxes[4 * i + 3], boxes[4 * i + 2]))
+                        .append('\n');
+            }
+            if (mGateDetections != null) {
+                mGateDetections[mFrame.index] = gateDetections;
+            }
+            for (int t = 0; t < THRESHOLDS.length; t++) {
+                if (mFrameHasTrackable[t]) {
+                    mFramesWithTrackable.incrementAndGet(t);
+                }
+            }
+            if (mRows.length() > 0) {
+                synchronized (mOutput) {
+                    mOutput.append(mRows);
+                }
+            }
+        }
+    }
+
+    /**
+     * Nearest neighbour scale of the whole frame to a size x size square, matching
+     * Canvas.drawBitmap() without a filtering Paint.
+     */
+    static void scale(InputFrame frame, int[] out, int size) {
+        final float scaleX = frame.width / (float) size;
+        final float scaleY = frame.height / (float) size;
+        for (int y = 0, o = 0; y < size; y++) {
+            final int row = Math.min((int) ((y + 0.5f) * scaleY), frame.height - 1) * frame.width;
+            for (int x = 0; x < size; x++) {
+                out[o++] = frame.argb[row + Math.min((int) ((x + 0.5f) * scaleX), frame.width - 1)];
+            }
+        }
+    }
+
+    void run(EvaluationInput input, int numThreads) throws Exception {
+        if (mQualityGateNs > 0) {
+            if (input instanceof RecordingInput) {
+                mSharpness = new float[input.size()];
+                mTimestamps = new long[input.size()];
+                mGateDetections = new int[input.size()];
+            } else {
+                System.out.println("The quality gate needs the Y plane of a recording, skipped");
+            }
+        }
+        final long start = System.nanoTime();
+        final Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new Thread(new Worker(input), "Worker-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (mError != null) {
+            throw mError;
+        }
+        report(numThreads, System.nanoTime() - start);
+    }
+
+    private void report(int numThreads, long elapsedNanos) {
+        final long frames = mFrames.get();
+        System.out.println(String.format(Locale.US, "%d frames in %.1f s on %d threads: %.2f "
+                + "frames/s", frames, elapsedNanos / 1e9, numThreads, frames * 1e9 / elapsedNanos));
+        if (frames == 0) return;
+
+        System.out.println("Mean time per frame (per thread):");
+        for (int s = 0; s < STAGE_NAMES.length; s++) {
+            System.out.println(String.format(Locale.US, "  %-12s %8.2f ms", STAGE_NAMES[s],
+                    mStageNanos.get(s) / 1e6 / frames));
+        }
+        System.out.println("Trackable detections by threshold:");
+        for (int t = 0; t < THRESHOLDS.length; t++) {
+            System.out.println(String.format(Locale.US,
+                    "  >= %.2f  %6d detections, %5.1f%% of frames", THRESHOLDS[t],
+                    mTrackableAtThreshold.get(t), 100.0 * mFramesWithTrackable.get(t) / frames));
+        }
+        if (mSharpness != null) {
+            System.out.println(String.format(Locale.US, "Quality gate, a frame at least every "
+                    + "%d ms, trackable detections >= %.2f:", mQualityGateNs / 1000000,
+                    TrackableObjects.MIN_CONFIDENCE));
+            reportQualityGate("head still", 0);
+            reportQualityGate("head moving", FrameQualityGate.MOVING_SPEED);
+        }
+    }
+
+    // Replays the frames through a gate in recorded order
+    private void reportQualityGate(String name, float headSpeed) {
+        final FrameQualityGate gate = new FrameQualityGate(mQualityGateNs);
+        long detections = 0;
+        long kept = 0;
+        for (int i = 0; i < mSharpness.length; i++) {
+            detections += mGateDetections[i];
+            if (gate.accept(mTimestamps[i], mSharpness[i], headSpeed)) {
+                kept += mGateDetections[i];
+            }
+        }
+        final long frames = gate.getFrameCount();
+        System.out.println(String.format(Locale.US, "  %-12s %5.1f%% of inferences saved "
+                + "(%d/%d), %5.1f%% of detections kept (%d/%d)", name,
+                frames == 0 ? 0 : 100.0 * gate.getSkippedCount() / frames,
+                gate.getSkippedCount(), frames,
+                detections == 0 ? 100.0 : 100.0 * kept / detections, kept, detections));
+    }
+
+    private static List<String> loadLabels(File file) throws IOException {
+        final List<String> labels = new ArrayList<String>();
+        final BufferedReader br = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                labels.add(line);
+            }
+        } finally {
+            br.close();
+        }
+        return labels;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        final byte[] data = new byte[(int) file.length()];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int read;
+            while (offset < data.length && (read = in.read(data, offset, data.length - offset)) > 0) {
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * A serialized ConfigProto limiting the per-run thread pools. Frames are already processed
+     * in parallel, so by default every Session.run() is single threaded rather than all of them
+     * contending for one pool of every core.
+     */
+    private static byte[] sessionConfig(int intraOpThreads) {
+        // Field 2: intra_op_parallelism_threads, field 5: inter_op_parallelism_threads (varints)
+        return new byte[] { 0x10, (byte) intraOpThreads, 0x28, 1 };
+    }
+
+    public static void main(String[] args) throws Exception {
+        String model = null;
+        String inputPath = null;
+        String labels = DEFAULT_LABELS;
+        String output = "detections.csv";
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        int intraOpThreads = 1;
+        int inputSize = 300;
+        float minScore = 0.3f;
+        long qualityGateNs = 0;
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (i + 1 >= args.length) {
+                usage("Missing value for " + arg);
+            }
+            final String value = args[++i];
+            if (arg.equals("--model")) {
+                model = value;
+            } else if (arg.equals("--input")) {
+                inputPath = value;
+            } else if (arg.equals("--labels")) {
+                labels = value;
+            } else if (arg.equals("--output")) {
+                output = value;
+            } else if (arg.equals("--threads")) {
+                numThreads = Integer.parseInt(value);
+            } else if (arg.equals("--intra-op-threads")) {
+                intraOpThreads = Math.min(Integer.parseInt(value), 127);
+            } else if (arg.equals("--input-size")) {
+                inputSize = Integer.parseInt(value);
+            } else if (arg.equals("--min-score")) {
+                minScore = Float.parseFloat(value);
+            } else if (arg.equals("--quality-gate")) {
+                qualityGateNs = Long.parseLong(value) * 1000000L;
+            } else {
+                usage("Unknown option " + arg);
+            }
+        }
+        if (model == null || inputPath == null) {
+            usage(null);
+        }
+
+        final File inputFile = new File(inputPath);
+        final EvaluationInput input = inputFile.isDirectory()
+                ? new ImageDirectoryInput(inputFile) : new RecordingInput(inputFile);
+        final Writer writer = new BufferedWriter(new FileWriter(output), 1 << 16);
+        final Graph graph = new Graph();
+        try {
+            graph.importGraphDef(readFile(new File(model)));
+            final Session session = new Session(graph, sessionConfig(intraOpThreads));
+            try {
+                writer.write("frame,name,timestamp,label,class_id,score,left,top,right,bottom\n");
+                System.out.println("Evaluating " + input.size() + " frames from " + inputPath);
+                new BatchEvaluator(session, loadLabels(new File(labels)), inputSize, minScore,
+                        writer, qualityGateNs).run(input, numThreads);
+            } finally {
+                session.close();
+            }
+        } finally {
+            graph.close();
+            writer.close();
+        }
+    }
+
+    private static void usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
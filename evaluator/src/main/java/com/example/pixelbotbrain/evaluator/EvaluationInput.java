@@ -0,0 +1,34 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.evaluator;
+
+import java.io.IOException;
+
+/**
+ * A set of frames to evaluate, shared by all workers.
+ */
+interface EvaluationInput {
+    /**
+     * Fetches and decodes the next frame into frame. Safe to call from several threads; only
+     * claiming the frame is serialized, decoding runs concurrently.
+     *
+     * @return false once every frame has been handed out.
+     */
+    boolean next(InputFrame frame) throws IOException;
+
+    /** Number of frames, or -1 if unknown. */
+    int size();
+}
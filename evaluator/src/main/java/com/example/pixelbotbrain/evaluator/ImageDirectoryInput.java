@@ -0,0 +1,73 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.evaluator;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The JPEG, PNG and BMP images in a directory, in name order.
+ */
+class ImageDirectoryInput implements EvaluationInput {
+    private final File[] mFiles;
+    private int mNext;
+
+    ImageDirectoryInput(File directory) throws IOException {
+        mFiles = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                final String name = file.getName().toLowerCase(Locale.US);
+                return file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg")
+                        || name.endsWith(".png") || name.endsWith(".bmp"));
+            }
+        });
+        if (mFiles == null) {
+            throw new IOException("Can't list " + directory);
+        }
+        Arrays.sort(mFiles);
+    }
+
+    @Override
+    public boolean next(InputFrame frame) throws IOException {
+        final File file;
+        synchronized (this) {
+            if (mNext >= mFiles.length) return false;
+            frame.index = mNext;
+            file = mFiles[mNext++];
+        }
+
+        final BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Can't decode " + file);
+        }
+        frame.name = file.getName();
+        frame.timestamp = 0;
+        frame.setSize(image.getWidth(), image.getHeight());
+        image.getRGB(0, 0, frame.width, frame.height, frame.argb, 0, frame.width);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return mFiles.length;
+    }
+}
@@ -0,0 +1,41 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.evaluator;
+
+/**
+ * A decoded frame owned by one worker. Buffers grow to the largest frame seen and are reused.
+ */
+class InputFrame {
+    int index;
+    String name;
+    long timestamp;
+    int width;
+    int height;
+    int[] argb = new int[0];
+
+    // Raw YUV planes copied out of a recording
+    final byte[][] planes = new byte[3][];
+    final int[] rowStrides = new int[3];
+    final int[] pixelStrides = new int[3];
+
+    void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        if (argb.length < width * height) {
+            argb = new int[width * height];
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package com.example.pixelbotbrain.evaluator;
+
+import com.example.pixelbotbrain.BodyProtocol;
+import com.example.pixelbotbrain.SessionJournal;
+import com.example.pixelbotbrain.TrackableObjects;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Streams a session journal written by the app (-e journal <name>) to CSV, one row per record:
+ *   timestamp,type,id,value,score,left,top,right,bottom,detail
+ * where for frames id is the number of detections and value the inference time in
+ * microseconds; for detections id is the class id, value the track id and detail the label; for
+ * commands id is the command byte, value the payload length and detail the payload values,
+ * followed by "held" if the command was held while the link was down; and for link events id
+ * is the new state and detail its name. Prints a summary of the session.
+ *
+ * The journal is read a buffer at a time, so sessions of any length can be dumped.
+ */
+public class JournalDump {
+    private static final String USAGE = "Usage: JournalDump --input <journal prefix | segment.pbj> "
+            + "[--output <journal.csv>]";
+    // BluetoothArduinoBridge states
+    private static final String[] LINK_STATES =
+            { "idle", "connecting", "connected", "backoff", "closing" };
+
+    private long mFirstTimestamp = -1;
+    private long mLastTimestamp;
+    private long mFrames;
+    private long mDetections;
+    private long mCommands;
+    private long mHeldCommands;
+    private long mLinkEvents;
+    private long mConnects;
+    private long mReconnects;
+    private long mInferenceUs;
+
+    private void dump(SessionJournal journal, Writer writer) throws IOException {
+        final SessionJournal.Record record = new SessionJournal.Record();
+        final StringBuilder detail = new StringBuilder();
+        writer.write("timestamp,type,id,value,score,left,top,right,bottom,detail\n");
+        while (journal.next(record)) {
+            if (mFirstTimestamp < 0) {
+                mFirstTimestamp = record.timestamp;
+            }
+            mLastTimestamp = record.timestamp;
+            detail.setLength(0);
+            switch (record.type) {
+                case SessionJournal.TYPE_FRAME:
+                    mFrames++;
+                    mInferenceUs += record.b;
+                    writer.write(String.format(Locale.US, "%d,frame,%d,%d,,,,,,\n",
+                            record.timestamp, record.a, record.b));
+                    break;
+                case SessionJournal.TYPE_DETECTION:
+                    mDetections++;
+                    final String label = record.a >= 0 && record.a < TrackableObjects.getCount()
+                            ? TrackableObjects.getName(record.a) : "";
+                    writer.write(String.format(Locale.US,
+                            "%d,detection,%d,%d,%.3f,%.4f,%.4f,%.4f,%.4f,%s\n", record.timestamp,
+                            record.a, record.b, record.score(), record.left, record.top,
+                            record.right, record.bottom, label));
+                    break;
+                case SessionJournal.TYPE_COMMAND:
+                    mCommands++;
+                    for (int i = 0; i < Math.min(record.payloadLength(), 4); i++) {
+                        if (i > 0) detail.append(' ');
+                        // Move positions are unsigned degrees, everything else signed
+                        detail.append(record.a == BodyProtocol.SERVO_MOVE_CMD
+                                ? record.payload(i) & 0xff : record.payload(i));
+                    }
+                    if (record.isHeld()) {
+                        mHeldCommands++;
+                        detail.append(" held");
+                    }
+                    writer.write(String.format(Locale.US, "%d,command,%d,%d,,,,,,%s\n",
+                            record.timestamp, record.a, record.payloadLength(), detail));
+                    break;
+                case SessionJournal.TYPE_LINK:
+                    mLinkEvents++;
+                    final String state = record.a >= 0 && record.a < LINK_STATES.length
+                            ? LINK_STATES[record.a] : "";
+                    if (state.equals("connected") && mConnects++ > 0) {
+                        mReconnects++;
+                    }
+                    writer.write(String.format(Locale.US, "%d,link,%d,,,,,,,%s\n",
+                            record.timestamp, record.a, state));
+                    break;
+                default:
+                    writer.write(String.format(Locale.US, "%d,%d,%d,%d,,,,,,\n",
+                            record.timestamp, record.type, record.a, record.b));
+                    break;
+            }
+        }
+    }
+
+    private void printSummary() {
+        final double seconds = mFirstTimestamp < 0 ? 0 : (mLastTimestamp - mFirstTimestamp) / 1e9;
+        System.out.println(String.format(Locale.US, "%.1f s: %d frames (%.1f fps, %.1f ms "
+                        + "inference), %d detections, %d commands (%d held), %d link events "
+                        + "(%d connects after the first)", seconds, mFrames,
+                seconds > 0 ? mFrames / seconds : 0,
+                mFrames > 0 ? mInferenceUs / 1000.0 / mFrames : 0, mDetections, mCommands,
+                mHeldCommands, mLinkEvents, mReconnects));
+    }
+
+    public static void main(String[] args) throws Exception {
+        String inputPath = null;
+        String output = "journal.csv";
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (i + 1 >= args.length) {
+                usage("Missing value for " + arg);
+            }
+            final String value = args[++i];
+            if (arg.equals("--input")) {
+                inputPath = value;
+            } else if (arg.equals("--output")) {
+                output = value;
+            } else {
+                usage("Unknown option " + arg);
+            }
+        }
+        if (inputPath == null) {
+            usage(null);
+        }
+
+        final File input = new File(inputPath);
+        final File[] segments = input.isFile()
+                ? new File[] { input } : SessionJournal.findSegments(input);
+        if (segments.length == 0) {
+            usage("No journal segments for " + inputPath);
+        }
+        System.out.println("Reading " + segments.length + " segments of " + inputPath);
+        final SessionJournal journal = new SessionJournal(segments);
+        final Writer writer = new BufferedWriter(new FileWriter(output), 1 << 16);
+        final JournalDump dump = new JournalDump();
+        try {
+            dump.dump(journal, writer);
+        } finally {
+            journal.close();
+            writer.close();
+        }
+        dump.printSummary();
+    }
+
+    private static void usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
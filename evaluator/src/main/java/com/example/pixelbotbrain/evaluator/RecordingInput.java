@@ -0,0 +1,70 @@
+/* Copyright 2018 Dave Burke. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.pixelbotbrain.evaluator;
+
+import com.example.pixelbotbrain.Frame;
+import com.example.pixelbotbrain.FrameRecording;
+import com.example.pixelbotbrain.tensorflow.YuvConversions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The frames of a FrameRecording captured on the phone.
+ */
+class RecordingInput implements EvaluationInput {
+    private final FrameRecording mRecording;
+    private final Frame mFrame = new Frame();
+    private final String mName;
+    private int mNext;
+
+    RecordingInput(File file) throws IOException {
+        mRecording = new FrameRecording(file);
+        mName = file.getName();
+    }
+
+    @Override
+    public boolean next(InputFrame frame) {
+        // The recording hands out views of its mapping, so copy the planes while holding it
+        synchronized (this) {
+            if (!mRecording.next(mFrame)) return false;
+            frame.index = mNext++;
+            frame.timestamp = mFrame.getTimestamp();
+            for (int i = 0; i < Frame.NUM_PLANES; i++) {
+                final ByteBuffer plane = mFrame.getPlane(i);
+                if (frame.planes[i] == null || frame.planes[i].length != plane.remaining()) {
+                    frame.planes[i] = new byte[plane.remaining()];
+                }
+                plane.duplicate().get(frame.planes[i]);
+                frame.rowStrides[i] = mFrame.getRowStride(i);
+                frame.pixelStrides[i] = mFrame.getPixelStride(i);
+            }
+            frame.setSize(mFrame.getWidth(), mFrame.getHeight());
+        }
+
+        frame.name = mName;
+        YuvConversions.convertYUV420ToARGB8888(frame.planes[0], frame.planes[1], frame.planes[2],
+                frame.width, frame.height, frame.rowStrides[0], frame.rowStrides[1],
+                frame.pixelStrides[1], frame.argb);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return mRecording.getFrameCount();
+    }
+}